@@ -34,6 +34,17 @@ public class BlockData {
 		this.state = state;
 	}
 	
+	/**
+	 * Used by {@link BlockStateRegistry} to make canonical blocks.
+	 */
+	BlockData(NamespaceID id, Blockstate state, int stateId) {
+		this(id, state);
+		this.stateId = stateId;
+	}
+	
+	/**
+	 * Copies a block, the copy isn't canonical and can be modified.
+	 */
 	public BlockData(BlockData other) {
 		if (other == null) {
 			throw new NullPointerException("other BlockData can't be null!");
@@ -50,7 +61,20 @@ public class BlockData {
 	
 	private BlockInfo info;
 	
+	private int stateId = -1;
+	
+	/**
+	 * @return the state id given by {@link BlockStateRegistry}, or -1 if this
+	 * isn't a canonical block
+	 */
+	public int getStateId() {
+		return stateId;
+	}
+	
 	public BlockInfo getInfo() {
+		if (stateId >= 0) {
+			return BlockTypes.get(this);
+		}
 		if (info == null || !id.equals(info.id)) {
 			info = BlockTypes.get(this);
 		}
@@ -3,6 +3,7 @@ package org.jmc;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
@@ -24,6 +25,9 @@ public class BlockMaterial
 
 	private Map<NamespaceID, Map<Blockstate, NamespaceID[]>> biomeMaterials = new LinkedHashMap<>();
 
+	/** Materials that don't depend on the biome, by state id of canonical blocks */
+	private final Map<Integer, NamespaceID[]> stateMaterials = new ConcurrentHashMap<>();
+
 	public boolean isEmpty() {
 		return biomeMaterials.isEmpty() && dataMaterials.isEmpty() && (baseMaterials == null || baseMaterials.length < 1);
 	}
@@ -35,6 +39,7 @@ public class BlockMaterial
 	public void put(NamespaceID[] mtlNames)
 	{
 		baseMaterials = mtlNames;
+		stateMaterials.clear();
 	}
 
 
@@ -47,6 +52,7 @@ public class BlockMaterial
 			throw new IllegalArgumentException("mtlNames must not be empty");
 
 		dataMaterials.put(state, mtlNames);
+		stateMaterials.clear();
 	}
 
 	/**
@@ -69,6 +75,7 @@ public class BlockMaterial
 		}
 
 		mtls.put(state, mtlNames);
+		stateMaterials.clear();
 	}
 
 
@@ -104,6 +111,10 @@ public class BlockMaterial
 		}
 		else
 		{
+			mtlNames = getCached(state);
+			if (mtlNames != null)
+				return mtlNames;
+			
 			mtlNames = dataMaterials.get(state);
 			if (mtlNames == null)
 				mtlNames = getMasked(dataMaterials, state);
@@ -123,6 +134,9 @@ public class BlockMaterial
 				if (mtlNames == null)
 					mtlNames = getFirstMtl(mtls);
 			}
+			
+			if (mtlNames != null)
+				cache(state, mtlNames);
 		}
 		
 		if (mtlNames == null)
@@ -130,6 +144,26 @@ public class BlockMaterial
 		return mtlNames;
 	}
 	
+	/**
+	 * Gets the materials previously {@link #cache(Blockstate, NamespaceID[]) cached} for a state.
+	 * @return the materials or null if there are none or the state isn't canonical
+	 */
+	@CheckForNull
+	protected NamespaceID[] getCached(Blockstate state) {
+		int stateId = state.getStateId();
+		return stateId >= 0 ? stateMaterials.get(stateId) : null;
+	}
+	
+	/**
+	 * Caches the materials for a state of a canonical block, only for
+	 * materials that don't depend on the biome.
+	 */
+	protected void cache(Blockstate state, NamespaceID[] mtlNames) {
+		int stateId = state.getStateId();
+		if (stateId >= 0)
+			stateMaterials.put(stateId, mtlNames);
+	}
+	
 	private NamespaceID[] getMasked(Map<Blockstate, NamespaceID[]> mtls, Blockstate state) {
 		for (Entry<Blockstate, NamespaceID[]> eMtl : mtls.entrySet()) {
 			if (state.matchesMask(eMtl.getKey())) {
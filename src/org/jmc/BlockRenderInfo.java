@@ -0,0 +1,91 @@
+package org.jmc;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.jmc.models.BlockModel;
+import org.jmc.models.None;
+import org.jmc.registry.NamespaceID;
+
+/**
+ * What is needed to render a block, resolved once per palette entry of a
+ * section rather than for every position, see {@link Chunk.Blocks#getRenderInfo(int, int, int)}.
+ * <p>
+ * Depends on the export options (excluded blocks, ore conversion) so it must
+ * not be kept from one export to the next.
+ */
+public final class BlockRenderInfo {
+
+	/** Water drawn in waterlogged blocks, shared so its info is only looked up once */
+	private static final BlockData WATER = BlockStateRegistry.intern(new BlockData(new NamespaceID("minecraft", "water")));
+
+	/** The block to render, with ores replaced by their base if {@link Options#convertOres} is set */
+	@Nonnull
+	public final BlockData block;
+	@Nonnull
+	public final BlockModel model;
+	@Nonnull
+	public final BlockInfo.Occlusion occlusion;
+	/** Model of the water drawn in the block if it's waterlogged, null otherwise */
+	@CheckForNull
+	public final BlockModel waterModel;
+
+	private BlockRenderInfo(BlockData block) {
+		BlockInfo info = block.getInfo();
+		this.block = block;
+		this.model = info.getModel();
+		this.occlusion = info.getOcclusion();
+		if (Boolean.parseBoolean(block.state.get("waterlogged"))) {
+			this.waterModel = WATER.getInfo().getModel();
+		} else {
+			this.waterModel = null;
+		}
+	}
+
+	/**
+	 * @param block a block read from a chunk
+	 * @return the render info of the block, or null if it isn't exported
+	 */
+	@CheckForNull
+	public static BlockRenderInfo of(@CheckForNull BlockData block) {
+		if (block == null || block.id == NamespaceID.NULL)
+			return null;
+		if (Options.isBlockExcluded(block.id))
+			return null;
+		return new BlockRenderInfo(convertOre(block));
+	}
+
+	/**
+	 * Resolves the render info of every entry of a palette.
+	 * @param palette blocks of a section, entries can be null
+	 * @return the render info of each entry
+	 */
+	public static BlockRenderInfo[] of(BlockData[] palette) {
+		BlockRenderInfo[] infos = new BlockRenderInfo[palette.length];
+		for (int i = 0; i < palette.length; i++) {
+			infos[i] = of(palette[i]);
+		}
+		return infos;
+	}
+
+	/**
+	 * @return true if the block never adds anything to the output
+	 */
+	public boolean isInvisible() {
+		return model instanceof None && waterModel == null;
+	}
+
+	/**
+	 * Replaces ores with their base block if {@link Options#convertOres} is set.
+	 */
+	private static BlockData convertOre(BlockData block) {
+		if (Options.convertOres) {
+			NamespaceID oreBase = block.getInfo().getOreBase();
+			if (oreBase != null) {
+				// the block is canonical and shared with other positions, don't modify it
+				return BlockStateRegistry.intern(new BlockData(oreBase, block.state));
+			}
+		}
+		return block;
+	}
+}
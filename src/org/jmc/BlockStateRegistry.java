@@ -0,0 +1,102 @@
+package org.jmc;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import org.jmc.registry.NamespaceID;
+
+/**
+ * Process wide registry of canonical block states.
+ * <p>
+ * Every distinct (id, state) pair is interned to a single {@link BlockData}
+ * with a frozen {@link Blockstate} and a dense int state id, so blocks decoded
+ * from different chunks share their instances and per state lookups (block
+ * info, materials...) can be kept in arrays indexed by the state id instead
+ * of hashing the id and properties every time.
+ * <p>
+ * Canonical blocks must not be modified, copy them with
+ * {@link BlockData#BlockData(BlockData)} first.
+ */
+@ParametersAreNonnullByDefault
+public class BlockStateRegistry {
+
+	private static final ConcurrentHashMap<Key, BlockData> states = new ConcurrentHashMap<>();
+	private static volatile BlockData[] byStateId = new BlockData[1024];
+	private static int count = 0;
+
+	private static class Key {
+		private final NamespaceID id;
+		private final Blockstate state;
+		private final int hash;
+
+		Key(NamespaceID id, Blockstate state) {
+			this.id = id;
+			this.state = state;
+			this.hash = 31 * id.hashCode() + state.hashCode();
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(@CheckForNull Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key) obj;
+			return hash == other.hash && id.equals(other.id) && state.equals(other.state);
+		}
+	}
+
+	/**
+	 * Gets the canonical instance of a block.
+	 * @param block block to look up, it isn't modified or kept
+	 * @return the canonical block with the same id and state
+	 */
+	@Nonnull
+	public static BlockData intern(BlockData block) {
+		if (block.getStateId() >= 0)
+			return block;
+		Key key = new Key(block.id, block.state);
+		BlockData canonical = states.get(key);
+		if (canonical != null)
+			return canonical;
+
+		synchronized (BlockStateRegistry.class) {
+			canonical = states.get(key);
+			if (canonical == null) {
+				Blockstate state = (Blockstate) block.state.clone();
+				state.freeze(count);
+				canonical = new BlockData(block.id, state, count);
+				if (count == byStateId.length) {
+					byStateId = Arrays.copyOf(byStateId, count * 2);
+				}
+				byStateId[count++] = canonical;
+				states.put(new Key(canonical.id, state), canonical);
+			}
+		}
+		return canonical;
+	}
+
+	/**
+	 * @param stateId state id of a canonical block
+	 * @return the block or null if no block has the state id
+	 */
+	@CheckForNull
+	public static BlockData get(int stateId) {
+		BlockData[] blocks = byStateId;
+		return stateId >= 0 && stateId < blocks.length ? blocks[stateId] : null;
+	}
+
+	/**
+	 * @return number of state ids assigned so far, all ids are lower than this
+	 */
+	public static synchronized int size() {
+		return count;
+	}
+}
@@ -2,6 +2,7 @@ package org.jmc;
 
 import java.io.File;
 import java.io.FileFilter;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
@@ -56,6 +57,9 @@ public class BlockTypes
 
 	private final static Set<NamespaceID> unknownBlockIds = ConcurrentHashMap.newKeySet();
 	
+	/** Block info of canonical blocks, indexed by {@link BlockData#getStateId() state id} */
+	private static volatile BlockInfo[] stateInfo = new BlockInfo[0];
+	
 	private static BlockInfo unknownBlock;
 	private static BlockInfo nullBlock;
 
@@ -454,6 +458,7 @@ public class BlockTypes
 		
 		blockTable.clear();
 		unknownBlockIds.clear();
+		stateInfo = new BlockInfo[0];
 		
 		// create the blocks table
 		Log.info("Reading blocks configuration file...");
@@ -489,19 +494,44 @@ public class BlockTypes
 	public static BlockInfo get(BlockData block) {
 		if (block == null)
 			return nullBlock;
-		if (block.id == NamespaceID.NULL || unknownBlockIds.contains(block.id)) {
+		int stateId = block.getStateId();
+		if (stateId >= 0) {
+			BlockInfo[] infos = stateInfo;
+			if (stateId < infos.length && infos[stateId] != null) {
+				return infos[stateId];
+			}
+		}
+		BlockInfo bi = lookup(block.id);
+		if (stateId >= 0) {
+			cacheStateInfo(stateId, bi);
+		}
+		return bi;
+	}
+	
+	private static BlockInfo lookup(NamespaceID id) {
+		if (id == NamespaceID.NULL || unknownBlockIds.contains(id)) {
 			return unknownBlock;
 		}
-		BlockInfo bi = blockTable.get(block.id);
+		BlockInfo bi = blockTable.get(id);
 		if (bi == null) {
-			Log.info("Found unknown block id: " + block.id);
-			unknownBlockIds.add(block.id);
+			Log.info("Found unknown block id: " + id);
+			unknownBlockIds.add(id);
 			return unknownBlock;
 		}
 
 		return bi;
 	}
 	
+	private static synchronized void cacheStateInfo(int stateId, BlockInfo bi) {
+		BlockInfo[] infos = stateInfo;
+		if (stateId >= infos.length) {
+			infos = Arrays.copyOf(infos, Math.max(stateId + 1, BlockStateRegistry.size() + 256));
+		}
+		infos[stateId] = bi;
+		// volatile write publishes the new entry
+		stateInfo = infos;
+	}
+	
 	public static Map<NamespaceID, BlockInfo> getAll()
 	{
 		return blockTable.getAll();
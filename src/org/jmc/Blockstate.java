@@ -1,14 +1,139 @@
 package org.jmc;
 
 import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 
 import org.jmc.geom.Direction;
 
 @SuppressWarnings("serial")
 public class Blockstate extends HashMap<String, String> {
+	private boolean frozen = false;
+	private int stateId = -1;
+	
 	public Blockstate() {
 		super(8);
 	}
+	
+	/**
+	 * Makes this state immutable, done for the states of canonical blocks
+	 * in {@link BlockStateRegistry}.
+	 * @param stateId state id of the canonical block owning this state
+	 */
+	void freeze(int stateId) {
+		this.frozen = true;
+		this.stateId = stateId;
+	}
+	
+	/**
+	 * @return the state id of the canonical block owning this state, or -1
+	 * if this state isn't frozen
+	 */
+	public int getStateId() {
+		return stateId;
+	}
+	
+	/**
+	 * @return true if this state can't be modified
+	 */
+	public boolean isFrozen() {
+		return frozen;
+	}
+	
+	private void checkFrozen() {
+		if (frozen)
+			throw new UnsupportedOperationException("Can't modify a frozen Blockstate!");
+	}
+	
+	/**
+	 * @return a copy of this state that can be modified
+	 */
+	@Override
+	public Object clone() {
+		Blockstate copy = (Blockstate) super.clone();
+		copy.frozen = false;
+		copy.stateId = -1;
+		return copy;
+	}
+	
+	@Override
+	public String put(String key, String value) {
+		checkFrozen();
+		return super.put(key, value);
+	}
+	
+	@Override
+	public void putAll(Map<? extends String, ? extends String> m) {
+		checkFrozen();
+		super.putAll(m);
+	}
+	
+	@Override
+	public String putIfAbsent(String key, String value) {
+		checkFrozen();
+		return super.putIfAbsent(key, value);
+	}
+	
+	@Override
+	public String remove(Object key) {
+		checkFrozen();
+		return super.remove(key);
+	}
+	
+	@Override
+	public boolean remove(Object key, Object value) {
+		checkFrozen();
+		return super.remove(key, value);
+	}
+	
+	@Override
+	public void clear() {
+		checkFrozen();
+		super.clear();
+	}
+	
+	@Override
+	public String replace(String key, String value) {
+		checkFrozen();
+		return super.replace(key, value);
+	}
+	
+	@Override
+	public boolean replace(String key, String oldValue, String newValue) {
+		checkFrozen();
+		return super.replace(key, oldValue, newValue);
+	}
+	
+	@Override
+	public void replaceAll(BiFunction<? super String, ? super String, ? extends String> function) {
+		checkFrozen();
+		super.replaceAll(function);
+	}
+	
+	@Override
+	public String computeIfAbsent(String key, Function<? super String, ? extends String> mappingFunction) {
+		checkFrozen();
+		return super.computeIfAbsent(key, mappingFunction);
+	}
+	
+	@Override
+	public String computeIfPresent(String key, BiFunction<? super String, ? super String, ? extends String> remappingFunction) {
+		checkFrozen();
+		return super.computeIfPresent(key, remappingFunction);
+	}
+	
+	@Override
+	public String compute(String key, BiFunction<? super String, ? super String, ? extends String> remappingFunction) {
+		checkFrozen();
+		return super.compute(key, remappingFunction);
+	}
+	
+	@Override
+	public String merge(String key, String value, BiFunction<? super String, ? super String, ? extends String> remappingFunction) {
+		checkFrozen();
+		return super.merge(key, value, remappingFunction);
+	}
 
 	/**
 	 * Uses dataMask state as a mask applied to this state 
@@ -11,6 +11,7 @@ import org.jmc.NBT.*;
 import org.jmc.registry.NamespaceID;
 import org.jmc.util.CachedGetter;
 import org.jmc.util.IDConvert;
+import org.jmc.util.PackedLongArray;
 import org.jmc.util.Log;
 
 import javax.annotation.CheckForNull;
@@ -44,10 +45,42 @@ public class Chunk {
 	 */
 	private final boolean is_anvil;
 
+	/**
+	 * Section tags needed to get the blocks, lighting and anything else is skipped.
+	 */
+	private static final NBT_Filter SECTION_FILTER = new NBT_Filter()
+			.include("Y")
+			.include("block_states").include("biomes")// >= 21w37a
+			.include("Palette").include("BlockStates")// >= 1.13
+			.include("Blocks").include("Data").include("Add");// <= 1.12
+
+	private static final NBT_Filter HEIGHTMAPS_FILTER = new NBT_Filter().include("WORLD_SURFACE");
+
+	private static final NBT_Filter ROOT_FILTER = makeRootFilter(false);
+	private static final NBT_Filter ROOT_FILTER_ENTITIES = makeRootFilter(true);
+	private static final NBT_Filter ENTITIES_FILTER = new NBT_Filter().include("Entities");
+
+	private static NBT_Filter makeRootFilter(boolean entities) {
+		NBT_Filter level = new NBT_Filter()
+				.include("Sections", SECTION_FILTER)
+				.include("Biomes")
+				.include("TileEntities")
+				.include("Heightmaps", HEIGHTMAPS_FILTER).include("Status")
+				.include("Blocks").include("Data");// mcregion
+		if (entities)
+			level.include("Entities");
+		return new NBT_Filter()
+				.include("DataVersion")
+				.include("sections", SECTION_FILTER)
+				.include("block_entities")
+				.include("Heightmaps", HEIGHTMAPS_FILTER).include("Status").include("yPos")
+				.include("Level", level);
+	}
+
 	/**
 	 * Main constructor of chunks. 
 	 * @param is input stream located at the place in the file where the chunk begins 
-	 * @param entityIs 
+	 * @param entityIs input stream of the chunk in the entities file, only read if entities are rendered
 	 * @param is_anvil is the file new Anvil or old Region format
 	 * @throws Exception throws errors while parsing the chunk
 	 */
@@ -58,10 +91,12 @@ public class Chunk {
 			throw new IllegalArgumentException("Chunk InputStream null!");
 		}
 		
-		root=(TAG_Compound) NBT_Tag.make(is);
+		// only the tags that are used get loaded, the rest is skipped
+		root=(TAG_Compound) new NBT_Reader(is).read(Options.renderEntities ? ROOT_FILTER_ENTITIES : ROOT_FILTER);
 		is.close();
 		if (entityIs != null) {
-			entities_root = (TAG_Compound) NBT_Tag.make(entityIs);
+			if (Options.renderEntities)
+				entities_root = (TAG_Compound) new NBT_Reader(entityIs).read(ENTITIES_FILTER);
 			entityIs.close();
 		}
 
@@ -112,9 +147,145 @@ public class Chunk {
 		@Nonnull
 		public abstract NamespaceID getBiome(int x, int y, int z);
 		
+		/**
+		 * Gets how to render the block at the given local chunk coordinates.
+		 * Sections resolve this once for each entry of their palette.
+		 * @return the render info of the block, or null if it isn't exported
+		 */
+		@CheckForNull
+		public BlockRenderInfo getRenderInfo(int x, int y, int z) {
+			return BlockRenderInfo.of(getBlockData(x, y, z));
+		}
+		
 		public abstract int getYMin();
 		public abstract int getYMax();
 		
+		/**
+		 * Gets the blocks that can appear in a 16x16x16 section, so that
+		 * empty or uniform sections can be handled without visiting each block.
+		 * @param sectionY section index, i.e. y / 16
+		 * @return the section's palette, which may have null or unused entries
+		 * and must not be modified. A single entry means the whole section is
+		 * that block, no entries means the section has no blocks. Null if the
+		 * palette isn't known.
+		 */
+		@CheckForNull
+		public BlockData[] getSectionPalette(int sectionY) {
+			return null;
+		}
+		
+		/**
+		 * Gets the render info of each entry of a section's palette, see
+		 * {@link #getSectionPalette(int)}. Sections resolve it once, the same
+		 * as for {@link #getRenderInfo(int, int, int)}.
+		 * @param sectionY section index, i.e. y / 16
+		 * @return the render info in the order of the palette, must not be
+		 * modified. Null if the palette isn't known.
+		 */
+		@CheckForNull
+		public BlockRenderInfo[] getSectionRenderInfos(int sectionY) {
+			BlockData[] palette = getSectionPalette(sectionY);
+			return palette != null ? BlockRenderInfo.of(palette) : null;
+		}
+		
+		/**
+		 * Gets the top of a column from the chunk's heightmap.
+		 * @param x relative x
+		 * @param z relative z
+		 * @return the y above the highest block of the column that isn't air,
+		 * or Integer.MAX_VALUE if it isn't known
+		 */
+		public int getColumnTop(int x, int z) {
+			return Integer.MAX_VALUE;
+		}
+		
+		/**
+		 * @return true if only the sections around a y range were loaded,
+		 * the others read as empty
+		 */
+		public boolean isPartial() {
+			return false;
+		}
+		
+		/**
+		 * Gets which blocks of a section hide the faces of all their
+		 * neighbours, so that models can cull faces with bit operations instead
+		 * of looking up each neighbouring block.
+		 * @param sectionY section index, i.e. y / 16
+		 * @return 64 longs with bit {@code x + z * 16 + (y & 15) * 256} set for
+		 * each position holding such a block, must not be modified. Null if it
+		 * isn't known.
+		 */
+		@CheckForNull
+		public long[] getOpacityMask(int sectionY) {
+			return null;
+		}
+		
+		/** Palette of a missing section, shared and not modifiable */
+		public static final BlockData[] EMPTY_PALETTE = new BlockData[0];
+		/** Render info of {@link #EMPTY_PALETTE} */
+		public static final BlockRenderInfo[] EMPTY_RENDER_INFOS = new BlockRenderInfo[0];
+		
+		/** Opacity mask of a section without any occluding block */
+		protected static final long[] EMPTY_MASK = new long[64];
+		/** Opacity mask of a section filled with an occluding block */
+		protected static final long[] FULL_MASK = new long[64];
+		static {
+			Arrays.fill(FULL_MASK, -1L);
+		}
+		
+		/**
+		 * Builds the opacity mask of a section, see {@link #getOpacityMask(int)}.
+		 * @param palette blocks of the section
+		 * @param indices palette index of each position, null if the palette has a single entry
+		 */
+		protected static long[] makeOpacityMask(BlockData[] palette, @CheckForNull short[] indices) {
+			boolean[] opaque = new boolean[palette.length];
+			boolean any = false;
+			for (int i = 0; i < palette.length; i++) {
+				opaque[i] = isOpaque(palette[i]);
+				any |= opaque[i];
+			}
+			if (!any)
+				return EMPTY_MASK;
+			if (indices == null)
+				return opaque[0] ? FULL_MASK : EMPTY_MASK;
+			
+			long[] mask = new long[64];
+			for (int i = 0; i < 4096; i++) {
+				if (opaque[indices[i]])
+					mask[i >> 6] |= 1L << (i & 63);
+			}
+			return mask;
+		}
+		
+		/**
+		 * @return true if the block hides the faces of all its neighbours, see
+		 * {@link org.jmc.models.BlockModel#drawSide}
+		 */
+		private static boolean isOpaque(@CheckForNull BlockData block) {
+			if (block == null || block.id == NamespaceID.NULL || block.id.path.endsWith("air"))
+				return false;
+			if (Options.isBlockExcluded(block.id))
+				return false;
+			return block.getInfo().getOcclusion() == BlockInfo.Occlusion.FULL;
+		}
+		
+		/**
+		 * Estimates the memory used by the chunk once its sections are
+		 * decoded, to weigh it in caches. Objects shared between chunks, like
+		 * the block states, aren't counted.
+		 * @return approximate size in bytes
+		 */
+		public long estimateSize() {
+			// one reference per position
+			return 4L * 256 * Math.max(0, getYMax() - getYMin()) + estimateEntitiesSize();
+		}
+		
+		protected long estimateEntitiesSize() {
+			return 1024L * (entities.size() + tile_entities.size());
+		}
+		
 		/**
 		 * Entities.
 		 */
@@ -140,8 +311,6 @@ public class Chunk {
 			int block_num = 16*16*Math.abs(ymax - ymin);
 			size = block_num;
 			data=new BlockData[block_num];
-			biome=new NamespaceID[block_num];
-			Arrays.fill(biome, new NamespaceID("minecraft", "plains"));//default to plains
 			this.ymin = ymin;
 			this.ymax = ymax;
 		}
@@ -166,17 +335,15 @@ public class Chunk {
 		}
 
 		/**
-		 * Biome IDSs.
+		 * These chunks have no biome data, everything is plains.
 		 */
-		private final NamespaceID[] biome;
-		
 		@Nonnull
 		public NamespaceID getBiome(int x, int y, int z) {
 			int index = getIndex(x, y, z);
 			if (index == -1) {
 				return NamespaceID.NULL;
 			} else {
-				return biome[index];
+				return NamespaceID.PLAINS;
 			}
 		}
 		
@@ -205,15 +372,34 @@ public class Chunk {
 	/**
 	 * Block data for a chunk divided into sections
 	 * Each section is not loaded until it is first requested
+	 * <p>
+	 * Doesn't keep a reference to the chunk, and the tag of each section is
+	 * released once it's been decoded, so only the compact section data stays
+	 * in memory.
 	 */
-	private class BlocksSections extends Blocks {
+	private static class BlocksSections extends Blocks {
+		private final int chunkVer;
 		private final CachedGetter<Integer, SectionBlocks> sections = new CachedGetter<Integer, SectionBlocks>() {
 			@Override
 			public SectionBlocks make(Integer key) {
-				return getSectionBlocks(sectionTags.get(key));
+				TAG_Compound tag = sectionTags.get(key);
+				SectionBlocks section = getSectionBlocks(tag);
+				if (tag != null) {
+					// replacing the value of an existing key isn't a structural change
+					sectionTags.put(key, null);
+				}
+				return section;
 			}
 		};
 		private final HashMap<Integer, TAG_Compound> sectionTags = new HashMap<>();
+		/** Heightmap of the chunk, see {@link #getColumnTop(int, int)} */
+		@CheckForNull
+		private int[] columnTops;
+		private boolean partial = false;
+		
+		BlocksSections(int chunkVer) {
+			this.chunkVer = chunkVer;
+		}
 		
 		@Override
 		public BlockData getBlockData(int x, int y, int z) {
@@ -226,6 +412,16 @@ public class Chunk {
 			return section.getBlockData(x, y - sectionIndex * 16, z);
 		}
 		
+		@Override
+		public BlockRenderInfo getRenderInfo(int x, int y, int z) {
+			int sectionIndex = getSectionIndex(y);
+			SectionBlocks section = sections.get(sectionIndex);
+			if (section == null) {
+				return null;
+			}
+			return section.getRenderInfo(x, y - sectionIndex * 16, z);
+		}
+		
 		@Nonnull
 		@Override
 		public NamespaceID getBiome(int x, int y, int z) {
@@ -237,6 +433,50 @@ public class Chunk {
 			return section.getBiome(x, y - sectionIndex * 16, z);
 		}
 		
+		@Override
+		public BlockData[] getSectionPalette(int sectionY) {
+			SectionBlocks section = sections.get(sectionY);
+			return section == null ? EMPTY_PALETTE : section.palette;
+		}
+		
+		@Override
+		public BlockRenderInfo[] getSectionRenderInfos(int sectionY) {
+			SectionBlocks section = sections.get(sectionY);
+			return section == null ? EMPTY_RENDER_INFOS : section.getRenderInfos();
+		}
+		
+		@Override
+		public long[] getOpacityMask(int sectionY) {
+			SectionBlocks section = sections.get(sectionY);
+			return section == null ? EMPTY_MASK : section.getOpacityMask();
+		}
+		
+		@Override
+		public int getColumnTop(int x, int z) {
+			return columnTops == null ? Integer.MAX_VALUE : columnTops[x + z * 16];
+		}
+		
+		@Override
+		public boolean isPartial() {
+			return partial;
+		}
+		
+		@Override
+		public long estimateSize() {
+			long size = estimateEntitiesSize() + (columnTops != null ? 16 + 4 * 256 : 0);
+			for (TAG_Compound tag : sectionTags.values()) {
+				if (tag != null) {
+					size += SectionBlocks.MIXED_SIZE;// not decoded yet
+				}
+			}
+			for (SectionBlocks section : sections.getAll().values()) {
+				if (section != null) {
+					size += section.estimateSize();
+				}
+			}
+			return size;
+		}
+		
 		@Override
 		public int getYMin() {
 			OptionalInt minSection = sectionTags.keySet().stream().mapToInt(v -> v).min();
@@ -259,6 +499,23 @@ public class Chunk {
 		private int getSectionIndex(int y) {
 			return Math.floorDiv(y, 16);
 		}
+		
+		@CheckForNull
+		private SectionBlocks getSectionBlocks(TAG_Compound section) {
+			if (section == null) return null;
+			SectionBlocks sectionBlocks = new SectionBlocks(chunkVer);
+			boolean hasData = false;
+			if (chunkVer >= 1451) {// >= 1.13/17w47a
+				hasData |= sectionBlocks.fillBlocks(section);
+				
+				if (chunkVer >= 2834) {// >= 21w37a Biomes changed format
+					hasData |= sectionBlocks.fillBiomes(section);
+				}
+			} else {// <= 1.12
+				hasData |= sectionBlocks.fillBlocksPre1451(section);
+			}
+			return hasData ? sectionBlocks : null;
+		}
 	}
 
 	/**
@@ -266,6 +523,19 @@ public class Chunk {
 	 * @return block data as a byte array
 	 */
 	public Blocks getBlocks()
+	{
+		return getBlocks(Integer.MIN_VALUE, Integer.MAX_VALUE);
+	}
+	
+	/**
+	 * Gets the block data, only loading the sections that intersect a y range
+	 * and the sections right above and below it, which are needed to check
+	 * the occlusion of the blocks at the edges of the range.
+	 * @param yMin lowest y that will be read
+	 * @param yMax y above the highest that will be read
+	 * @return block data, {@link Blocks#isPartial() partial} if some sections were left out
+	 */
+	public Blocks getBlocks(int yMin, int yMax)
 	{
 		Blocks ret;
 		
@@ -281,14 +551,23 @@ public class Chunk {
 				return new BlocksContiguous(0, 256);
 			}
 			
-			BlocksSections sectionsBlocks = new BlocksSections();
+			BlocksSections sectionsBlocks = new BlocksSections(chunkVer);
 			ret = sectionsBlocks;
 			
+			long minSection = Math.floorDiv(yMin, 16) - 1L;
+			long maxSection = Math.floorDiv(yMax - 1L, 16) + 1;
 			for(NBT_Tag section_t: sections.elements) {
 				TAG_Compound section = (TAG_Compound) section_t;
 				TAG_Byte yval = (TAG_Byte) section.getElement("Y");
-				sectionsBlocks.sectionTags.put((int) yval.value, section);
+				if (yval.value < minSection || yval.value > maxSection) {
+					// keep the key, it's still used for the y range of the chunk
+					sectionsBlocks.sectionTags.put((int) yval.value, null);
+					sectionsBlocks.partial = true;
+				} else {
+					sectionsBlocks.sectionTags.put((int) yval.value, section);
+				}
 			}
+			sectionsBlocks.columnTops = getColumnTops();
 			
 			if (chunkVer < 2834) {// < 21w37a newer biomes are in pallet format same as blocks
 				TAG_Compound level = (TAG_Compound) root.getElement("Level");
@@ -305,23 +584,26 @@ public class Chunk {
 				}
 				
 				if(tagBiomes!=null && tagBiomes.data.length > 0) {
-					int ymin = getYMin();
-					int ymax = getYMax();
-					for(int y = 0; y < ymax - ymin; y++) {
-						int sectionIdx = sectionsBlocks.getSectionIndex(y);
+					HashMap<Integer, NamespaceID> converted = new HashMap<>();
+					NamespaceID[] columnBiomes = null;
+					if (chunkVer < 2203) {// < 19w36a biomes are per column
+						columnBiomes = new NamespaceID[256];
+						Arrays.fill(columnBiomes, NamespaceID.PLAINS);
+						for (int i = 0; i < 256 && i < tagBiomes.data.length; i++) {
+							columnBiomes[i] = converted.computeIfAbsent(tagBiomes.data[i], IDConvert::convertBiome);
+						}
+					}
+					int sectionCount = (getYMax() - getYMin()) / 16;
+					for (int sectionIdx = 0; sectionIdx < sectionCount; sectionIdx++) {
 						SectionBlocks section = sectionsBlocks.sections.get(sectionIdx);
 						if (section == null) continue;
-						int yInSection = y - sectionIdx * 16;
-						for (int z = 0; z < 16; z++) {
-							for (int x = 0; x < 16; x++) {
-								int biome;
-								if (chunkVer >= 2203) {// >= 19w36a
-									biome = tagBiomes.data[x/4 + (z/4)*4 + (y/4)*4*4];
-								} else {
-									biome = tagBiomes.data[x+z*16];
-								}
-								section.biomes[section.getIndex(x, yInSection, z)] = IDConvert.convertBiome(biome);
-							}
+						if (columnBiomes != null) {
+							section.columnBiomes = columnBiomes;
+						} else {
+							// biomes of the section's 4x4x4 cells, cells are stacked by 16 from the bottom of the chunk
+							int offset = sectionIdx * 4 * 16;
+							if (offset + 64 > tagBiomes.data.length) continue;
+							section.fillBiomes(Arrays.copyOfRange(tagBiomes.data, offset, offset + 64), converted);
 						}
 					}
 				}
@@ -347,13 +629,16 @@ public class Chunk {
 				oldData[2*i]=add1;
 				oldData[2*i+1]=add2;
 			}
-			// reorder index from YZX to XZY
+			// reorder index from YZX to XZY, blocks with the same id and data share a BlockData
+			HashMap<Integer, BlockData> converted = new HashMap<>();
 			for (int x = 0; x < 16; x++) {
 				for (int z = 0; z < 16; z++) {
 					for (int y = 0; y < 128; y++) {
 						int oldInd = y+z*128+x*128*16;
 						int newInd = contBlocks.getIndex(x, y, z);
-						contBlocks.data[newInd] = IDConvert.convertBlock(oldIDs[oldInd], oldData[oldInd]);
+						short id = oldIDs[oldInd];
+						byte dataVal = oldData[oldInd];
+						contBlocks.data[newInd] = converted.computeIfAbsent(id << 4 | dataVal, k -> IDConvert.convertBlock(id, dataVal));
 					}
 				}
 			}
@@ -393,40 +678,111 @@ public class Chunk {
 		return ret;
 	}
 	
-	@CheckForNull
-	private SectionBlocks getSectionBlocks(TAG_Compound section) {
-		if (section == null) return null;
-		SectionBlocks sectionBlocks = new SectionBlocks();
-		boolean hasData = false;
-		if (chunkVer >= 1451) {// >= 1.13/17w47a
-			hasData |= sectionBlocks.fillBlocks(section);
-			
-			if (chunkVer >= 2834) {// >= 21w37a Biomes changed format
-				hasData |= sectionBlocks.fillBiomes(section);
+	/**
+	 * Blocks of a 16x16x16 section, stored as a palette of BlockData shared by
+	 * all the positions using it and the palette index of each position.
+	 */
+	static class SectionBlocks {
+		private final int chunkVer;
+		/**
+		 * Blocks used in the section, entries can be null.
+		 */
+		BlockData[] palette;
+		/**
+		 * Palette index of each position, null if the palette has a single entry.
+		 */
+		@CheckForNull
+		short[] indices;
+		/**
+		 * Biomes used in the section.
+		 */
+		NamespaceID[] biomePalette;
+		/**
+		 * Biome palette index of each 4x4x4 cell, null if the palette has a single entry.
+		 */
+		@CheckForNull
+		short[] biomeIndices;
+		/**
+		 * Biome of each column of the chunk, shared by all its sections, for
+		 * chunks from before biomes were stored in 4x4x4 cells.
+		 */
+		@CheckForNull
+		NamespaceID[] columnBiomes;
+		/**
+		 * Built on first use, see {@link Blocks#getOpacityMask(int)}.
+		 */
+		@CheckForNull
+		private volatile long[] opacityMask;
+		/**
+		 * Render info of each palette entry, built on first use.
+		 */
+		@CheckForNull
+		private volatile BlockRenderInfo[] renderInfos;
+		
+		/** Approximate size of a decoded section with more than one block */
+		static final long MIXED_SIZE = 9 * 1024;
+		
+		SectionBlocks(int chunkVer) {
+			this.chunkVer = chunkVer;
+			palette = new BlockData[1];
+			indices = null;
+			biomePalette = new NamespaceID[] {NamespaceID.PLAINS};//default to plains
+			biomeIndices = null;
+		}
+		
+		public BlockData getBlockData(int x, int y, int z) {
+			int index = getIndex(x, y, z);
+			return indices == null ? palette[0] : palette[indices[index]];
+		}
+		
+		@CheckForNull
+		public BlockRenderInfo getRenderInfo(int x, int y, int z) {
+			BlockRenderInfo[] infos = getRenderInfos();
+			return indices == null ? infos[0] : infos[indices[getIndex(x, y, z)]];
+		}
+		
+		/**
+		 * @return the render info of each palette entry
+		 */
+		BlockRenderInfo[] getRenderInfos() {
+			BlockRenderInfo[] infos = renderInfos;
+			if (infos == null) {
+				infos = BlockRenderInfo.of(palette);
+				renderInfos = infos;
 			}
-		} else {// <= 1.12
-			hasData |= sectionBlocks.fillBlocksPre1451(section);
+			return infos;
 		}
-		return hasData ? sectionBlocks : null;
-	}
-	
-	class SectionBlocks {
-		final BlockData[] data;
-		final NamespaceID[] biomes;
 		
-		SectionBlocks() {
-			int size = 16 * 16 * 16;
-			data = new BlockData[size];
-			biomes = new NamespaceID[size];
-			Arrays.fill(biomes, new NamespaceID("minecraft", "plains"));//default to plains
+		/**
+		 * @return approximate size in bytes, see {@link Blocks#estimateSize()}
+		 */
+		long estimateSize() {
+			long size = 64 + 16 + 4L * palette.length + 16 + 4L * biomePalette.length;
+			if (indices != null) {
+				// indices, opacity mask and render infos
+				size += 16 + 2L * indices.length + 16 + 8 * 64 + 16 + 4L * palette.length;
+			}
+			if (biomeIndices != null) {
+				size += 16 + 2L * biomeIndices.length;
+			}
+			return size;
 		}
 		
-		public BlockData getBlockData(int x, int y, int z) {
-			return data[getIndex(x, y, z)];
+		long[] getOpacityMask() {
+			long[] mask = opacityMask;
+			if (mask == null) {
+				mask = Blocks.makeOpacityMask(palette, indices);
+				opacityMask = mask;
+			}
+			return mask;
 		}
 		
 		public NamespaceID getBiome(int x, int y, int z) {
-			return biomes[getIndex(x, y, z)];
+			int index = getIndex(x, y, z);
+			if (columnBiomes != null) {
+				return columnBiomes[index & 0xff];
+			}
+			return biomeIndices == null ? biomePalette[0] : biomePalette[biomeIndices[(x >> 2) | (z >> 2) << 2 | (y >> 2) << 4]];
 		}
 		
 		private int getIndex(int x, int y, int z) {
@@ -436,17 +792,6 @@ public class Chunk {
 			return x + (z * 16) + (y * 16 * 16);
 		}
 		
-		private long calculatePaletteIndex(int index, int bitCount, long[] dataArray) {
-			long blockPid;
-			int perLong = 64 / bitCount;
-			int longInd = index / perLong;
-			int longSubInd = index % perLong;
-			long lvalue = dataArray[longInd];
-			long shifted = lvalue >>> (longSubInd * bitCount);
-			blockPid = shifted & (-1L >>> (64 - bitCount));
-			return blockPid;
-		}
-		
 		private int bitsForInt(int value) {
 			int bits = 0;
 			while (value > 0) {
@@ -481,61 +826,62 @@ public class Chunk {
 			if (tagBlockPalette.elements.length == 1 || tagBlockStates == null || tagBlockStates.data.length <= 1) {
 				if (tagBlockPalette.elements.length >= 1) {
 					// no state list but a palette indicates the whole section is filled with a single block
-					TAG_Compound blockTag = (TAG_Compound)tagBlockPalette.elements[0];
-					String blockName = ((TAG_String)blockTag.getElement("Name")).value;
-					if (blockName == null) {
-						Log.debug("No block name in section palette tag!");
+					BlockData block = makePaletteBlock((TAG_Compound)tagBlockPalette.elements[0]);
+					if (block == null) {
 						return false;
 					}
-					
-					BlockData block = new BlockData(NamespaceID.fromString(blockName));
-					Arrays.fill(data, block);
+					palette = new BlockData[] {block};
+					indices = null;
 					return true;
 				}
 				return false;
 			}
 			
+			BlockData[] blockPalette = new BlockData[tagBlockPalette.elements.length];
+			for (int i = 0; i < blockPalette.length; i++) {
+				blockPalette[i] = makePaletteBlock((TAG_Compound)tagBlockPalette.elements[i]);
+			}
+			
+			short[] blockIndices = new short[4096];
 			int blockBits = Math.max(bitsForInt(tagBlockPalette.elements.length - 1), 4); // Minimum of 4 bits.
-			for (int i = 0; i < 4096; i++) {
-				long blockPid;
-				if (chunkVer >= 2529) {// >= 20w17a
-					blockPid = calculatePaletteIndex(i, blockBits, tagBlockStates.data);
-				}
-				else {
-					BitSet blockBitArr = BitSet.valueOf(tagBlockStates.data).get(i*blockBits, (i+1)*blockBits);
-					if (blockBitArr.isEmpty()) {
-						blockPid = 0;
-					} else {
-						blockPid = blockBitArr.toLongArray()[0];
-					}
-				}
-				
-				TAG_Compound blockTag = (TAG_Compound)tagBlockPalette.elements[(int)blockPid];
-				String blockName = ((TAG_String)blockTag.getElement("Name")).value;
-				if (blockName == null) {
-					Log.debug("No block name!");
-					continue;
-				}
-				
-				BlockData block = new BlockData(NamespaceID.fromString(blockName));
-				TAG_Compound propertiesTag = (TAG_Compound)blockTag.getElement("Properties");
-				if (propertiesTag != null) {
-					for (NBT_Tag tag : propertiesTag.elements) {
-						TAG_String propTag = (TAG_String)tag;
-						block.state.put(propTag.getName(), propTag.value);
-					}
-				}
-				
-				if (block.getInfo().getActWaterlogged()) {
-					block.state.putIfAbsent("waterlogged", "true");
-					//Log.debug("added waterlogged to: "+blockName.value);
-				}
-				
-				data[i] = block;
+			// values span longs before 20w17a
+			int maxPid = PackedLongArray.unpack(tagBlockStates.data, blockBits, chunkVer < 2529, blockIndices, 4096);
+			if (maxPid >= blockPalette.length) {
+				throw new ArrayIndexOutOfBoundsException("Block palette index out of range: " + maxPid);
 			}
+			palette = blockPalette;
+			indices = blockIndices;
 			return true;
 		}
 		
+		/**
+		 * Makes the block for a palette entry, it's the canonical block for the
+		 * entry's state, shared by every position using it.
+		 * @return the block or null if the tag has no name
+		 */
+		@CheckForNull
+		private BlockData makePaletteBlock(TAG_Compound blockTag) {
+			TAG_String nameTag = (TAG_String)blockTag.getElement("Name");
+			if (nameTag == null || nameTag.value == null) {
+				Log.debug("No block name in section palette tag!");
+				return null;
+			}
+			
+			BlockData block = new BlockData(NamespaceID.fromString(nameTag.value));
+			TAG_Compound propertiesTag = (TAG_Compound)blockTag.getElement("Properties");
+			if (propertiesTag != null) {
+				for (NBT_Tag tag : propertiesTag.elements) {
+					TAG_String propTag = (TAG_String)tag;
+					block.state.put(propTag.getName(), propTag.value);
+				}
+			}
+			
+			if (block.getInfo().getActWaterlogged()) {
+				block.state.putIfAbsent("waterlogged", "true");
+			}
+			return BlockStateRegistry.intern(block);
+		}
+		
 		/**
 		 * Fills in the biome array with biome data
 		 * @return false if this was not completed */
@@ -552,32 +898,46 @@ public class Chunk {
 			if (tagBiomePalette.elements.length == 1 || tagBiomeStates == null || tagBiomeStates.data.length <= 1) {
 				if (tagBiomePalette.elements.length >= 1) {
 					String biomeName = ((TAG_String) tagBiomePalette.elements[0]).value;
-					NamespaceID biome = NamespaceID.fromString(biomeName);
-					Arrays.fill(biomes, biome);
+					biomePalette = new NamespaceID[] {NamespaceID.fromString(biomeName)};
+					biomeIndices = null;
 					return true;
 				}
 				return false;
 			}
+			NamespaceID[] newPalette = new NamespaceID[tagBiomePalette.elements.length];
+			for (int i = 0; i < newPalette.length; i++) {
+				newPalette[i] = NamespaceID.fromString(((TAG_String) tagBiomePalette.elements[i]).value);
+			}
 			int biomeBits = bitsForInt(tagBiomePalette.elements.length - 1);
+			short[] newIndices = new short[64];
+			int maxPid = PackedLongArray.unpack(tagBiomeStates.data, biomeBits, false, newIndices, 64);
+			if (maxPid >= newPalette.length) {
+				throw new ArrayIndexOutOfBoundsException("Biome palette index out of range: " + maxPid);
+			}
+			biomePalette = newPalette;
+			biomeIndices = newIndices;
+			return true;
+		}
+		
+		/**
+		 * Fills in the biomes from pre 21w37a numeric biome ids
+		 * @param cells old biome id of each 4x4x4 cell
+		 * @param converted cache of converted ids shared by the chunk
+		 */
+		void fillBiomes(int[] cells, Map<Integer, NamespaceID> converted) {
+			ArrayList<NamespaceID> newPalette = new ArrayList<>();
+			short[] newIndices = new short[64];
 			for (int i = 0; i < 64; i++) {
-				long biomePid = calculatePaletteIndex(i, biomeBits, tagBiomeStates.data);
-				
-				String biomeName = ((TAG_String) tagBiomePalette.elements[(int) biomePid]).value;
-				NamespaceID biome = NamespaceID.fromString(biomeName);
-				int baseInd = ((i%4)*4) + ((i/4)*16*4)%(16*16) + ((i/(4*4))*16*16*4);
-				//Copy biome into 4x4x4 cube
-				for (int y = 0; y < 4; y++) {
-					int yOffset = y * 16 * 16;
-					for (int z = 0; z < 4; z++) {
-						int zOffset = z * 16;
-						for (int x = 0; x < 4; x++) {
-							int index = baseInd + x + zOffset + yOffset;
-							biomes[index] = biome;
-						}
-					}
+				NamespaceID biome = converted.computeIfAbsent(cells[i], IDConvert::convertBiome);
+				int pid = newPalette.indexOf(biome);
+				if (pid < 0) {
+					pid = newPalette.size();
+					newPalette.add(biome);
 				}
+				newIndices[i] = (short) pid;
 			}
-			return true;
+			biomePalette = newPalette.toArray(new NamespaceID[0]);
+			biomeIndices = biomePalette.length == 1 ? null : newIndices;
 		}
 		
 		/**
@@ -609,13 +969,97 @@ public class Chunk {
 				oldData[2*i]=add1;
 				oldData[2*i+1]=add2;
 			}
+			// blocks with the same id and data share a palette entry
+			HashMap<Integer, Integer> paletteKeys = new HashMap<>();
+			ArrayList<BlockData> blockPalette = new ArrayList<>();
+			short[] blockIndices = new short[4096];
 			for (int i = 0; i < 4096; i++) {
-				data[i] = IDConvert.convertBlock(oldIDs[i], oldData[i]);
+				int key = oldIDs[i] << 4 | oldData[i];
+				Integer pid = paletteKeys.get(key);
+				if (pid == null) {
+					pid = blockPalette.size();
+					paletteKeys.put(key, pid);
+					blockPalette.add(IDConvert.convertBlock(oldIDs[i], oldData[i]));
+				}
+				blockIndices[i] = (short)(int) pid;
 			}
+			palette = blockPalette.toArray(new BlockData[0]);
+			indices = palette.length == 1 ? null : blockIndices;
 			return true;
 		}
 	}
 	
+	/**
+	 * Reads the WORLD_SURFACE heightmap of the chunk.
+	 * @return the y above the highest block that isn't air for each column,
+	 * indexed by x + z * 16, or null if the chunk doesn't have a heightmap that
+	 * can be trusted
+	 */
+	@CheckForNull
+	private int[] getColumnTops() {
+		if (chunkVer < 1466) {// < 18w06a
+			return null;
+		}
+		TAG_Compound parent = chunkVer >= 2844 ? root : (TAG_Compound) root.getElement("Level");// >= 21w43a
+		if (parent == null) {
+			return null;
+		}
+		// heightmaps are only complete once the chunk has been fully generated
+		NBT_Tag status = parent.getElement("Status");
+		if (!(status instanceof TAG_String)) {
+			return null;
+		}
+		switch (((TAG_String) status).value) {
+		case "full":
+		case "minecraft:full":
+		case "fullchunk":// 1.13
+		case "postprocessed":// 1.13
+			break;
+		default:
+			return null;
+		}
+		
+		// heights are relative to the bottom of the world
+		int worldMin;
+		NBT_Tag yPos = parent.getElement("yPos");
+		if (yPos instanceof TAG_Int) {
+			worldMin = ((TAG_Int) yPos).value * 16;
+		} else if (chunkVer < 2685) {// < 20w49a the world always starts at 0
+			worldMin = 0;
+		} else {
+			return null;
+		}
+		
+		TAG_Compound heightmaps = (TAG_Compound) parent.getElement("Heightmaps");
+		if (heightmaps == null) {
+			return null;
+		}
+		NBT_Tag surface = heightmaps.getElement("WORLD_SURFACE");
+		if (!(surface instanceof TAG_Long_Array)) {
+			return null;
+		}
+		long[] data = ((TAG_Long_Array) surface).data;
+		boolean spanning = chunkVer < 2529;// < 20w17a
+		int bits = 0;
+		for (int b = 1; b <= 16 && bits == 0; b++) {
+			int longs = spanning ? (256 * b + 63) / 64 : (256 + 64 / b - 1) / (64 / b);
+			if (longs == data.length) {
+				bits = b;
+			}
+		}
+		if (bits == 0) {
+			return null;
+		}
+		
+		short[] heights = new short[256];
+		PackedLongArray.unpack(data, bits, spanning, heights, 256);
+		int[] tops = new int[256];
+		for (int i = 0; i < 256; i++) {
+			tops[i] = worldMin + (heights[i] & 0xffff);
+		}
+		return tops;
+	}
+	
 	public int getYMin() {
 		return getYMinMax()[0];
 	}
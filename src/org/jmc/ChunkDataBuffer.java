@@ -5,84 +5,232 @@ import java.awt.Rectangle;
 import java.lang.ref.WeakReference;
 
 import org.jmc.Chunk.Blocks;
-import org.jmc.util.CachedGetter;
+import org.jmc.Region.RawChunk;
+import org.jmc.util.ChunkKey;
 import org.jmc.util.Log;
+import org.jmc.util.LongObjectMap;
 
 import javax.annotation.CheckForNull;
 
 public class ChunkDataBuffer {
 
+	/**
+	 * Maximum number of region files kept open.
+	 */
+	private static final int MAX_OPEN_REGIONS = 32;
+
 	private final Rectangle xzBoundaries;
 	private final Rectangle xyBoundaries;
-	private final CachedGetter<Point, WeakeningReference<Blocks>> chunks;
-	private final CachedGetter<Point, Region> regions;
+	private final int ymin;
+	private final int ymax;
+	// guarded by itself
+	private final LongObjectMap<WeakeningReference<Blocks>> chunks;
+	private final RegionCache regions;
+	@CheckForNull
+	private final ChunkDiskCache diskCache;
+	@CheckForNull
+	private volatile ChunkResidency residency;
 
 	public ChunkDataBuffer(int xmin, int xmax, int ymin, int ymax, int zmin, int zmax)
 	{
 		xzBoundaries = new Rectangle(xmin, zmin, xmax-xmin, zmax-zmin);
 		xyBoundaries = new Rectangle(xmin, ymin, xmax-xmin, ymax-ymin);
+		this.ymin = ymin;
+		this.ymax = ymax;
 		
-		chunks = new CachedGetter<Point, WeakeningReference<Blocks>>() {
-			@Override
-			public WeakeningReference<Blocks> make(Point p) {
-				return new WeakeningReference<>(makeBlocks(p));
-			}
-		};
-		regions = new CachedGetter<Point, Region>() {
-			@Override
-			public Region make(Point p) {
-				try {
-					return Region.findRegion(Options.worldDir, Options.dimension, p);
-				} catch (Exception e) {
-					return null;
-				}
-			}
-		};
+		chunks = new LongObjectMap<>();
+		diskCache = ChunkDiskCache.get();
+		regions = new RegionCache(MAX_OPEN_REGIONS);
 	}
 	
 	public synchronized void removeAllChunks()
 	{
-		chunks.clear();
+		synchronized (chunks) {
+			chunks.clear();
+		}
+		regions.clear();
 	}
 	
-	public synchronized int getChunkCount()
+	public int getChunkCount()
 	{
-		return chunks.size();
+		synchronized (chunks) {
+			return chunks.size();
+		}
+	}
+	
+	public String getRegionStatistics()
+	{
+		return regions.getStatistics();
 	}
 
-	public Blocks getBlocks(Point p)
+	/**
+	 * Holds the chunks of an export until all their readers are processed,
+	 * see {@link #chunkProcessed(Point)}. Chunks it holds don't go through
+	 * the other caches.
+	 * @param residency the residency or null to stop using it
+	 */
+	public void setResidency(@CheckForNull ChunkResidency residency)
 	{
-		WeakeningReference<Blocks> ref = chunks.get(p);
-		if (ref == null)
-			return null;
+		this.residency = residency;
+	}
+	
+	/**
+	 * Tells the buffer that a chunk of the export has been processed, so that
+	 * the chunks only held for it can be released.
+	 */
+	public void chunkProcessed(long chunk)
+	{
+		ChunkResidency res = residency;
+		if (res != null)
+			res.release(chunk);
+	}
+	
+	/**
+	 * @return true if the chunk is held by the residency
+	 */
+	protected boolean isResident(long chunk)
+	{
+		ChunkResidency res = residency;
+		return res != null && res.getSlot(chunk) != null;
+	}
+	
+	/**
+	 * @param chunk {@link ChunkKey} of the chunk
+	 * @return the blocks of the chunk, null if it doesn't exist
+	 */
+	@CheckForNull
+	public Blocks getBlocks(long chunk)
+	{
+		ChunkResidency res = residency;
+		ChunkResidency.Slot slot = res != null ? res.getSlot(chunk) : null;
+		if (slot != null)
+			return res.load(slot, this::makeBlocks);
+		
+		WeakeningReference<Blocks> ref;
+		synchronized (chunks) {
+			ref = chunks.computeIfAbsent(chunk, k -> new WeakeningReference<>(null));
+		}
+		// the chunk is made outside of the map lock so other chunks can be read meanwhile
 		synchronized (ref) {
 			Blocks blocks = ref.get();
 			if (blocks == null) {
-				blocks = makeBlocks(p);
+				blocks = makeBlocks(chunk);
 				ref.set(blocks);
 			}
 			return blocks;
 		}
 	}
 	
+	/**
+	 * @param chunk {@link ChunkKey} of the chunk
+	 */
 	@CheckForNull
-	public Chunk getChunk(Point p) {
+	public Chunk getChunk(long chunk) {
+		int x = ChunkKey.x(chunk);
+		int z = ChunkKey.z(chunk);
 		try {// if chunk exists
-			Point regionCoord = Region.getRegionCoord(p);
-			Region region = regions.get(regionCoord);
+			Region region = regions.get(new Point(x >> 5, z >> 5));
 			if (region == null)
 				return null;
 			
-			return region.getChunk(p.x, p.y);
+			try {
+				return region.getChunk(x, z);
+			} finally {
+				region.release();
+			}
 		} catch (Exception e) {
 			Log.errorOnce("Error reading from chunk", e, false);
 			return null;
 		}
 	}
 	
-	private Blocks makeBlocks(Point p) {
-		Chunk chunk = getChunk(p);
-		return chunk == null ? null : chunk.getBlocks();
+	/**
+	 * Reads the compressed data of a chunk, to be parsed later.
+	 * @param chunk {@link ChunkKey} of the chunk
+	 * @return the data, null if the chunk doesn't exist or can't be read
+	 */
+	@CheckForNull
+	public RawChunk readChunk(long chunk) {
+		int x = ChunkKey.x(chunk);
+		int z = ChunkKey.z(chunk);
+		try {
+			Region region = regions.get(new Point(x >> 5, z >> 5));
+			if (region == null)
+				return null;
+			try {
+				return region.readChunk(x, z);
+			} finally {
+				region.release();
+			}
+		} catch (Exception e) {
+			Log.errorOnce("Error reading from chunk", e, false);
+			return null;
+		}
+	}
+	
+	/**
+	 * Gets the modification stamp of a chunk from the region file headers,
+	 * without reading the chunk itself.
+	 * @return the chunk timestamp in the upper 32 bits and the entity timestamp
+	 * in the lower ones, 0 if the region doesn't exist
+	 */
+	public long getChunkStamp(long chunk) {
+		int x = ChunkKey.x(chunk);
+		int z = ChunkKey.z(chunk);
+		try {
+			Region region = regions.get(new Point(x >> 5, z >> 5));
+			if (region == null)
+				return 0;
+			try {
+				return (long) region.getTimestamp(x, z) << 32 | (region.getEntityTimestamp(x, z) & 0xffffffffL);
+			} finally {
+				region.release();
+			}
+		} catch (Exception e) {
+			Log.errorOnce("Error reading region timestamps", e, false);
+			return 0;
+		}
+	}
+	
+	private Blocks makeBlocks(long key) {
+		long stamp = getCacheStamp(key);
+		Blocks blocks = loadCached(key, stamp);
+		if (blocks != null)
+			return blocks;
+		Chunk chunk = getChunk(key);
+		if (chunk == null)
+			return null;
+		return decodeBlocks(key, stamp, chunk);
+	}
+	
+	/**
+	 * @return the stamp the chunk is cached on disk with, 0 if it isn't cached
+	 */
+	long getCacheStamp(long key) {
+		// chunks without a timestamp can't be validated so they aren't cached
+		return diskCache != null ? getChunkStamp(key) : 0;
+	}
+	
+	/**
+	 * @param stamp see {@link #getCacheStamp(long)}
+	 * @return the blocks from the disk cache, null if they aren't cached
+	 */
+	@CheckForNull
+	Blocks loadCached(long key, long stamp) {
+		return stamp != 0 ? diskCache.load(key, stamp) : null;
+	}
+	
+	/**
+	 * Decodes the blocks of a chunk in the export's height range and
+	 * caches them on disk.
+	 * @param stamp see {@link #getCacheStamp(long)}
+	 */
+	Blocks decodeBlocks(long key, long stamp, Chunk chunk) {
+		Blocks blocks = chunk.getBlocks(ymin, ymax);
+		// partial chunks can't be reused by exports of other y ranges
+		if (stamp != 0 && !blocks.isPartial())
+			diskCache.store(key, stamp, blocks);
+		return blocks;
 	}
 	
 	public Rectangle getXZBoundaries()
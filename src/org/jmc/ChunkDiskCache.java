@@ -0,0 +1,629 @@
+package org.jmc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.jmc.Chunk.Blocks;
+import org.jmc.NBT.NBT_Tag;
+import org.jmc.NBT.TAG_Compound;
+import org.jmc.registry.NamespaceID;
+import org.jmc.util.ChunkKey;
+import org.jmc.util.Hash;
+import org.jmc.util.Log;
+
+/**
+ * Persistent on-disk cache of decoded chunk data.
+ * <p>
+ * Parsing the NBT of a chunk and decoding its block palettes is the most
+ * expensive part of loading it, and the same chunks get loaded again every time
+ * an overlapping area is exported or the preview is reloaded. This cache keeps
+ * the decoded {@link Blocks} of each chunk (block palettes and indices, biomes,
+ * entities and tile entities) in a compact binary form, keyed by region file,
+ * chunk index and the chunk's timestamp from the region header. Entries whose
+ * timestamp no longer matches the region file are stale and get dropped.
+ * <p>
+ * The cache directory can be shared by any number of worlds, it's kept under
+ * {@link Options#chunkCacheMaxSize} by removing the least recently used entries.
+ * <p>
+ * Entries are written and the cache trimmed by a single background thread, so
+ * the threads decoding chunks never wait for the disk. Entries stored while
+ * {@link #WRITE_QUEUE_SIZE} others are waiting to be written are dropped.
+ */
+public class ChunkDiskCache {
+
+	private static final int MAGIC = 0x4A4D4343;// "JMCC"
+	/** Must be incremented when the entry format or the block decoding changes */
+	private static final int FORMAT_VERSION = 4;
+	private static final String EXTENSION = ".jmcc";
+
+	/** Most entries waiting to be written */
+	private static final int WRITE_QUEUE_SIZE = 64;
+
+	/** Writes the entries of all the caches, its thread ends when idle */
+	private static final ThreadPoolExecutor writer = createWriter();
+
+	private static final Map<File, ChunkDiskCache> instances = new HashMap<>();
+
+	/** Root of the cache, shared by all worlds */
+	private final File root;
+	/** Directory of the world and dimension being cached */
+	private final File dir;
+	private final long maxSize;
+	private final long programHash;
+	/** Only used by the writer thread */
+	private long writtenSinceTrim = 0;
+
+	private ChunkDiskCache(File root, File dir, long maxSize) {
+		this.root = root;
+		this.dir = dir;
+		this.maxSize = maxSize;
+		this.programHash = Hash.fnv1a64(FORMAT_VERSION + "|" + Version.VERSION() + "|" + Version.COMMIT());
+		writer.execute(this::trim);
+	}
+
+	private static ThreadPoolExecutor createWriter() {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(WRITE_QUEUE_SIZE), r -> {
+					Thread thread = new Thread(r, "Chunk-cache-writer");
+					thread.setDaemon(true);
+					thread.setPriority(Thread.MIN_PRIORITY);
+					return thread;
+				}, new ThreadPoolExecutor.DiscardPolicy());
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	/**
+	 * Gets the cache for the world and dimension currently selected in the Options.
+	 * @return the cache, or null if it's disabled
+	 */
+	@CheckForNull
+	public static synchronized ChunkDiskCache get() {
+		if (Options.chunkCacheDir == null || Options.worldDir == null)
+			return null;
+		String worldName = Options.worldDir.getName().replaceAll("[^A-Za-z0-9_.-]", "_");
+		long worldHash = Hash.fnv1a64(Options.worldDir.getAbsolutePath() + "|" + Options.dimension);
+		File dir = new File(Options.chunkCacheDir, String.format("%s-%016x", worldName, worldHash));
+
+		ChunkDiskCache cache = instances.get(dir);
+		if (cache == null || cache.maxSize != Options.chunkCacheMaxSize) {
+			cache = new ChunkDiskCache(Options.chunkCacheDir, dir, Options.chunkCacheMaxSize);
+			instances.put(dir, cache);
+		}
+		return cache;
+	}
+
+	private File getFile(long chunk) {
+		int x = ChunkKey.x(chunk);
+		int z = ChunkKey.z(chunk);
+		int idx = (x & 31) + (z & 31) * 32;
+		return new File(dir, String.format("r.%d.%d/%d%s", x >> 5, z >> 5, idx, EXTENSION));
+	}
+
+	/**
+	 * Loads the decoded data of a chunk.
+	 * @param chunk {@link ChunkKey} of the chunk
+	 * @param stamp current modification stamp of the chunk, from {@link ChunkDataBuffer#getChunkStamp}
+	 * @return the chunk data, or null if it isn't cached or the cached copy is stale
+	 */
+	@CheckForNull
+	public Blocks load(long chunk, long stamp) {
+		File file = getFile(chunk);
+		if (!file.isFile())
+			return null;
+
+		Blocks blocks = null;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			// entities are only loaded when they're rendered, entries without them can't be used then
+			if (in.readInt() == MAGIC && in.readInt() == FORMAT_VERSION && in.readLong() == programHash
+					&& in.readLong() == stamp && (in.readBoolean() || !Options.renderEntities)) {
+				blocks = readBlocks(new DataInputStream(new BufferedInputStream(new InflaterInputStream(in))));
+			}
+		} catch (Exception e) {
+			Log.debug("Cannot read cached chunk " + file + ": " + e);
+		}
+
+		if (blocks == null) {
+			// stale or corrupt
+			if (!file.delete())
+				Log.debug("Cannot delete cached chunk " + file);
+			return null;
+		}
+		// used as the access time for evicting the least recently used entries
+		file.setLastModified(System.currentTimeMillis());
+		return blocks;
+	}
+
+	/**
+	 * Queues the decoded data of a chunk to be stored by the writer thread,
+	 * or drops it if too many entries are waiting.
+	 * @param chunk {@link ChunkKey} of the chunk
+	 * @param stamp current modification stamp of the chunk
+	 * @param blocks data to store, not modified afterwards
+	 */
+	public void store(long chunk, long stamp, Blocks blocks) {
+		writer.execute(() -> write(chunk, stamp, blocks));
+	}
+
+	private void write(long chunk, long stamp, Blocks blocks) {
+		File file = getFile(chunk);
+		File tmpFile = new File(file.getPath() + ".tmp");
+		try {
+			File parent = file.getParentFile();
+			if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory())
+				throw new IOException("Cannot create directory " + parent);
+
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+				out.writeInt(MAGIC);
+				out.writeInt(FORMAT_VERSION);
+				out.writeLong(programHash);
+				out.writeLong(stamp);
+				out.writeBoolean(Options.renderEntities);
+				Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+				try {
+					DeflaterOutputStream dos = new DeflaterOutputStream(out, deflater, 8192);
+					DataOutputStream body = new DataOutputStream(new BufferedOutputStream(dos));
+					writeBlocks(body, blocks);
+					body.flush();
+					dos.finish();
+				} finally {
+					deflater.end();
+				}
+			}
+
+			try {
+				Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (Exception e) {
+			Log.errorOnce("Cannot write to the chunk cache", e, false);
+			tmpFile.delete();
+			return;
+		}
+
+		writtenSinceTrim += file.length();
+		if (writtenSinceTrim > maxSize / 16) {
+			trim();
+		}
+	}
+
+	/**
+	 * Removes the least recently used entries of the whole cache until it's
+	 * back under the size limit. Runs on the writer thread.
+	 */
+	private void trim() {
+		if (!root.isDirectory())
+			return;
+		try {
+			writtenSinceTrim = 0;
+			List<Path> files;
+			try (Stream<Path> walk = Files.walk(root.toPath())) {
+				files = walk.filter(p -> p.toString().endsWith(EXTENSION)).collect(Collectors.toList());
+			}
+
+			List<long[]> entries = new ArrayList<>(files.size());// {lastModified, size, index}
+			long total = 0;
+			for (int i = 0; i < files.size(); i++) {
+				File f = files.get(i).toFile();
+				long size = f.length();
+				total += size;
+				entries.add(new long[] { f.lastModified(), size, i });
+			}
+			if (total <= maxSize)
+				return;
+
+			entries.sort((a, b) -> Long.compare(a[0], b[0]));
+			long target = maxSize / 10 * 9;
+			int removed = 0;
+			for (long[] entry : entries) {
+				if (total <= target)
+					break;
+				if (files.get((int) entry[2]).toFile().delete()) {
+					total -= entry[1];
+					removed++;
+				}
+			}
+			Log.debug(String.format("Chunk cache: removed %d old entries", removed));
+		} catch (IOException | RuntimeException e) {
+			Log.debug("Cannot trim the chunk cache: " + e);
+		}
+	}
+
+	/**
+	 * Writes the decoded data of a chunk, without header or compression.
+	 * Also used by {@link ChunkSpillCache}.
+	 */
+	static void writeBlocks(DataOutputStream out, Blocks blocks) throws Exception {
+		int yMin = blocks.getYMin();
+		int yMax = blocks.getYMax();
+		int minSection = Math.floorDiv(yMin, 16);
+		int maxSection = Math.floorDiv(yMax, 16);
+		out.writeInt(yMin);
+		out.writeInt(yMax);
+		out.writeInt(minSection);
+		out.writeInt(maxSection - minSection + 1);
+
+		BlockData[] sectionBlocks = new BlockData[4096];
+		NamespaceID[] sectionBiomes = new NamespaceID[4096];
+		for (int s = minSection; s <= maxSection; s++) {
+			boolean present = false;
+			for (int y = 0; y < 16; y++) {
+				for (int z = 0; z < 16; z++) {
+					for (int x = 0; x < 16; x++) {
+						int i = x + z * 16 + y * 256;
+						sectionBlocks[i] = blocks.getBlockData(x, s * 16 + y, z);
+						sectionBiomes[i] = blocks.getBiome(x, s * 16 + y, z);
+						present |= sectionBlocks[i] != null || sectionBiomes[i] != NamespaceID.NULL;
+					}
+				}
+			}
+			out.writeBoolean(present);
+			if (!present)
+				continue;
+
+			// blocks are compared by value, they aren't always shared between positions
+			writePalette(out, sectionBlocks, bd -> bd == null ? null : new SimpleImmutableEntry<>(bd.id, bd.state),
+					(o, bd) -> {
+						o.writeUTF(bd.id.toString());
+						o.writeShort(bd.state.size());
+						for (Map.Entry<String, String> e : bd.state.entrySet()) {
+							o.writeUTF(e.getKey());
+							o.writeUTF(e.getValue());
+						}
+					});
+			// biomes are stored per 4x4x4 cell unless they come from the older per column format
+			NamespaceID[] cellBiomes = toCells(sectionBiomes);
+			out.writeBoolean(cellBiomes != null);
+			writePalette(out, cellBiomes != null ? cellBiomes : sectionBiomes, id -> id, (o, id) -> o.writeUTF(id.toString()));
+		}
+
+		int[] columnTops = new int[256];
+		boolean hasColumnTops = true;
+		for (int i = 0; i < 256 && hasColumnTops; i++) {
+			columnTops[i] = blocks.getColumnTop(i & 15, i >> 4);
+			hasColumnTops = columnTops[i] != Integer.MAX_VALUE;
+		}
+		out.writeBoolean(hasColumnTops);
+		if (hasColumnTops) {
+			for (int top : columnTops)
+				out.writeInt(top);
+		}
+
+		writeTags(out, blocks.entities);
+		writeTags(out, blocks.tile_entities);
+	}
+
+	/**
+	 * @return the biome of each 4x4x4 cell of the section, or null if the
+	 * biomes aren't the same within each cell
+	 */
+	@CheckForNull
+	private static NamespaceID[] toCells(NamespaceID[] biomes) {
+		NamespaceID[] cells = new NamespaceID[64];
+		for (int i = 0; i < 4096; i++) {
+			int x = i & 15, z = (i >> 4) & 15, y = i >> 8;
+			int cell = (x >> 2) | (z >> 2) << 2 | (y >> 2) << 4;
+			if (cells[cell] == null)
+				cells[cell] = biomes[i];
+			else if (!cells[cell].equals(biomes[i]))
+				return null;
+		}
+		return cells;
+	}
+
+	private interface EntryWriter<T> {
+		void write(DataOutputStream out, @Nonnull T value) throws IOException;
+	}
+
+	private interface KeyFunction<T> {
+		@CheckForNull
+		Object key(@CheckForNull T value);
+	}
+
+	/**
+	 * Writes a section's worth of values as a palette followed by the
+	 * indices of each position, using bytes when the palette is small enough.
+	 */
+	private static <T> void writePalette(DataOutputStream out, T[] values, KeyFunction<T> keyFunc, EntryWriter<T> writer) throws IOException {
+		Map<Object, Integer> indices = new HashMap<>();
+		List<T> palette = new ArrayList<>();
+		short[] data = new short[values.length];
+		T last = null;
+		int lastIdx = -1;
+		for (int i = 0; i < values.length; i++) {
+			T value = values[i];
+			if (lastIdx < 0 || value != last) {
+				Object key = keyFunc.key(value);
+				Integer idx = indices.get(key);
+				if (idx == null) {
+					idx = palette.size();
+					indices.put(key, idx);
+					palette.add(value);
+				}
+				last = value;
+				lastIdx = idx;
+			}
+			data[i] = (short) lastIdx;
+		}
+
+		out.writeShort(palette.size());
+		for (T value : palette) {
+			out.writeBoolean(value != null);
+			if (value != null)
+				writer.write(out, value);
+		}
+		if (palette.size() == 1)
+			return;
+		if (palette.size() <= 256) {
+			for (short idx : data)
+				out.writeByte(idx);
+		} else {
+			for (short idx : data)
+				out.writeShort(idx);
+		}
+	}
+
+	private static void writeTags(DataOutputStream out, List<TAG_Compound> tags) throws Exception {
+		out.writeInt(tags.size());
+		for (TAG_Compound tag : tags) {
+			tag.save(out);
+		}
+	}
+
+	/**
+	 * Reads chunk data written by {@link #writeBlocks(DataOutputStream, Blocks)}.
+	 */
+	static Blocks readBlocks(DataInputStream in) throws Exception {
+		int yMin = in.readInt();
+		int yMax = in.readInt();
+		int minSection = in.readInt();
+		int sectionCount = in.readInt();
+		if (sectionCount < 0 || sectionCount > 4096)
+			throw new IOException("Corrupt cached chunk");
+
+		CachedBlocks blocks = new CachedBlocks(yMin, yMax, minSection, sectionCount);
+		Map<String, NamespaceID> ids = new HashMap<>();
+		for (int s = 0; s < sectionCount; s++) {
+			if (!in.readBoolean())
+				continue;
+
+			int paletteSize = in.readUnsignedShort();
+			BlockData[] blockPalette = new BlockData[paletteSize];
+			for (int i = 0; i < paletteSize; i++) {
+				if (!in.readBoolean())
+					continue;
+				BlockData bd = new BlockData(ids.computeIfAbsent(in.readUTF(), NamespaceID::fromString));
+				int stateSize = in.readUnsignedShort();
+				for (int j = 0; j < stateSize; j++) {
+					bd.state.put(in.readUTF(), in.readUTF());
+				}
+				blockPalette[i] = BlockStateRegistry.intern(bd);
+			}
+			blocks.blockPalettes[s] = blockPalette;
+			blocks.blockIndices[s] = readIndices(in, paletteSize, 4096);
+
+			boolean cellBiomes = in.readBoolean();
+			paletteSize = in.readUnsignedShort();
+			NamespaceID[] biomePalette = new NamespaceID[paletteSize];
+			for (int i = 0; i < paletteSize; i++) {
+				if (in.readBoolean())
+					biomePalette[i] = ids.computeIfAbsent(in.readUTF(), NamespaceID::fromString);
+			}
+			blocks.biomePalettes[s] = biomePalette;
+			blocks.biomeIndices[s] = readIndices(in, paletteSize, cellBiomes ? 64 : 4096);
+		}
+
+		if (in.readBoolean()) {
+			blocks.columnTops = new int[256];
+			for (int i = 0; i < 256; i++)
+				blocks.columnTops[i] = in.readInt();
+		}
+
+		readTags(in, blocks.entities);
+		readTags(in, blocks.tile_entities);
+		return blocks;
+	}
+
+	@CheckForNull
+	private static short[] readIndices(DataInputStream in, int paletteSize, int count) throws IOException {
+		if (paletteSize == 1)
+			return null;
+		short[] data = new short[count];
+		for (int i = 0; i < count; i++) {
+			int idx = paletteSize <= 256 ? in.readUnsignedByte() : in.readUnsignedShort();
+			if (idx >= paletteSize)
+				throw new IOException("Corrupt cached chunk");
+			data[i] = (short) idx;
+		}
+		return data;
+	}
+
+	private static void readTags(DataInputStream in, List<TAG_Compound> tags) throws Exception {
+		int count = in.readInt();
+		for (int i = 0; i < count; i++) {
+			NBT_Tag tag = NBT_Tag.make(in);
+			if (!(tag instanceof TAG_Compound))
+				throw new IOException("Corrupt cached chunk");
+			tags.add((TAG_Compound) tag);
+		}
+	}
+
+	/**
+	 * Block data of a chunk loaded from the cache, stored as a palette and
+	 * palette indices per section.
+	 */
+	private static class CachedBlocks extends Blocks {
+		private final int yMin;
+		private final int yMax;
+		private final int minSection;
+		private final BlockData[][] blockPalettes;
+		/** Null for sections with a single palette entry */
+		private final short[][] blockIndices;
+		private final NamespaceID[][] biomePalettes;
+		/** Indices of each 4x4x4 cell (64) or of each position (4096) */
+		private final short[][] biomeIndices;
+		@CheckForNull
+		private int[] columnTops;
+		/** Built on first use, see {@link Blocks#getOpacityMask(int)} */
+		private final long[][] opacityMasks;
+		/** Render info of each palette entry, built on first use */
+		private final AtomicReferenceArray<BlockRenderInfo[]> renderInfos;
+
+		CachedBlocks(int yMin, int yMax, int minSection, int sectionCount) {
+			this.yMin = yMin;
+			this.yMax = yMax;
+			this.minSection = minSection;
+			blockPalettes = new BlockData[sectionCount][];
+			blockIndices = new short[sectionCount][];
+			biomePalettes = new NamespaceID[sectionCount][];
+			biomeIndices = new short[sectionCount][];
+			opacityMasks = new long[sectionCount][];
+			renderInfos = new AtomicReferenceArray<>(sectionCount);
+		}
+
+		@Override
+		public BlockData getBlockData(int x, int y, int z) {
+			int s = getSection(x, y, z);
+			if (s < 0 || blockPalettes[s] == null)
+				return null;
+			short[] indices = blockIndices[s];
+			return blockPalettes[s][indices == null ? 0 : indices[getIndex(x, y, z)]];
+		}
+
+		@Override
+		public BlockRenderInfo getRenderInfo(int x, int y, int z) {
+			int s = getSection(x, y, z);
+			if (s < 0 || blockPalettes[s] == null)
+				return null;
+			BlockRenderInfo[] infos = getRenderInfos(s);
+			short[] indices = blockIndices[s];
+			return infos[indices == null ? 0 : indices[getIndex(x, y, z)]];
+		}
+
+		private BlockRenderInfo[] getRenderInfos(int s) {
+			BlockRenderInfo[] infos = renderInfos.get(s);
+			if (infos == null) {
+				infos = BlockRenderInfo.of(blockPalettes[s]);
+				renderInfos.set(s, infos);
+			}
+			return infos;
+		}
+
+		@Nonnull
+		@Override
+		public NamespaceID getBiome(int x, int y, int z) {
+			int s = getSection(x, y, z);
+			if (s < 0 || biomePalettes[s] == null)
+				return NamespaceID.NULL;
+			short[] indices = biomeIndices[s];
+			int index = 0;
+			if (indices != null) {
+				index = indices.length == 64 ? indices[(x >> 2) | (z >> 2) << 2 | ((y & 15) >> 2) << 4] : indices[getIndex(x, y, z)];
+			}
+			NamespaceID biome = biomePalettes[s][index];
+			return biome != null ? biome : NamespaceID.NULL;
+		}
+
+		@Override
+		public int getColumnTop(int x, int z) {
+			return columnTops == null ? Integer.MAX_VALUE : columnTops[x + z * 16];
+		}
+
+		@Override
+		public BlockData[] getSectionPalette(int sectionY) {
+			int s = sectionY - minSection;
+			if (s < 0 || s >= blockPalettes.length || blockPalettes[s] == null)
+				return EMPTY_PALETTE;
+			return blockPalettes[s];
+		}
+
+		@Override
+		public BlockRenderInfo[] getSectionRenderInfos(int sectionY) {
+			int s = sectionY - minSection;
+			if (s < 0 || s >= blockPalettes.length || blockPalettes[s] == null)
+				return EMPTY_RENDER_INFOS;
+			return getRenderInfos(s);
+		}
+
+		@Override
+		public long[] getOpacityMask(int sectionY) {
+			int s = sectionY - minSection;
+			if (s < 0 || s >= blockPalettes.length || blockPalettes[s] == null)
+				return EMPTY_MASK;
+			long[] mask = opacityMasks[s];
+			if (mask == null) {
+				// racing threads build the same mask, either can be kept
+				mask = makeOpacityMask(blockPalettes[s], blockIndices[s]);
+				opacityMasks[s] = mask;
+			}
+			return mask;
+		}
+
+		@Override
+		public long estimateSize() {
+			long size = estimateEntitiesSize() + (columnTops != null ? 16 + 4 * 256 : 0);
+			for (int s = 0; s < blockPalettes.length; s++) {
+				if (blockPalettes[s] == null)
+					continue;
+				size += 16 + 4L * blockPalettes[s].length;
+				if (blockIndices[s] != null)
+					size += 16 + 2L * blockIndices[s].length + 16 + 8 * 64 + 16 + 4L * blockPalettes[s].length;
+				if (biomePalettes[s] != null)
+					size += 16 + 4L * biomePalettes[s].length;
+				if (biomeIndices[s] != null)
+					size += 16 + 2L * biomeIndices[s].length;
+			}
+			return size;
+		}
+
+		@Override
+		public int getYMin() {
+			return yMin;
+		}
+
+		@Override
+		public int getYMax() {
+			return yMax;
+		}
+
+		private int getSection(int x, int y, int z) {
+			if (x < 0 || x > 15 || z < 0 || z > 15) {
+				throw new IllegalArgumentException("Invalid relative chunk coordinate");
+			}
+			int s = Math.floorDiv(y, 16) - minSection;
+			return s < blockPalettes.length ? s : -1;
+		}
+
+		private static int getIndex(int x, int y, int z) {
+			return x + z * 16 + (y & 15) * 256;
+		}
+	}
+}
@@ -0,0 +1,328 @@
+package org.jmc;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.CheckForNull;
+
+import org.jmc.Chunk.Blocks;
+import org.jmc.Region.RawChunk;
+import org.jmc.util.ChunkKey;
+import org.jmc.util.Log;
+import org.jmc.util.LongHashSet;
+
+/**
+ * Loads the chunks of an export ahead of the threads meshing them, in stages
+ * that each have their own threads:
+ * <ol>
+ * <li>I/O: reads the compressed chunks from the region files, or the decoded
+ * ones from the disk cache,</li>
+ * <li>parse: decompresses the chunks and parses their NBT,</li>
+ * <li>decode: decodes the sections in the height range of the export.</li>
+ * </ol>
+ * The stages are linked by bounded queues, and the decoded chunks are handed
+ * to the {@link ChunkResidency} to wait for their readers. So threads waiting
+ * on a slow disk don't keep the meshing threads from running, and the stages
+ * using the CPU can be sized separately.
+ * <p>
+ * Chunks are read in the order the meshing first needs them, at most
+ * {@code lookahead} chunks ahead of it. The pipeline only saves the meshing
+ * threads work: a chunk they need before it is loaded is loaded by them as
+ * before, and the pipeline skips it.
+ * <p>
+ * The statistics show the depth of each queue and how long the threads of
+ * each stage waited: a stage whose input queue stays full, and whose
+ * previous stage waits for output, is the one holding up the export. The
+ * input of the I/O stage is the lookahead, its threads waiting for input
+ * means the meshing is the slowest stage.
+ */
+public class ChunkPipeline {
+
+	/** Capacity of the input queue of a stage, per thread of the stage */
+	private static final int QUEUE_PER_THREAD = 4;
+
+	/**
+	 * Chunk moving through the stages.
+	 */
+	private static class Item {
+		private final long chunk;
+		private final long stamp;
+		@CheckForNull
+		private RawChunk raw;
+		@CheckForNull
+		private Chunk parsed;
+
+		private Item(long chunk, long stamp) {
+			this.chunk = chunk;
+			this.stamp = stamp;
+		}
+	}
+
+	/**
+	 * Threads of a stage and their metrics.
+	 */
+	private static class Stage {
+		private final String name;
+		private final int threads;
+		@CheckForNull
+		private final BlockingQueue<Item> input;
+		private final AtomicLong processed = new AtomicLong();
+		private final AtomicLong busyNanos = new AtomicLong();
+		private final AtomicLong inputWaitNanos = new AtomicLong();
+		private final AtomicLong outputWaitNanos = new AtomicLong();
+		private final AtomicLong depthSum = new AtomicLong();
+		private final AtomicLong depthSamples = new AtomicLong();
+		private final AtomicInteger maxDepth = new AtomicInteger();
+
+		private Stage(String name, int threads, boolean hasInput) {
+			this.name = name;
+			this.threads = threads;
+			this.input = hasInput ? new ArrayBlockingQueue<Item>(threads * QUEUE_PER_THREAD) : null;
+		}
+
+		/**
+		 * Queues an item for the stage, recording the time waited by the previous stage.
+		 */
+		private void put(Item item, Stage from) throws InterruptedException {
+			long start = System.nanoTime();
+			input.put(item);
+			from.outputWaitNanos.addAndGet(System.nanoTime() - start);
+			int depth = input.size();
+			depthSum.addAndGet(depth);
+			depthSamples.incrementAndGet();
+			maxDepth.accumulateAndGet(depth, Math::max);
+		}
+
+		private Item take() throws InterruptedException {
+			long start = System.nanoTime();
+			Item item = input.take();
+			inputWaitNanos.addAndGet(System.nanoTime() - start);
+			return item;
+		}
+
+		private String getStatistics(long elapsed) {
+			double threadTime = (double) elapsed * threads / 100;
+			String queue = "";
+			if (input != null) {
+				long samples = depthSamples.get();
+				queue = String.format(", Queue avg: %.1f, max: %d/%d",
+						samples > 0 ? (double) depthSum.get() / samples : 0, maxDepth.get(), threads * QUEUE_PER_THREAD);
+			}
+			return String.format("%s (%d threads) - Chunks: %d, Busy: %.1f%%, Waiting for input: %.1f%%, Waiting for output: %.1f%%%s",
+					name, threads, processed.get(), busyNanos.get() / threadTime,
+					inputWaitNanos.get() / threadTime, outputWaitNanos.get() / threadTime, queue);
+		}
+	}
+
+	private final ChunkDataBuffer buffer;
+	private final ChunkResidency residency;
+	private final long[] loadOrder;
+	private final AtomicInteger cursor = new AtomicInteger();
+	private final Semaphore lookahead;
+	private final Stage io;
+	private final Stage parse;
+	private final Stage decode;
+	private final List<Thread> threads = new ArrayList<>();
+	private final AtomicInteger skipped = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+	private long startTime;
+	private long stopTime;
+
+	/**
+	 * @param buffer buffer the chunks are read with
+	 * @param residency residency of the export, the chunks are loaded in its slots
+	 * @param chunks {@link ChunkKey}s of the chunks that will be meshed, in order
+	 * @param area chunk coordinates of the export, neighbours outside of it aren't read
+	 * @param ioThreads number of threads reading region files
+	 * @param parseThreads number of threads decompressing and parsing chunks
+	 * @param decodeThreads number of threads decoding sections
+	 * @param lookahead maximum number of chunks loaded before the meshing needs them
+	 */
+	public ChunkPipeline(ChunkDataBuffer buffer, ChunkResidency residency, long[] chunks, Rectangle area,
+			int ioThreads, int parseThreads, int decodeThreads, int lookahead) {
+		this.buffer = buffer;
+		this.residency = residency;
+		this.loadOrder = loadOrder(chunks, area);
+		this.lookahead = new Semaphore(Math.max(1, lookahead));
+		io = new Stage("Chunk I/O", Math.max(1, ioThreads), false);
+		parse = new Stage("Chunk parse", Math.max(1, parseThreads), true);
+		decode = new Stage("Chunk decode", Math.max(1, decodeThreads), true);
+	}
+
+	/**
+	 * @return the chunks and their neighbours in the area, in the order they are first read
+	 */
+	private static long[] loadOrder(long[] chunks, Rectangle area) {
+		LongHashSet seen = new LongHashSet(chunks.length + 4 * (int) Math.sqrt(chunks.length) + 4);
+		long[] order = new long[chunks.length];
+		int n = 0;
+		for (long chunk : chunks) {
+			for (int dz = -1; dz <= 1; dz++) {
+				for (int dx = -1; dx <= 1; dx++) {
+					long key = ChunkKey.offset(chunk, dx, dz);
+					if (!area.contains(ChunkKey.x(key), ChunkKey.z(key)))
+						continue;
+					if (seen.add(key)) {
+						if (n == order.length)
+							order = Arrays.copyOf(order, n * 2);
+						order[n++] = key;
+					}
+				}
+			}
+		}
+		return Arrays.copyOf(order, n);
+	}
+
+	/**
+	 * Starts the threads of all the stages.
+	 */
+	public void start() {
+		startTime = System.nanoTime();
+		startStage(io, this::runIO);
+		startStage(parse, this::runParse);
+		startStage(decode, this::runDecode);
+	}
+
+	private void startStage(Stage stage, Runnable worker) {
+		for (int i = 0; i < stage.threads; i++) {
+			Thread thread = new Thread(() -> {
+				try {
+					worker.run();
+				} catch (RuntimeException e) {
+					Log.error("Error in " + stage.name + " thread", e, false);
+				}
+			});
+			thread.setName(stage.name.replace(' ', '-') + "-" + (i + 1));
+			thread.setPriority(Thread.NORM_PRIORITY - 1);
+			thread.setDaemon(true);
+			threads.add(thread);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Stops the threads and waits for them to end. The chunks already handed
+	 * to the residency stay in it.
+	 */
+	public void stop() throws InterruptedException {
+		for (Thread thread : threads)
+			thread.interrupt();
+		for (Thread thread : threads)
+			thread.join();
+		threads.clear();
+		stopTime = System.nanoTime();
+	}
+
+	private void runIO() {
+		try {
+			while (true) {
+				long start = System.nanoTime();
+				lookahead.acquire();
+				io.inputWaitNanos.addAndGet(System.nanoTime() - start);
+
+				int i = cursor.getAndIncrement();
+				if (i >= loadOrder.length) {
+					lookahead.release();
+					return;
+				}
+				long chunk = loadOrder[i];
+				if (!residency.needsLoad(chunk)) {
+					// the meshing got there first
+					skipped.incrementAndGet();
+					lookahead.release();
+					continue;
+				}
+
+				start = System.nanoTime();
+				Item item = new Item(chunk, buffer.getCacheStamp(chunk));
+				Blocks cached = buffer.loadCached(chunk, item.stamp);
+				if (cached == null)
+					item.raw = buffer.readChunk(chunk);
+				io.busyNanos.addAndGet(System.nanoTime() - start);
+				io.processed.incrementAndGet();
+
+				if (cached != null)
+					offer(chunk, cached);
+				else if (item.raw == null)
+					offer(chunk, null);
+				else
+					parse.put(item, io);
+			}
+		} catch (InterruptedException e) {
+			// stopped
+		}
+	}
+
+	private void runParse() {
+		try {
+			while (true) {
+				Item item = parse.take();
+				long start = System.nanoTime();
+				try {
+					item.parsed = item.raw.parse();
+					item.raw = null;
+				} catch (Exception e) {
+					fail(item, e);
+					continue;
+				} finally {
+					parse.busyNanos.addAndGet(System.nanoTime() - start);
+					parse.processed.incrementAndGet();
+				}
+				decode.put(item, parse);
+			}
+		} catch (InterruptedException e) {
+			// stopped
+		}
+	}
+
+	private void runDecode() {
+		try {
+			while (true) {
+				Item item = decode.take();
+				long start = System.nanoTime();
+				Blocks blocks;
+				try {
+					blocks = buffer.decodeBlocks(item.chunk, item.stamp, item.parsed);
+				} catch (RuntimeException e) {
+					fail(item, e);
+					continue;
+				} finally {
+					decode.busyNanos.addAndGet(System.nanoTime() - start);
+					decode.processed.incrementAndGet();
+				}
+				offer(item.chunk, blocks);
+			}
+		} catch (InterruptedException e) {
+			// stopped
+		}
+	}
+
+	private void offer(long chunk, @CheckForNull Blocks blocks) {
+		// the permit is given back once the meshing reads the chunk
+		if (!residency.offer(chunk, blocks, lookahead::release))
+			lookahead.release();
+	}
+
+	/**
+	 * Leaves a chunk that couldn't be loaded to the meshing, which reports the error.
+	 */
+	private void fail(Item item, Exception e) {
+		Log.debug("Error loading chunk " + ChunkKey.toString(item.chunk) + " ahead of the export: " + e);
+		failed.incrementAndGet();
+		lookahead.release();
+	}
+
+	public String getStatistics() {
+		long elapsed = Math.max(1, (stopTime != 0 ? stopTime : System.nanoTime()) - startTime);
+		return String.format("Chunk pipeline - Chunks: %d, Loaded by the meshing first: %d, Failed: %d%n  %s%n  %s%n  %s",
+				loadOrder.length, skipped.get(), failed.get(),
+				io.getStatistics(elapsed), parse.getStatistics(elapsed), decode.getStatistics(elapsed));
+	}
+}
@@ -0,0 +1,202 @@
+package org.jmc;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongFunction;
+
+import javax.annotation.CheckForNull;
+
+import org.jmc.Chunk.Blocks;
+import org.jmc.util.ChunkKey;
+import org.jmc.util.LongObjectMap;
+
+/**
+ * Keeps the chunks of an export in memory exactly as long as they are needed.
+ * <p>
+ * Each chunk is read when it is processed and when any of its 8 neighbours
+ * is, for face culling. Knowing the chunks of the export up front, every chunk
+ * gets a count of the exported chunks that can read it. It is decoded once,
+ * on first use, held until all of them have been processed, then dropped.
+ * With the chunks processed in Hilbert order only a narrow band of chunks
+ * around the ones being processed is held at any time, without the
+ * re-parsing caused by caches evicting chunks that are still needed.
+ * <p>
+ * Chunks can also be decoded ahead of their readers and handed to their slot,
+ * see {@link #offer(long, Blocks, Runnable)}.
+ */
+public class ChunkResidency {
+
+	/**
+	 * A chunk with readers left to process.
+	 */
+	public static class Slot {
+		private final long chunk;
+		private final AtomicInteger readers;
+		private boolean loaded = false;
+		private volatile boolean released = false;
+		@CheckForNull
+		private Blocks blocks;
+		@CheckForNull
+		private Runnable onUsed;
+
+		private Slot(long chunk, int readers) {
+			this.chunk = chunk;
+			this.readers = new AtomicInteger(readers);
+		}
+
+		@CheckForNull
+		private synchronized Blocks get(LongFunction<Blocks> loader) {
+			if (released) {
+				// reached through a reference taken before the release, don't hold it again
+				return loader.apply(chunk);
+			}
+			if (!loaded) {
+				blocks = loader.apply(chunk);
+				loaded = true;
+			}
+			return blocks;
+		}
+
+		private synchronized boolean unload() {
+			boolean wasLoaded = loaded && blocks != null;
+			blocks = null;
+			released = true;
+			return wasLoaded;
+		}
+
+		/**
+		 * Runs the callback of blocks offered to the slot, once.
+		 */
+		private void used() {
+			Runnable r;
+			synchronized (this) {
+				r = onUsed;
+				onUsed = null;
+			}
+			if (r != null)
+				r.run();
+		}
+	}
+
+	// only read once built, released slots stay in it
+	private final LongObjectMap<Slot> slots;
+	private final AtomicInteger pending;
+	private final AtomicInteger loaded = new AtomicInteger();
+	private final AtomicInteger resident = new AtomicInteger();
+	private final AtomicInteger peakResident = new AtomicInteger();
+	private final AtomicInteger prefetched = new AtomicInteger();
+
+	/**
+	 * @param chunks {@link ChunkKey}s of the chunks that will be processed
+	 */
+	public ChunkResidency(long[] chunks) {
+		slots = new LongObjectMap<>(chunks.length + 4 * (int) Math.sqrt(chunks.length) + 4);
+		for (long chunk : chunks) {
+			for (int dz = -1; dz <= 1; dz++) {
+				for (int dx = -1; dx <= 1; dx++) {
+					slots.computeIfAbsent(ChunkKey.offset(chunk, dx, dz), k -> new Slot(k, 0)).readers.incrementAndGet();
+				}
+			}
+		}
+		pending = new AtomicInteger(slots.size());
+	}
+
+	/**
+	 * @return the slot of a chunk that still has readers, null if the chunk
+	 * isn't read by the export or has been released
+	 */
+	@CheckForNull
+	public Slot getSlot(long chunk) {
+		Slot slot = slots.get(chunk);
+		return slot != null && !slot.released ? slot : null;
+	}
+
+	/**
+	 * Gets the blocks of a chunk, decoding them on the first call for the slot.
+	 * @param loader decodes the blocks of a chunk
+	 * @return the blocks, null if the chunk doesn't exist
+	 */
+	@CheckForNull
+	public Blocks load(Slot slot, LongFunction<Blocks> loader) {
+		boolean first;
+		Blocks blocks;
+		synchronized (slot) {
+			first = !slot.loaded && !slot.released;
+			blocks = slot.get(loader);
+		}
+		slot.used();
+		if (first && blocks != null) {
+			loaded.incrementAndGet();
+			peakResident.accumulateAndGet(resident.incrementAndGet(), Math::max);
+		}
+		return blocks;
+	}
+
+	/**
+	 * @return true if the chunk is read by the export and hasn't been
+	 * decoded or released yet
+	 */
+	public boolean needsLoad(long chunk) {
+		Slot slot = slots.get(chunk);
+		if (slot == null)
+			return false;
+		synchronized (slot) {
+			return !slot.loaded && !slot.released;
+		}
+	}
+
+	/**
+	 * Hands the blocks of a chunk decoded ahead of its readers to its slot.
+	 * @param blocks the blocks, null if the chunk doesn't exist
+	 * @param onUsed called once the blocks are first read or released, if they are held
+	 * @return true if the blocks are held, false if the chunk doesn't exist
+	 * or its slot was already loaded or released
+	 */
+	public boolean offer(long chunk, @CheckForNull Blocks blocks, Runnable onUsed) {
+		Slot slot = slots.get(chunk);
+		if (slot == null)
+			return false;
+		synchronized (slot) {
+			if (slot.loaded || slot.released)
+				return false;
+			slot.blocks = blocks;
+			slot.loaded = true;
+			if (blocks == null)
+				return false;
+			slot.onUsed = onUsed;
+		}
+		loaded.incrementAndGet();
+		prefetched.incrementAndGet();
+		peakResident.accumulateAndGet(resident.incrementAndGet(), Math::max);
+		return true;
+	}
+
+	/**
+	 * Records that a chunk has been processed. It and its neighbours are
+	 * released when it was the last of their readers.
+	 */
+	public void release(long chunk) {
+		for (int dz = -1; dz <= 1; dz++) {
+			for (int dx = -1; dx <= 1; dx++) {
+				Slot slot = slots.get(ChunkKey.offset(chunk, dx, dz));
+				if (slot != null && slot.readers.decrementAndGet() == 0) {
+					pending.decrementAndGet();
+					if (slot.unload())
+						resident.decrementAndGet();
+					slot.used();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return number of chunks still held in memory
+	 */
+	public int getResidentCount() {
+		return resident.get();
+	}
+
+	public String getStatistics() {
+		return String.format("Chunk residency - Decoded: %d, Prefetched: %d, Peak resident: %d, Still resident: %d, Pending: %d",
+				loaded.get(), prefetched.get(), peakResident.get(), resident.get(), pending.get());
+	}
+}
@@ -0,0 +1,182 @@
+package org.jmc;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.annotation.CheckForNull;
+
+import org.jmc.Chunk.Blocks;
+import org.jmc.util.Log;
+import org.jmc.util.LongObjectMap;
+
+/**
+ * Second cache tier for decoded chunks evicted from memory.
+ * <p>
+ * Chunks are stored deflated in the {@link ChunkDiskCache} format, in direct
+ * buffers outside of the Java heap, so a chunk needed again is rebuilt from
+ * its palettes and indices instead of being read, inflated and parsed from
+ * the region file again.
+ * <p>
+ * The buffers are fixed size slabs filled one after the other. When all of
+ * them are full the oldest slab is reused and the chunks in it are dropped.
+ */
+public class ChunkSpillCache {
+
+	private static final int MAX_SLAB_SIZE = 16 * 1024 * 1024;
+
+	private static class Entry {
+		final int slab;
+		final int offset;
+		final int length;
+
+		Entry(int slab, int offset, int length) {
+			this.slab = slab;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	private final int slabSize;
+	// guarded by this
+	private final LongObjectMap<Entry> entries = new LongObjectMap<>();
+	private final ByteBuffer[] slabs;
+	/** Chunks written to each slab */
+	private final long[][] slabKeys;
+	private final int[] slabKeyCounts;
+	private int currentSlab = 0;
+	private int position = 0;
+
+	// Statistics
+	private final AtomicLong spills = new AtomicLong();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * @param maxSize maximum memory used by the buffers, in bytes
+	 */
+	public ChunkSpillCache(long maxSize) {
+		slabSize = (int) Math.max(64 * 1024, Math.min(MAX_SLAB_SIZE, maxSize / 4));
+		int slabCount = (int) Math.max(2, maxSize / slabSize);
+		slabs = new ByteBuffer[slabCount];
+		slabKeys = new long[slabCount][16];
+		slabKeyCounts = new int[slabCount];
+	}
+
+	/**
+	 * Stores a chunk evicted from memory. Nothing is done if it's already stored.
+	 */
+	public void put(long chunk, Blocks blocks) {
+		synchronized (this) {
+			if (entries.containsKey(chunk))
+				return;
+		}
+
+		byte[] data;
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 * 1024);
+			Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+			try {
+				DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes, deflater, 8192));
+				ChunkDiskCache.writeBlocks(out, blocks);
+				out.close();
+			} finally {
+				deflater.end();
+			}
+			data = bytes.toByteArray();
+		} catch (Exception e) {
+			Log.errorOnce("Cannot spill chunk data", e, false);
+			return;
+		}
+		if (data.length > slabSize)
+			return;
+
+		synchronized (this) {
+			if (position + data.length > slabSize) {
+				currentSlab = (currentSlab + 1) % slabs.length;
+				position = 0;
+				// the oldest chunks are dropped to make room
+				long[] keys = slabKeys[currentSlab];
+				for (int i = 0; i < slabKeyCounts[currentSlab]; i++) {
+					Entry entry = entries.get(keys[i]);
+					if (entry != null && entry.slab == currentSlab) {
+						entries.remove(keys[i]);
+						dropped.incrementAndGet();
+					}
+				}
+				slabKeyCounts[currentSlab] = 0;
+			}
+			if (slabs[currentSlab] == null) {
+				slabs[currentSlab] = ByteBuffer.allocateDirect(slabSize);
+			}
+			ByteBuffer slab = slabs[currentSlab].duplicate();
+			slab.position(position);
+			slab.put(data);
+			entries.put(chunk, new Entry(currentSlab, position, data.length));
+			if (slabKeyCounts[currentSlab] == slabKeys[currentSlab].length)
+				slabKeys[currentSlab] = Arrays.copyOf(slabKeys[currentSlab], slabKeyCounts[currentSlab] * 2);
+			slabKeys[currentSlab][slabKeyCounts[currentSlab]++] = chunk;
+			position += data.length;
+		}
+		spills.incrementAndGet();
+	}
+
+	/**
+	 * Rebuilds a chunk that was spilled.
+	 * @return the chunk data or null if it isn't stored
+	 */
+	@CheckForNull
+	public Blocks get(long chunk) {
+		byte[] data;
+		synchronized (this) {
+			Entry entry = entries.get(chunk);
+			if (entry == null) {
+				misses.incrementAndGet();
+				return null;
+			}
+			data = new byte[entry.length];
+			ByteBuffer slab = slabs[entry.slab].duplicate();
+			slab.position(entry.offset);
+			slab.get(data);
+		}
+		try {
+			Blocks blocks = ChunkDiskCache.readBlocks(new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(data))));
+			hits.incrementAndGet();
+			return blocks;
+		} catch (Exception e) {
+			Log.errorOnce("Cannot read spilled chunk data", e, false);
+			synchronized (this) {
+				entries.remove(chunk);
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Drops all the chunks and frees the buffers.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		Arrays.fill(slabs, null);
+		Arrays.fill(slabKeyCounts, 0);
+		currentSlab = 0;
+		position = 0;
+	}
+
+	public String getStatistics() {
+		int size;
+		synchronized (this) {
+			size = entries.size();
+		}
+		return String.format("Spill Cache Stats - Size: %d, Spilled: %d, Hits: %d, Misses: %d, Dropped: %d",
+				size, spills.get(), hits.get(), misses.get(), dropped.get());
+	}
+}
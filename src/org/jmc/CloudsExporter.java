@@ -1,9 +1,11 @@
 package org.jmc;
 
 import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.zip.ZipEntry;
@@ -17,6 +19,7 @@ import org.jmc.registry.NamespaceID;
 import org.jmc.threading.ThreadOutputQueue;
 import org.jmc.threading.ThreadOutputQueue.ChunkOutput;
 import org.jmc.threading.WriterRunnable;
+import org.jmc.util.ChunkKey;
 import org.jmc.util.Filesystem;
 import org.jmc.util.Log;
 
@@ -116,7 +119,7 @@ public class CloudsExporter {
 		}
 
 		try {
-			queue.put(new ChunkOutput(null, faces));
+			queue.put(new ChunkOutput(ChunkKey.NONE, faces));
 		} catch (InterruptedException e) {
 			Log.error("CloudExporter interrupted!", e, false);
 		}
@@ -185,16 +188,18 @@ public class CloudsExporter {
 
 			Log.info("Exporting clouds to " + outputFileName);
 			
-			writer = new PrintWriter(new FileWriter(new File(destination, outputFileName)));
+			OutputStream stream = new BufferedOutputStream(new FileOutputStream(new File(destination, outputFileName)));
+			writer = new PrintWriter(stream);
 			
 			ThreadOutputQueue outputQueue = new ThreadOutputQueue(1);
-			WriterRunnable writeRunner = new WriterRunnable(outputQueue, writer, null, 1);
+			WriterRunnable writeRunner = new WriterRunnable(outputQueue, stream, null, 1);
 			writeRunner.setPrintUseMTL(false);
 			writeRunner.setOffset(-image.getWidth()/2, 128f/12f, -image.getHeight()/2);
 			writeRunner.setScale(12.0f);
 			
 			writer.println(Options.getObjObject() + " clouds");
 			writer.println();
+			writer.flush();
 			
 			Thread writeThread = new Thread(writeRunner);
 			writeThread.start();
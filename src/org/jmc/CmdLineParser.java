@@ -8,6 +8,7 @@ import java.util.Set;
 import org.apache.commons.cli.*;
 import org.jmc.Options.OffsetType;
 import org.jmc.registry.NamespaceID;
+import org.jmc.threading.ExportScheduler;
 import org.jmc.util.Filesystem;
 import org.jmc.util.Log;
 
@@ -66,7 +67,15 @@ public class CmdLineParser {
 	private static final Option optBlockRandomization = new Option(null, "block-randomization", false, "Allow resource pack models to randomly pick from blockstate models instead of always the first.");
 	private static final Option optRemoveDuplicates = new Option(null, "remove-dup", false, "Try harder to merge vertexes that have the same coordinates.");
 	private static final Option optOptimizeGeometry = new Option(null, "optimize-geometry", false, "Reduce size of exported files by joining adjacent faces together when possible.");
-	private static final Option optThreads = Option.builder("t").longOpt("threads").hasArg().argName("NUM").desc("Number of threads to use. Default is 8.").build();
+	private static final Option optThreads = Option.builder("t").longOpt("threads").hasArg().argName("NUM").desc("Number of threads to use, or 'auto' to measure the export and pick the number. Default is 8.").build();
+	private static final Option optIoThreads = Option.builder().longOpt("io-threads").hasArg().argName("NUM").desc("Number of threads reading region files ahead of the export. 0 lets the export threads read them. Default is 2.").build();
+	private static final Option optParseThreads = Option.builder().longOpt("parse-threads").hasArg().argName("NUM").desc("Number of threads decompressing chunks read ahead. Default is 2.").build();
+	private static final Option optDecodeThreads = Option.builder().longOpt("decode-threads").hasArg().argName("NUM").desc("Number of threads decoding chunks read ahead. Default is 2.").build();
+	private static final Option optNoMmap = new Option(null, "no-mmap", false, "Read region files with regular file I/O instead of memory mapping them.");
+	private static final Option optNoHeightmaps = new Option(null, "no-heightmaps", false, "Don't use the chunk heightmaps to skip the air above the ground, for worlds edited with tools that don't update them.");
+	private static final Option optIncremental = new Option(null, "incremental", false, "Only re-export chunks that changed since the previous export to the same file.");
+	private static final Option optChunkCache = Option.builder().longOpt("chunk-cache").hasArg().argName("DIR").desc("Cache decoded chunks in this directory to speed up later exports of the same world.").build();
+	private static final Option optChunkCacheSize = Option.builder().longOpt("chunk-cache-size").hasArg().argName("MB").desc("Maximum size of the chunk cache. Default is 2048.").build();
 	private static final Option optHelp = new Option("?", "help", false, "Displays this help");
 	
 	private static final org.apache.commons.cli.Options options = new org.apache.commons.cli.Options();
@@ -105,6 +114,14 @@ public class CmdLineParser {
 		options.addOption(optRemoveDuplicates);
 		options.addOption(optOptimizeGeometry);
 		options.addOption(optThreads);
+		options.addOption(optIoThreads);
+		options.addOption(optParseThreads);
+		options.addOption(optDecodeThreads);
+		options.addOption(optNoMmap);
+		options.addOption(optNoHeightmaps);
+		options.addOption(optIncremental);
+		options.addOption(optChunkCache);
+		options.addOption(optChunkCacheSize);
 		options.addOption(optHelp);
 	}
 	
@@ -276,7 +293,32 @@ public class CmdLineParser {
 				Options.optimiseGeometry = true;
 			}
 			if (checkOption(cmdLine, optThreads)) {
-				Options.exportThreads = Integer.parseInt(cmdLine.getOptionValue(optThreads));
+				String threads = cmdLine.getOptionValue(optThreads);
+				Options.exportThreads = threads.equalsIgnoreCase("auto") ? ExportScheduler.AUTO_THREADS : Integer.parseInt(threads);
+			}
+			if (checkOption(cmdLine, optIoThreads)) {
+				Options.ioThreads = Integer.parseInt(cmdLine.getOptionValue(optIoThreads));
+			}
+			if (checkOption(cmdLine, optParseThreads)) {
+				Options.parseThreads = Integer.parseInt(cmdLine.getOptionValue(optParseThreads));
+			}
+			if (checkOption(cmdLine, optDecodeThreads)) {
+				Options.decodeThreads = Integer.parseInt(cmdLine.getOptionValue(optDecodeThreads));
+			}
+			if (checkOption(cmdLine, optNoMmap)) {
+				Options.mapRegionFiles = false;
+			}
+			if (checkOption(cmdLine, optNoHeightmaps)) {
+				Options.useHeightmaps = false;
+			}
+			if (checkOption(cmdLine, optIncremental)) {
+				Options.incrementalExport = true;
+			}
+			if (checkOption(cmdLine, optChunkCache)) {
+				Options.chunkCacheDir = new File(cmdLine.getOptionValue(optChunkCache));
+			}
+			if (checkOption(cmdLine, optChunkCacheSize)) {
+				Options.chunkCacheMaxSize = Long.parseLong(cmdLine.getOptionValue(optChunkCacheSize)) * 1024 * 1024;
 			}
 			Options.exportWorld = true;
 			List<String> remainingArgs = cmdLine.getArgList();
@@ -0,0 +1,406 @@
+package org.jmc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.CheckForNull;
+
+import org.jmc.geom.FaceUtils.Face;
+import org.jmc.geom.UV;
+import org.jmc.geom.Vertex;
+import org.jmc.registry.NamespaceID;
+import org.jmc.threading.ThreadOutputQueue.ChunkOutput;
+import org.jmc.util.ChunkKey;
+import org.jmc.util.Hash;
+import org.jmc.util.Log;
+import org.jmc.util.LongHashSet;
+import org.jmc.util.LongObjectMap;
+
+/**
+ * Manifest of a previous export, used to do incremental re-exports.
+ * <p>
+ * The manifest stores the region file timestamps of every exported chunk
+ * together with the faces that were generated for it. When the same area is
+ * exported again with the same settings, chunks whose timestamps haven't
+ * changed reuse their stored faces instead of being read, decompressed and
+ * processed again. A chunk is only reused if none of its neighbours changed
+ * either, since the blocks at the chunk edges depend on them.
+ * <p>
+ * The new manifest is written next to the old one while exporting and
+ * replaces it once the export has finished, so an interrupted export leaves
+ * the previous manifest intact.
+ */
+public class ExportManifest {
+
+	/** Appended to the OBJ file name to get the manifest file name */
+	public static final String EXTENSION = ".manifest";
+
+	private static final int MAGIC = 0x4A4D434D;// "JMCM"
+	private static final int VERSION = 1;
+
+	private final File file;
+	private final File tmpFile;
+	/** Current region timestamps of the chunks being exported */
+	private final LongObjectMap<Long> stamps;
+	/** Entries of the previous manifest that are still up to date */
+	private final LongObjectMap<Entry> reusable;
+	@CheckForNull
+	private FileChannel oldChannel;
+	private DataOutputStream out;
+	private boolean finished = false;
+	private final AtomicInteger reusedCount = new AtomicInteger();
+
+	/** Position of a chunk's faces in the old manifest */
+	private static class Entry {
+		final long stamp;
+		final long position;
+		final int length;
+
+		Entry(long stamp, long position, int length) {
+			this.stamp = stamp;
+			this.position = position;
+			this.length = length;
+		}
+	}
+
+	private ExportManifest(File file, LongObjectMap<Long> stamps) {
+		this.file = file;
+		this.tmpFile = new File(file.getPath() + ".tmp");
+		this.stamps = stamps;
+		this.reusable = new LongObjectMap<>();
+	}
+
+	/**
+	 * Loads the manifest of the previous export (if there is one) and works
+	 * out which chunks can be reused, then starts writing the new manifest.
+	 * @param file manifest file
+	 * @param buffer buffer used to look up the current chunk timestamps
+	 * @param chunks {@link ChunkKey}s of the chunks that are going to be exported
+	 * @throws IOException if the new manifest can't be created
+	 */
+	public static ExportManifest open(File file, ChunkDataBuffer buffer, long[] chunks) throws IOException {
+		LongObjectMap<Long> stamps = new LongObjectMap<>(chunks.length);
+		for (long chunk : chunks) {
+			stamps.put(chunk, buffer.getChunkStamp(chunk));
+		}
+
+		ExportManifest manifest = new ExportManifest(file, stamps);
+		long optionsHash = hashOptions();
+		if (file.exists()) {
+			try {
+				manifest.loadPrevious(optionsHash);
+			} catch (IOException e) {
+				Log.error("Cannot read the previous export manifest, doing a full export", e, false);
+				manifest.reusable.clear();
+				manifest.closeOld();
+			}
+		}
+
+		manifest.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(manifest.tmpFile)));
+		manifest.out.writeInt(MAGIC);
+		manifest.out.writeInt(VERSION);
+		manifest.out.writeLong(optionsHash);
+
+		Log.info(String.format("Incremental export: %d of %d chunks can be reused", manifest.reusable.size(), chunks.length));
+		return manifest;
+	}
+
+	private void loadPrevious(long optionsHash) throws IOException {
+		long size = file.length();
+		LongObjectMap<Entry> entries = new LongObjectMap<>();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				Log.info("Previous export manifest is from a different version, doing a full export");
+				return;
+			}
+			if (in.readLong() != optionsHash) {
+				Log.info("Export settings changed since the previous export, doing a full export");
+				return;
+			}
+
+			long position = 16;
+			while (true) {
+				int x = in.readInt();
+				int z = in.readInt();
+				long stamp = in.readLong();
+				int length = in.readInt();
+				position += 20;
+				if (length < 0)
+					throw new IOException("Corrupt export manifest");
+				entries.put(ChunkKey.of(x, z), new Entry(stamp, position, length));
+				position += length;
+				if (position > size)
+					break;// truncated, the last entry is incomplete
+				in.skipBytes(length);
+			}
+		} catch (EOFException e) {
+			// end of the manifest
+		}
+		oldChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+
+		// chunks that are new or were modified since the previous export
+		LongHashSet changed = new LongHashSet();
+		stamps.forEach((chunk, stamp) -> {
+			Entry entry = entries.get(chunk);
+			if (entry == null || entry.stamp != stamp || entry.position + entry.length > size)
+				changed.add(chunk);
+		});
+		stamps.forEach((chunk, stamp) -> {
+			if (!isNeighbourhoodChanged(chunk, changed))
+				reusable.put(chunk, entries.get(chunk));
+		});
+	}
+
+	private static boolean isNeighbourhoodChanged(long chunk, LongHashSet changed) {
+		for (int dx = -1; dx <= 1; dx++) {
+			for (int dz = -1; dz <= 1; dz++) {
+				if (changed.contains(ChunkKey.offset(chunk, dx, dz)))
+					return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return true if the stored output of the chunk is up to date
+	 */
+	public boolean canReuse(long chunk) {
+		return reusable.containsKey(chunk);
+	}
+
+	/**
+	 * Gets the stored output of a chunk if it can be reused, and copies it
+	 * over to the new manifest.
+	 * @return the chunk output, or null if the chunk has to be processed
+	 */
+	@CheckForNull
+	public ChunkOutput reuse(long chunk) {
+		Entry entry = reusable.get(chunk);
+		if (entry == null || oldChannel == null)
+			return null;
+		try {
+			byte[] data = new byte[entry.length];
+			ByteBuffer buf = ByteBuffer.wrap(data);
+			while (buf.hasRemaining()) {
+				if (oldChannel.read(buf, entry.position + buf.position()) < 0)
+					throw new EOFException();
+			}
+			ArrayList<Face> faces = decodeFaces(data);
+			writeEntry(chunk, entry.stamp, data);
+			reusedCount.incrementAndGet();
+			return new ChunkOutput(chunk, faces);
+		} catch (ClosedChannelException e) {
+			// export was cancelled
+			return null;
+		} catch (IOException e) {
+			Log.errorOnce("Cannot read chunk from the export manifest", e, false);
+			return null;
+		}
+	}
+
+	/**
+	 * Stores the output of a processed chunk in the new manifest.
+	 */
+	public void record(ChunkOutput output) {
+		long chunk = output.getChunk();
+		Long stamp = stamps.get(chunk);
+		if (stamp == null)
+			return;
+		try {
+			writeEntry(chunk, stamp, encodeFaces(output.getFaces()));
+		} catch (IOException e) {
+			Log.errorOnce("Cannot write chunk to the export manifest", e, false);
+		}
+	}
+
+	private synchronized void writeEntry(long chunk, long stamp, byte[] data) throws IOException {
+		if (finished)
+			return;
+		out.writeInt(ChunkKey.x(chunk));
+		out.writeInt(ChunkKey.z(chunk));
+		out.writeLong(stamp);
+		out.writeInt(data.length);
+		out.write(data);
+	}
+
+	/**
+	 * Replaces the old manifest with the new one. Should only be called once
+	 * all the chunks have been exported.
+	 */
+	public synchronized void finish() throws IOException {
+		if (finished)
+			return;
+		finished = true;
+		out.close();
+		closeOld();
+		Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		Log.info(String.format("Incremental export: reused %d of %d chunks", reusedCount.get(), stamps.size()));
+	}
+
+	/**
+	 * Discards the new manifest, keeping the old one. Does nothing if
+	 * {@link #finish()} was already called.
+	 */
+	public synchronized void abort() {
+		if (finished)
+			return;
+		finished = true;
+		try {
+			out.close();
+		} catch (IOException e) {
+			// the file is deleted anyway
+		}
+		closeOld();
+		if (tmpFile.exists() && !tmpFile.delete())
+			Log.debug("Cannot delete " + tmpFile.getAbsolutePath());
+	}
+
+	private void closeOld() {
+		if (oldChannel != null) {
+			try {
+				oldChannel.close();
+			} catch (IOException e) {
+				Log.debug("Cannot close export manifest: " + e);
+			}
+			oldChannel = null;
+		}
+	}
+
+	/**
+	 * Hash of the settings that affect the generated faces. If any of them
+	 * change the previous manifest can't be used.
+	 */
+	private static long hashOptions() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(Version.VERSION()).append('|').append(Version.COMMIT()).append('|');
+		sb.append(Options.worldDir.getAbsolutePath()).append('|').append(Options.dimension).append('|');
+		sb.append(Options.minX).append(',').append(Options.minY).append(',').append(Options.minZ).append('|');
+		sb.append(Options.maxX).append(',').append(Options.maxY).append(',').append(Options.maxZ).append('|');
+		sb.append(Options.objectPerMaterial).append(Options.objectPerMaterialOcclusion);
+		sb.append(Options.objectPerBlock).append(Options.objectPerBlockOcclusion);
+		sb.append(Options.doubleSidedFaces).append(Options.randBlockVariations).append(Options.convertOres);
+		sb.append(Options.singleMaterial).append(Options.optimiseGeometry).append(Options.renderSides);
+		sb.append(Options.renderEntities).append(Options.renderBiomes).append(Options.renderUnknown).append('|');
+		sb.append(Options.excludeBlocksIsWhitelist).append(new TreeSet<>(Options.excludeBlocks)).append('|');
+		synchronized (Options.resourcePacks) {
+			for (File pack : Options.resourcePacks) {
+				sb.append(pack.getAbsolutePath()).append(':').append(pack.lastModified()).append('|');
+			}
+		}
+
+		return Hash.fnv1a64(sb);
+	}
+
+	private static byte[] encodeFaces(ArrayList<Face> faces) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(faces.size() * 128 + 16);
+		DataOutputStream data = new DataOutputStream(bytes);
+
+		Map<NamespaceID, Integer> textures = new HashMap<>();
+		ArrayList<NamespaceID> textureList = new ArrayList<>();
+		for (Face f : faces) {
+			if (f.texture != null && !textures.containsKey(f.texture)) {
+				textures.put(f.texture, textureList.size());
+				textureList.add(f.texture);
+			}
+		}
+		data.writeInt(textureList.size());
+		for (NamespaceID tex : textureList) {
+			data.writeUTF(tex.toString());
+		}
+
+		data.writeInt(faces.size());
+		for (Face f : faces) {
+			data.writeInt(f.texture == null ? -1 : textures.get(f.texture));
+			data.writeInt(f.mtl_idx);
+			data.writeInt(f.chunk_idx);
+			writeVertices(data, f.vertices);
+			writeVertices(data, f.norms);
+			if (f.uvs == null) {
+				data.writeInt(-1);
+			} else {
+				data.writeInt(f.uvs.length);
+				for (UV uv : f.uvs) {
+					data.writeFloat(uv.u);
+					data.writeFloat(uv.v);
+				}
+			}
+		}
+		data.flush();
+		return bytes.toByteArray();
+	}
+
+	private static void writeVertices(DataOutputStream data, Vertex[] vertices) throws IOException {
+		if (vertices == null) {
+			data.writeInt(-1);
+			return;
+		}
+		data.writeInt(vertices.length);
+		for (Vertex v : vertices) {
+			data.writeDouble(v.x);
+			data.writeDouble(v.y);
+			data.writeDouble(v.z);
+		}
+	}
+
+	private static ArrayList<Face> decodeFaces(byte[] bytes) throws IOException {
+		DataInputStream data = new DataInputStream(new ByteArrayInputStream(bytes));
+
+		NamespaceID[] textures = new NamespaceID[data.readInt()];
+		for (int i = 0; i < textures.length; i++) {
+			textures[i] = NamespaceID.fromString(data.readUTF());
+		}
+
+		int count = data.readInt();
+		ArrayList<Face> faces = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			Face f = new Face();
+			int tex = data.readInt();
+			f.texture = tex < 0 ? null : textures[tex];
+			f.mtl_idx = data.readInt();
+			f.chunk_idx = data.readInt();
+			f.vertices = readVertices(data);
+			f.norms = readVertices(data);
+			int uvCount = data.readInt();
+			if (uvCount >= 0) {
+				f.uvs = new UV[uvCount];
+				for (int j = 0; j < uvCount; j++) {
+					f.uvs[j] = new UV(data.readFloat(), data.readFloat());
+				}
+			}
+			faces.add(f);
+		}
+		return faces;
+	}
+
+	@CheckForNull
+	private static Vertex[] readVertices(DataInputStream data) throws IOException {
+		int count = data.readInt();
+		if (count < 0)
+			return null;
+		Vertex[] vertices = new Vertex[count];
+		for (int i = 0; i < count; i++) {
+			vertices[i] = new Vertex(data.readDouble(), data.readDouble(), data.readDouble());
+		}
+		return vertices;
+	}
+}
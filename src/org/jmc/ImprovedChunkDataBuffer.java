@@ -1,6 +1,5 @@
 package org.jmc;
 
-import java.awt.Point;
 import java.awt.Rectangle;
 import java.lang.management.ManagementFactory;
 import java.lang.management.MemoryMXBean;
@@ -10,54 +9,58 @@ import org.jmc.Chunk.Blocks;
 import org.jmc.util.CachedGetter;
 import org.jmc.util.ChunkDataPool;
 import org.jmc.util.Log;
-import org.jmc.util.SmartChunkCache;
+import org.jmc.util.WeightedChunkCache;
 
 import javax.annotation.CheckForNull;
 
 /**
- * Improved chunk data buffer that uses smart caching and memory pooling
- * to reduce garbage collection pressure and improve performance.
+ * Improved chunk data buffer that uses a weighted concurrent cache and memory
+ * pooling to reduce garbage collection pressure and improve performance.
  * 
  * Extends ChunkDataBuffer to maintain compatibility with existing code.
  */
 public class ImprovedChunkDataBuffer extends ChunkDataBuffer {
 
-    private final SmartChunkCache chunkCache;
+    private final WeightedChunkCache chunkCache;
+    private final ChunkSpillCache spillCache;
     private final ChunkDataPool dataPool;
     private final MemoryMXBean memoryBean;
     
     // Configuration
-    private static final int DEFAULT_CACHE_SIZE = 200; // Chunks to cache
     private static final int DEFAULT_POOL_SIZE = 50;   // Pooled objects
     
     public ImprovedChunkDataBuffer(int xmin, int xmax, int ymin, int ymax, int zmin, int zmax) {
         super(xmin, xmax, ymin, ymax, zmin, zmax);
         
-        // Calculate optimal cache size based on available memory
+        // Calculate cache weight based on available memory
         long availableMemory = Runtime.getRuntime().maxMemory();
-        int optimalCacheSize = calculateOptimalCacheSize(availableMemory);
+        long cacheWeight = calculateCacheWeight(availableMemory);
         
-        this.chunkCache = new SmartChunkCache(optimalCacheSize);
+        // chunks evicted from the heap are kept compressed off the heap
+        this.spillCache = new ChunkSpillCache(calculateSpillSize(availableMemory));
+        this.chunkCache = new WeightedChunkCache(cacheWeight, spillCache::put);
         this.dataPool = new ChunkDataPool(DEFAULT_POOL_SIZE);
         this.memoryBean = ManagementFactory.getMemoryMXBean();
         
-        Log.info(String.format("Initialized improved chunk buffer - Cache size: %d, Pool size: %d, Available memory: %dMB",
-                optimalCacheSize, DEFAULT_POOL_SIZE, availableMemory / 1024 / 1024));
+        Log.info(String.format("Initialized improved chunk buffer - Cache weight: %dMB, Pool size: %d, Available memory: %dMB",
+                cacheWeight / 1024 / 1024, DEFAULT_POOL_SIZE, availableMemory / 1024 / 1024));
     }
     
     /**
-     * Calculate optimal cache size based on available memory.
+     * Calculate the cache weight, in bytes, based on available memory.
+     * Chunks are weighed by their estimated decoded size.
      */
-    private int calculateOptimalCacheSize(long availableMemory) {
-        // Estimate 2MB per cached chunk
-        long estimatedChunkSize = 2 * 1024 * 1024;
-        
+    private long calculateCacheWeight(long availableMemory) {
         // Use up to 25% of available memory for chunk cache
-        long cacheMemory = availableMemory / 4;
-        int calculatedSize = (int) (cacheMemory / estimatedChunkSize);
-        
-        // Clamp between reasonable bounds
-        return Math.max(50, Math.min(calculatedSize, 1000));
+        return Math.max(16L * 1024 * 1024, availableMemory / 4);
+    }
+    
+    /**
+     * Calculate the off-heap spill size, in bytes. Direct memory is limited
+     * to the max heap size by default.
+     */
+    private long calculateSpillSize(long availableMemory) {
+        return Math.min(1024L * 1024 * 1024, availableMemory / 4);
     }
     
     /**
@@ -67,6 +70,7 @@ public class ImprovedChunkDataBuffer extends ChunkDataBuffer {
     public synchronized void removeAllChunks() {
         super.removeAllChunks();
         chunkCache.clear();
+        spillCache.clear();
         dataPool.clear();
         
         Log.debug("All chunks removed from improved buffer");
@@ -84,18 +88,30 @@ public class ImprovedChunkDataBuffer extends ChunkDataBuffer {
      * Get blocks for a chunk, using smart caching.
      */
     @Override
-    public Blocks getBlocks(Point p) {
+    public Blocks getBlocks(long chunk) {
+        // chunks held for the export are decoded once and released when done
+        if (isResident(chunk)) {
+            return super.getBlocks(chunk);
+        }
+        
         // Try cache first
-        Blocks cachedBlocks = chunkCache.get(p);
+        Blocks cachedBlocks = chunkCache.get(chunk);
         if (cachedBlocks != null) {
             return cachedBlocks;
         }
         
+        // Rebuild chunks that were evicted before reading the region again
+        Blocks blocks = spillCache.get(chunk);
+        if (blocks != null) {
+            chunkCache.put(chunk, blocks);
+            return blocks;
+        }
+        
         // Cache miss - use parent implementation and cache result
-        Blocks blocks = super.getBlocks(p);
+        blocks = super.getBlocks(chunk);
         if (blocks != null) {
             // Add to cache
-            chunkCache.put(p, blocks);
+            chunkCache.put(chunk, blocks);
         }
         
         return blocks;
@@ -108,9 +124,10 @@ public class ImprovedChunkDataBuffer extends ChunkDataBuffer {
         MemoryUsage heapUsage = memoryBean.getHeapMemoryUsage();
         double memoryUsageRatio = (double) heapUsage.getUsed() / heapUsage.getMax();
         
-        return String.format("Buffer Memory - Heap Usage: %.1f%%, %s, %s",
+        return String.format("Buffer Memory - Heap Usage: %.1f%%, %s, %s, %s",
                 memoryUsageRatio * 100,
                 chunkCache.getStatistics(),
+                spillCache.getStatistics(),
                 dataPool.getStatistics());
     }
     
@@ -120,6 +137,8 @@ public class ImprovedChunkDataBuffer extends ChunkDataBuffer {
     public void logPerformanceStats() {
         Log.info(getMemoryStats());
         chunkCache.logStatistics();
+        Log.info(spillCache.getStatistics());
+        Log.info(getRegionStatistics());
         dataPool.logStatistics();
     }
     
@@ -141,4 +160,4 @@ public class ImprovedChunkDataBuffer extends ChunkDataBuffer {
     }
     
     // XZ and XY boundaries are inherited from parent class
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -0,0 +1,104 @@
+package org.jmc.NBT;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.annotation.CheckForNull;
+
+/**
+ * Path filter used by {@link NBT_Reader} to select which tags to load.
+ * <p>
+ * A filter lists the names of the compound elements to keep, each with its
+ * own filter for the contents of that element. Elements of a list are
+ * filtered with the filter of the list itself. {@link #ALL} keeps a whole
+ * subtree.
+ * <p>
+ * Example, keeping only the Y and block_states of each section:
+ * <pre>
+ * new NBT_Filter().include("sections", new NBT_Filter().include("Y").include("block_states"))
+ * </pre>
+ */
+public class NBT_Filter {
+
+	/**
+	 * Filter that keeps everything.
+	 */
+	public static final NBT_Filter ALL = new NBT_Filter(true);
+
+	final boolean all;
+	private final List<Child> children = new ArrayList<>();
+
+	static class Child {
+		final String name;
+		/** Name as modified UTF-8, the way it's stored in the NBT */
+		final byte[] nameBytes;
+		final NBT_Filter filter;
+
+		Child(String name, NBT_Filter filter) {
+			this.name = name;
+			this.filter = filter;
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			try {
+				new DataOutputStream(bytes).writeUTF(name);
+			} catch (IOException e) {
+				throw new IllegalArgumentException("Invalid tag name " + name, e);
+			}
+			this.nameBytes = Arrays.copyOfRange(bytes.toByteArray(), 2, bytes.size());
+		}
+	}
+
+	/**
+	 * Creates a filter that doesn't keep anything until elements are
+	 * {@link #include(String) included}.
+	 */
+	public NBT_Filter() {
+		this(false);
+	}
+
+	private NBT_Filter(boolean all) {
+		this.all = all;
+	}
+
+	/**
+	 * Keeps the whole element with the given name.
+	 * @return this filter
+	 */
+	public NBT_Filter include(String name) {
+		return include(name, ALL);
+	}
+
+	/**
+	 * Keeps the element with the given name, filtering its contents.
+	 * @return this filter
+	 */
+	public NBT_Filter include(String name, NBT_Filter filter) {
+		if (all)
+			throw new UnsupportedOperationException("Can't add to NBT_Filter.ALL");
+		children.add(new Child(name, filter));
+		return this;
+	}
+
+	/**
+	 * Finds the child matching a tag name, comparing the raw name bytes so
+	 * that no String has to be made for tags that are skipped.
+	 */
+	@CheckForNull
+	Child match(byte[] name, int length) {
+		for (int i = 0; i < children.size(); i++) {
+			Child child = children.get(i);
+			byte[] childName = child.nameBytes;
+			if (childName.length != length)
+				continue;
+			int j = 0;
+			while (j < length && childName[j] == name[j])
+				j++;
+			if (j == length)
+				return child;
+		}
+		return null;
+	}
+}
@@ -0,0 +1,210 @@
+package org.jmc.NBT;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Selective NBT reader.
+ * <p>
+ * Unlike {@link NBT_Tag#make(InputStream)}, which builds the whole tag tree,
+ * this only builds the tags matched by a {@link NBT_Filter}. Everything else
+ * is skipped using the length prefixes of the payloads, without allocating
+ * anything for it, so large unused tags (lighting, heightmaps, structures...)
+ * cost little more than skipping their bytes in the stream.
+ */
+public class NBT_Reader {
+
+	private final DataInputStream in;
+	private byte[] nameBuf = new byte[64];
+
+	/**
+	 * @param is stream located at the start of the root tag
+	 */
+	public NBT_Reader(InputStream is) {
+		in = is instanceof DataInputStream ? (DataInputStream) is : new DataInputStream(is);
+	}
+
+	/**
+	 * Reads the root tag, keeping only what matches the filter.
+	 * @param filter filter for the contents of the root tag
+	 * @return the root tag
+	 * @throws Exception if there is an error parsing the stream
+	 */
+	public NBT_Tag read(NBT_Filter filter) throws Exception {
+		byte type = in.readByte();
+		if (type == 0)
+			return new TAG_End("");
+		String name = in.readUTF();
+		return readPayload(type, name, filter);
+	}
+
+	private NBT_Tag readPayload(byte type, String name, NBT_Filter filter) throws Exception {
+		switch (type) {
+		case 9:
+			return readList(name, filter);
+		case 10:
+			return readCompound(name, filter);
+		default:
+			NBT_Tag tag = newTag(type, name);
+			tag.parse(in);
+			return tag;
+		}
+	}
+
+	private TAG_Compound readCompound(String name, NBT_Filter filter) throws Exception {
+		TAG_Compound compound = new TAG_Compound(name);
+		while (true) {
+			byte type = in.readByte();
+			if (type == 0)
+				return compound;
+
+			if (filter.all) {
+				compound.elements.add(readPayload(type, in.readUTF(), NBT_Filter.ALL));
+				continue;
+			}
+
+			int nameLength = in.readUnsignedShort();
+			if (nameBuf.length < nameLength)
+				nameBuf = new byte[nameLength];
+			in.readFully(nameBuf, 0, nameLength);
+			NBT_Filter.Child child = filter.match(nameBuf, nameLength);
+			if (child == null) {
+				skipPayload(type);
+			} else {
+				compound.elements.add(readPayload(type, child.name, child.filter));
+			}
+		}
+	}
+
+	private TAG_List readList(String name, NBT_Filter filter) throws Exception {
+		TAG_List list = new TAG_List(name);
+		list.type = in.readByte();
+		int size = in.readInt();
+		if (size < 0)
+			throw new IOException("Negative NBT list size: " + size);
+		list.elements = new NBT_Tag[size];
+		for (int i = 0; i < size; i++) {
+			list.elements[i] = readPayload(list.type, "", filter);
+		}
+		return list;
+	}
+
+	private void skipPayload(byte type) throws IOException {
+		switch (type) {
+		case 1:
+			skip(1);
+			break;
+		case 2:
+			skip(2);
+			break;
+		case 3:
+		case 5:
+			skip(4);
+			break;
+		case 4:
+		case 6:
+			skip(8);
+			break;
+		case 7:
+			skip(in.readInt());
+			break;
+		case 8:
+			skip(in.readUnsignedShort());
+			break;
+		case 9:
+			byte elementType = in.readByte();
+			int size = in.readInt();
+			int fixedSize = fixedSize(elementType);
+			if (fixedSize >= 0) {
+				skip((long) fixedSize * size);
+			} else {
+				for (int i = 0; i < size; i++) {
+					skipPayload(elementType);
+				}
+			}
+			break;
+		case 10:
+			while (true) {
+				byte t = in.readByte();
+				if (t == 0)
+					break;
+				skip(in.readUnsignedShort());
+				skipPayload(t);
+			}
+			break;
+		case 11:
+			skip(4L * in.readInt());
+			break;
+		case 12:
+			skip(8L * in.readInt());
+			break;
+		default:
+			throw new IOException("NBT_Tag type error: " + type);
+		}
+	}
+
+	/**
+	 * @return the size of a payload of the given type, or -1 if it isn't fixed
+	 */
+	private static int fixedSize(byte type) {
+		switch (type) {
+		case 0:// empty lists have the end type
+			return 0;
+		case 1:
+			return 1;
+		case 2:
+			return 2;
+		case 3:
+		case 5:
+			return 4;
+		case 4:
+		case 6:
+			return 8;
+		default:
+			return -1;
+		}
+	}
+
+	private void skip(long n) throws IOException {
+		if (n < 0)
+			throw new IOException("Negative NBT payload length");
+		while (n > 0) {
+			long skipped = in.skip(n);
+			if (skipped <= 0) {
+				if (in.read() < 0)
+					throw new EOFException();
+				skipped = 1;
+			}
+			n -= skipped;
+		}
+	}
+
+	private static NBT_Tag newTag(byte type, String name) throws IOException {
+		switch (type) {
+		case 1:
+			return new TAG_Byte(name);
+		case 2:
+			return new TAG_Short(name);
+		case 3:
+			return new TAG_Int(name);
+		case 4:
+			return new TAG_Long(name);
+		case 5:
+			return new TAG_Float(name);
+		case 6:
+			return new TAG_Double(name);
+		case 7:
+			return new TAG_Byte_Array(name);
+		case 8:
+			return new TAG_String(name);
+		case 11:
+			return new TAG_Int_Array(name);
+		case 12:
+			return new TAG_Long_Array(name);
+		default:
+			throw new IOException("NBT_Tag type error: " + type);
+		}
+	}
+}
@@ -8,8 +8,8 @@
 package org.jmc.NBT;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 
 /**
@@ -32,14 +32,109 @@ public class TAG_Compound extends NBT_Tag {
 	 */
 	public TAG_Compound(String name) {
 		super(name);
-		elements=new LinkedList<NBT_Tag>();
+		elements=new ElementList();
 	}
 	
 	public TAG_Compound(String name, List<NBT_Tag> tags) {
 		super(name);
-		elements=new LinkedList<NBT_Tag>();
+		elements=new ElementList();
 		elements.addAll(tags);
 	}
+	
+	/**
+	 * Element list with a hash index of the element names, so that
+	 * {@link TAG_Compound#getElement(String)} doesn't have to scan the list.
+	 * The index is built on the first lookup and rebuilt on the next lookup
+	 * after the list has been modified. Small compounds are just scanned.
+	 */
+	@SuppressWarnings("serial")
+	private static class ElementList extends ArrayList<NBT_Tag> {
+		/** Compounds smaller than this aren't indexed */
+		private static final int INDEX_THRESHOLD = 8;
+		
+		/** ArrayList.set doesn't count as a modification, but it changes the names */
+		private int setCount = 0;
+		private Index index;
+		
+		/**
+		 * Open addressing table of element positions (+1, 0 is empty).
+		 * Immutable so it can be published to other threads without locking.
+		 */
+		private static class Index {
+			final int version;
+			final int[] table;
+			
+			Index(int version, int[] table) {
+				this.version = version;
+				this.table = table;
+			}
+		}
+		
+		ElementList() {
+			super(4);
+		}
+		
+		@Override
+		public NBT_Tag set(int idx, NBT_Tag element) {
+			setCount++;
+			return super.set(idx, element);
+		}
+		
+		private int version() {
+			return modCount + setCount;
+		}
+		
+		private static int slot(int hash, int mask) {
+			return (hash ^ (hash >>> 16)) & mask;
+		}
+		
+		NBT_Tag find(String name) {
+			int size = size();
+			if (size < INDEX_THRESHOLD) {
+				for (int i = 0; i < size; i++) {
+					NBT_Tag tag = get(i);
+					if (name.equals(tag.name)) return tag;
+				}
+				return null;
+			}
+			
+			Index idx = index;
+			if (idx == null || idx.version != version()) {
+				idx = buildIndex();
+				index = idx;
+			}
+			int[] table = idx.table;
+			int mask = table.length - 1;
+			for (int slot = slot(name.hashCode(), mask); ; slot = (slot + 1) & mask) {
+				int pos = table[slot];
+				if (pos == 0) return null;
+				NBT_Tag tag = get(pos - 1);
+				if (name.equals(tag.name)) return tag;
+			}
+		}
+		
+		private Index buildIndex() {
+			int version = version();
+			int size = size();
+			int[] table = new int[Integer.highestOneBit(size * 2 - 1) << 1];// at most half full
+			int mask = table.length - 1;
+			for (int i = 0; i < size; i++) {
+				String name = get(i).name;
+				int slot = slot(name.hashCode(), mask);
+				boolean duplicate = false;
+				while (table[slot] != 0) {
+					if (name.equals(get(table[slot] - 1).name)) {
+						// keep the first one, same as a scan would
+						duplicate = true;
+						break;
+					}
+					slot = (slot + 1) & mask;
+				}
+				if (!duplicate) table[slot] = i + 1;
+			}
+			return new Index(version, table);
+		}
+	}
 
 	/**
 	 * Loading method. (see NBT_Tag)
@@ -69,6 +164,9 @@ public class TAG_Compound extends NBT_Tag {
 	 */
 	public NBT_Tag getElement(String name)
 	{	
+		if (elements instanceof ElementList)
+			return ((ElementList) elements).find(name);
+		
 		Iterator<NBT_Tag> iter=elements.iterator();
 		while(iter.hasNext())
 		{
@@ -62,7 +62,7 @@ public class TAG_Long_Array extends NBT_Tag {
 	 * Saving method.  (see NBT_Tag)
 	 */
 	protected void write(DataOutputStream stream) throws Exception {
-		stream.writeLong(data.length);
+		stream.writeInt(data.length);
 		for(int i=0; i<data.length; i++)
 			stream.writeLong(data[i]);
 		
@@ -1,13 +1,18 @@
 package org.jmc;
 
 import java.awt.Point;
+import java.awt.Rectangle;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
@@ -18,12 +23,13 @@ import org.jmc.Options.OffsetType;
 import org.jmc.geom.Vertex;
 import org.jmc.models.Banner;
 import org.jmc.registry.Registries;
+import org.jmc.threading.ExportScheduler;
 import org.jmc.threading.ReaderRunnable;
-import org.jmc.threading.ThreadInputQueue;
 import org.jmc.threading.ThreadOutputQueue;
 import org.jmc.threading.WriterRunnable;
 import org.jmc.util.Filesystem;
-import org.jmc.util.Hilbert.HilbertComparator;
+import org.jmc.util.ChunkKey;
+import org.jmc.util.Hilbert;
 import org.jmc.util.Log;
 import org.jmc.util.Messages;
 
@@ -72,8 +78,10 @@ public class ObjExporter {
 			return;
 		}
 		
-		ArrayList<Thread> threads = new ArrayList<>(Options.exportThreads);
 		Thread writeThread = null;
+		ChunkPipeline pipeline = null;
+		ExportManifest manifest = null;
+		ImprovedChunkDataBuffer chunk_buffer = null;
 		
 		long exportTimer = System.nanoTime();
 
@@ -87,7 +95,8 @@ public class ObjExporter {
 				return;
 			}
 
-			PrintWriter obj_writer = new PrintWriter(objfile, StandardCharsets.UTF_8.name());
+			OutputStream obj_stream = new BufferedOutputStream(new FileOutputStream(objfile), 1 << 16);
+			PrintWriter obj_writer = new PrintWriter(new OutputStreamWriter(obj_stream, StandardCharsets.UTF_8));
 			
 			if (progress != null)
 				progress.setMessage(Messages.getString("ExportOptions.Progress.OBJ"));
@@ -127,13 +136,12 @@ public class ObjExporter {
 			int chunksToDo = (ce.x - cs.x + 1) * (ce.y - cs.y + 1);
 
 			// Use improved chunk buffer with smart caching and memory pooling
-			ImprovedChunkDataBuffer chunk_buffer = new ImprovedChunkDataBuffer(Options.minX, Options.maxX, Options.minY,
+			chunk_buffer = new ImprovedChunkDataBuffer(Options.minX, Options.maxX, Options.minY,
 					Options.maxY, Options.minZ, Options.maxZ);
 			
-			ThreadInputQueue inputQueue = new ThreadInputQueue();
-			ThreadOutputQueue outputQueue = new ThreadOutputQueue(Options.exportThreads);
+			ThreadOutputQueue outputQueue = new ThreadOutputQueue(ExportScheduler.outputWindow(Options.exportThreads));
 
-			WriterRunnable writeRunner = new WriterRunnable(outputQueue, obj_writer, progress, chunksToDo);
+			WriterRunnable writeRunner = new WriterRunnable(outputQueue, obj_stream, progress, chunksToDo);
 			writeRunner.setOffset(oxs, oys, ozs);
 			writeRunner.setScale(Options.scale);
 			
@@ -152,46 +160,64 @@ public class ObjExporter {
 				writeRunner.setPrintUseMTL(false);
 			}*///TODO fix single tex export
 			
-			Log.info("Processing chunks...");
-			
-			for (int i = 0; i < Options.exportThreads; i++) {
-				Thread thread = new Thread(new ReaderRunnable(chunk_buffer, inputQueue, outputQueue));
-				thread.setName("ReadThread-" + i);
-				thread.setPriority(Thread.NORM_PRIORITY - 1);
-				threads.add(thread);
-				thread.start();
-			}
-
-			writeThread = new Thread(writeRunner);
-			writeThread.setName("WriteThread");
-			writeThread.start();
-			
-			long objTimer = System.nanoTime();
-			
-			ArrayList<Point> chunkList = new ArrayList<>();
+			long[] chunkList = new long[chunksToDo];
 			
 			// loop through the chunks selected by the user
+			int chunkCount = 0;
 			for (int cx = cs.x; cx <= ce.x; cx++) {
 				for (int cz = cs.y; cz <= ce.y; cz++) {
-					chunkList.add(new Point(cx, cz));
+					chunkList[chunkCount++] = ChunkKey.of(cx, cz);
 				}
 			}
 			
-			chunkList.sort(new HilbertComparator(Math.max(ce.x - cs.x, ce.y - cs.y)));
+			Hilbert.sort(chunkList, Math.max(ce.x - cs.x, ce.y - cs.y));
 			
-			for (Point chunk : chunkList) {
-				inputQueue.add(chunk);
+			// hold each chunk until it and its neighbours are processed
+			ChunkResidency residency = new ChunkResidency(chunkList);
+			chunk_buffer.setResidency(residency);
+			
+			if (Options.incrementalExport) {
+				manifest = ExportManifest.open(new File(Options.outputDir, Options.objFileName + ExportManifest.EXTENSION),
+						chunk_buffer, chunkList);
 			}
 			
-			inputQueue.finish();
+			Log.info("Processing chunks...");
 			
-			long objTimer2 = System.nanoTime();
+			if (Options.ioThreads > 0) {
+				// chunks reused from the manifest aren't read
+				long[] meshed = chunkList;
+				if (manifest != null) {
+					final ExportManifest m = manifest;
+					meshed = Arrays.stream(chunkList).filter(c -> !m.canReuse(c)).toArray();
+				}
+				// load the chunks of the batches being meshed ahead of them
+				pipeline = new ChunkPipeline(chunk_buffer, residency, meshed,
+						new Rectangle(cs.x, cs.y, ce.x - cs.x + 1, ce.y - cs.y + 1), Options.ioThreads,
+						Options.parseThreads, Options.decodeThreads, 2 * ExportScheduler.batchSize(Options.exportThreads));
+				pipeline.start();
+			}
 			
-			for (Thread thread : threads){
-				thread.join();
+			final ExportManifest readerManifest = manifest;
+			final ImprovedChunkDataBuffer readerBuffer = chunk_buffer;
+			ExportScheduler scheduler = new ExportScheduler(chunkList, Options.exportThreads,
+					() -> new ReaderRunnable(readerBuffer, outputQueue, writeRunner.createSerializer(), readerManifest), outputQueue);
+
+			// the chunks are written straight to the stream
+			obj_writer.flush();
+			writeThread = new Thread(writeRunner);
+			writeThread.setName("WriteThread");
+			writeThread.start();
+			
+			long objTimer = System.nanoTime();
+			
+			scheduler.run();
+			Log.debug("Reading Chunks:" + (System.nanoTime() - objTimer)/1000000000d);
+			if (pipeline != null) {
+				pipeline.stop();
+				Log.info(pipeline.getStatistics());
+				pipeline = null;
 			}
-			Log.debug("Reading Chunks:" + (System.nanoTime() - objTimer2)/1000000000d);
-			objTimer2 = System.nanoTime();
+			long objTimer2 = System.nanoTime();
 			
 			outputQueue.waitUntilEmpty();
 			writeThread.interrupt();
@@ -202,6 +228,8 @@ public class ObjExporter {
 			
 			// Log final performance statistics before cleanup
 			chunk_buffer.logPerformanceStats();
+			Log.info(residency.getStatistics());
+			chunk_buffer.setResidency(null);
 			
 			chunk_buffer.removeAllChunks();
 
@@ -210,6 +238,9 @@ public class ObjExporter {
 			if (Thread.interrupted())
 				return;
 
+			if (manifest != null)
+				manifest.finish();
+
 			if (progress != null)
 				progress.setProgress(1);
 			Log.info("Saved model to " + objfile.getAbsolutePath());
@@ -397,12 +428,25 @@ public class ObjExporter {
 		} catch (Exception e) {
 			Log.error("Error while exporting OBJ:", e);
 		} finally {
-			for (Thread t : threads) {
-				t.interrupt();
-			}
 			if (writeThread != null) {
 				writeThread.interrupt();
 			}
+			if (pipeline != null) {
+				try {
+					pipeline.stop();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			if (manifest != null) {
+				// keeps the previous manifest if the export didn't finish
+				manifest.abort();
+			}
+			if (chunk_buffer != null) {
+				// closes the region files still open if the export didn't finish
+				chunk_buffer.setResidency(null);
+				chunk_buffer.removeAllChunks();
+			}
 			// Removed manual System.gc() call - let JVM manage GC automatically
 			// Modern GC algorithms handle memory management more efficiently
 			Log.debug("Export cleanup completed, memory management delegated to JVM");
@@ -292,9 +292,55 @@ public class Options
 	
 	/**
 	 * How many threads to use when exporting.
+	 * 0 picks the number while exporting, see {@link org.jmc.threading.ExportScheduler#AUTO_THREADS}.
 	 */
 	public static int exportThreads = 8;
 	
+	/**
+	 * How many threads read region files ahead of the export threads.
+	 * 0 disables loading chunks ahead, the export threads load them.
+	 */
+	public static int ioThreads = 2;
+	
+	/**
+	 * How many threads decompress and parse the chunks read ahead.
+	 */
+	public static int parseThreads = 2;
+	
+	/**
+	 * How many threads decode the sections of the chunks read ahead.
+	 */
+	public static int decodeThreads = 2;
+	
+	/**
+	 * If true, region files are memory mapped once and chunks are read straight
+	 * out of the mapping instead of opening the file for every chunk.
+	 */
+	public static boolean mapRegionFiles = true;
+	
+	/**
+	 * Only re-process chunks that changed since the previous export to the same
+	 * file, reusing the geometry of the rest from the export manifest.
+	 */
+	public static boolean incrementalExport = false;
+	
+	/**
+	 * Stop processing each column at the top of the chunk heightmap instead of
+	 * the top of the export area. Can be turned off for worlds edited with
+	 * tools that don't update the heightmaps.
+	 */
+	public static boolean useHeightmaps = true;
+	
+	/**
+	 * Directory of the persistent cache of decoded chunks, null if the cache is disabled.
+	 */
+	public static File chunkCacheDir = null;
+	
+	/**
+	 * Maximum size of the chunk cache in bytes.
+	 */
+	public static long chunkCacheMaxSize = 2048L * 1024 * 1024;
+	
 	/**
 	 * Export objects as obj groups instead of objects (Maya compatible)
 	 */
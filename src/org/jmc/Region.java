@@ -8,19 +8,23 @@
 package org.jmc;
 
 import java.awt.*;
-import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.util.Vector;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.InflaterInputStream;
 
 import org.jmc.registry.NamespaceID;
+import org.jmc.util.DecompressorPool;
+import org.jmc.util.DecompressorPool.Decompressor;
+import org.jmc.util.Log;
 
 import javax.annotation.CheckForNull;
 
@@ -28,10 +32,86 @@ import javax.annotation.CheckForNull;
  * Region file class.
  * This file contains individual chunks. It can be either the old MCRegion format or
  * the new Anvil format.
+ * <p>
+ * Files read without memory mapping are kept open until the region is closed.
+ * Regions shared between threads are reference counted, see {@link #retain()}.
  * @author danijel
  *
  */
-public class Region {
+public class Region implements Closeable {
+
+	/**
+	 * Compressed data of a chunk and of its entities, read from the region
+	 * files by {@link Region#readChunk(int, int)} and parsed later, possibly
+	 * on another thread. It doesn't use the region anymore once read.
+	 */
+	public static class RawChunk {
+		private final Payload data;
+		@CheckForNull
+		private final Payload entities;
+		private final boolean is_anvil;
+
+		private RawChunk(Payload data, @CheckForNull Payload entities, boolean is_anvil) {
+			this.data = data;
+			this.entities = entities;
+			this.is_anvil = is_anvil;
+		}
+
+		/**
+		 * Decompresses and parses the chunk.
+		 * @throws Exception if error occurs while parsing the chunk
+		 */
+		public Chunk parse() throws Exception {
+			Decompressor chunkDec = DecompressorPool.borrow();
+			Decompressor entityDec = null;
+			try {
+				InputStream entityIs = null;
+				if (entities != null) {
+					entityDec = DecompressorPool.borrow();
+					entityIs = entities.decompress(entityDec);
+				}
+				return new Chunk(data.decompress(chunkDec), entityIs, is_anvil);
+			} finally {
+				DecompressorPool.release(entityDec);
+				DecompressorPool.release(chunkDec);
+			}
+		}
+
+		/**
+		 * @return size of the compressed data in bytes
+		 */
+		public int size() {
+			return data.data.remaining() + (entities != null ? entities.data.remaining() : 0);
+		}
+	}
+
+	/**
+	 * Compressed data of a chunk as stored in a region file.
+	 */
+	private static class Payload {
+		private final ByteBuffer data;
+		private final int compression_type;
+
+		private Payload(ByteBuffer data, int compression_type) {
+			this.data = data;
+			this.compression_type = compression_type;
+		}
+
+		private InputStream decompress(Decompressor dec) throws IOException {
+			return dec.decompress(data.duplicate(), compression_type);
+		}
+
+		/**
+		 * @return the payload with its data copied to the heap
+		 */
+		private Payload copy() {
+			if (data.hasArray())
+				return this;
+			byte[] bytes = new byte[data.remaining()];
+			data.duplicate().get(bytes);
+			return new Payload(ByteBuffer.wrap(bytes), compression_type);
+		}
+	}
 
 	/**
 	 * Path to the file.
@@ -41,6 +121,10 @@ public class Region {
 	 * Path to the entities file.
 	 */
 	private final File region_entity_file;
+	/**
+	 * Whether there is an entities file, checked once when the region is opened.
+	 */
+	private final boolean has_entities;
 	/**
 	 * Buffer of offsets of individual chunks.
 	 */
@@ -49,6 +133,42 @@ public class Region {
 	 * Buffer of offsets of individual in the entiy file chunks.
 	 */
 	private ByteBuffer entity_offset;
+	/**
+	 * Buffer of the last modification times of individual chunks, in seconds since the epoch.
+	 */
+	private final ByteBuffer timestamps;
+	/**
+	 * Buffer of the last modification times of individual chunks in the entity file.
+	 */
+	private ByteBuffer entity_timestamps;
+	/**
+	 * Read-only mapping of the whole region file, null if the file is read with
+	 * regular file I/O. Shared by all reader threads, which only ever access
+	 * it through duplicates.
+	 */
+	private final MappedByteBuffer region_map;
+	/**
+	 * Read-only mapping of the entities file, null if there is none or the
+	 * file isn't mapped.
+	 */
+	private MappedByteBuffer entity_map;
+	/**
+	 * Open channel to the region file, null if the file is mapped.
+	 * Only used for positional reads so it can be shared by all reader threads.
+	 */
+	private final FileChannel region_channel;
+	/**
+	 * Open channel to the entities file, null if there is none or the file is mapped.
+	 */
+	private FileChannel entity_channel;
+	/**
+	 * Number of users of the region, see {@link #retain()}.
+	 */
+	private int users = 0;
+	/**
+	 * Set when the region has been closed, the files are closed once it has no users left.
+	 */
+	private boolean closed = false;
 	/**
 	 * Is the file in anvil or old mcregion format.
 	 */
@@ -75,23 +195,140 @@ public class Region {
 		
 		region_entity_file = new File(file.getParentFile().getParent()+"/entities", file.getName());
 
-		FileInputStream fis=new FileInputStream(region_file);
-
-		byte [] offset_array=new byte[4096];
-		fis.read(offset_array);
-		offset=ByteBuffer.wrap(offset_array);
-		
-		fis.close();
-		if (is_anvil && region_entity_file.exists()) {
-			fis=new FileInputStream(region_entity_file);
-			
-			offset_array=new byte[4096];
-			fis.read(offset_array);
-			entity_offset=ByteBuffer.wrap(offset_array);
-			
-			fis.close();
+		has_entities = is_anvil && region_entity_file.exists();
+		if (Options.mapRegionFiles) {
+			region_channel = null;
+			region_map = mapFile(region_file);
+			offset = readHeader(region_map, 0);
+			timestamps = readHeader(region_map, 4096);
+			if (has_entities) {
+				entity_map = mapFile(region_entity_file);
+				entity_offset = readHeader(entity_map, 0);
+				entity_timestamps = readHeader(entity_map, 4096);
+			}
+		} else {
+			region_map = null;
+			region_channel = FileChannel.open(region_file.toPath());
+			try {
+				ByteBuffer header = readHeader(region_channel);
+				offset = headerTable(header, 0);
+				timestamps = headerTable(header, 4096);
+				if (has_entities) {
+					entity_channel = FileChannel.open(region_entity_file.toPath());
+					header = readHeader(entity_channel);
+					entity_offset = headerTable(header, 0);
+					entity_timestamps = headerTable(header, 4096);
+				}
+			} catch (IOException e) {
+				closeFiles();
+				throw e;
+			}
 		}
-
+	}
+	
+	/**
+	 * Registers a new user of the region. Each successful call must be matched
+	 * by a call to {@link #release()}.
+	 * @return false if the region has been closed and can't be used anymore
+	 */
+	public synchronized boolean retain() {
+		if (closed)
+			return false;
+		users++;
+		return true;
+	}
+	
+	/**
+	 * Ends a use of the region started by {@link #retain()}.
+	 */
+	public synchronized void release() {
+		users--;
+		if (closed && users == 0)
+			closeFiles();
+	}
+	
+	/**
+	 * Closes the region. The files are closed straight away if the region
+	 * has no users, otherwise when the last of them releases it.
+	 */
+	@Override
+	public synchronized void close() {
+		if (closed)
+			return;
+		closed = true;
+		if (users == 0)
+			closeFiles();
+	}
+	
+	private void closeFiles() {
+		try {
+			if (region_channel != null)
+				region_channel.close();
+			if (entity_channel != null)
+				entity_channel.close();
+		} catch (IOException e) {
+			Log.debug("Error closing region " + region_file.getName() + ": " + e);
+		}
+	}
+	
+	/**
+	 * Maps the whole of the given file read-only.
+	 * The channel is closed straight away, the mapping stays valid until it's garbage collected.
+	 */
+	private static MappedByteBuffer mapFile(File file) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+				FileChannel channel = raf.getChannel()) {
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+	}
+	
+	/**
+	 * Gets one of the 4KiB header tables of a mapped file, the offset table
+	 * starts at 0 and the timestamp table at 4096.
+	 */
+	private static ByteBuffer readHeader(MappedByteBuffer map, int start) {
+		if (map.capacity() < start + 4096) {
+			// empty or truncated region file, treat it as having no chunks
+			return ByteBuffer.allocate(4096);
+		}
+		ByteBuffer header = map.duplicate();
+		header.position(start);
+		header.limit(start + 4096);
+		return header.slice();
+	}
+	
+	/**
+	 * Reads the 8KiB header (offset and timestamp tables) from the start of the file.
+	 */
+	private static ByteBuffer readHeader(FileChannel channel) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(8192);
+		while (header.hasRemaining()) {
+			if (channel.read(header, header.position()) < 0)
+				break;// truncated file, the rest of the tables stays zeroed
+		}
+		header.clear();
+		return header;
+	}
+	
+	/**
+	 * Fills the buffer with the bytes of the file starting at pos.
+	 * Positional reads don't move the channel so they are safe from several threads.
+	 */
+	private static void readFully(FileChannel channel, ByteBuffer buf, long pos) throws IOException {
+		while (buf.hasRemaining()) {
+			int n = channel.read(buf, pos);
+			if (n < 0)
+				throw new EOFException();
+			pos += n;
+		}
+		buf.flip();
+	}
+	
+	private static ByteBuffer headerTable(ByteBuffer header, int start) {
+		ByteBuffer table = header.duplicate();
+		table.position(start);
+		table.limit(start + 4096);
+		return table.slice();
 	}
 	
 	/**
@@ -137,6 +374,7 @@ public class Region {
 	
 	/**
 	 * Get the list of all regions in the given save.
+	 * The regions must be closed once they aren't needed anymore.
 	 * @param saveFolder path to the world save
 	 * @return collection of region file objects
 	 * @throws IOException if error occurs
@@ -187,19 +425,85 @@ public class Region {
 		int cz = Math.floorMod(z, 32);
 		int idx = cx + cz * 32;
 		
-		InputStream chunkIs = getChunkStream(region_file, offset, idx);
-		if (chunkIs == null) {
-			return null;
+		Decompressor chunkDec = DecompressorPool.borrow();
+		Decompressor entityDec = null;
+		try {
+			Payload chunkData = readPayload(region_file, region_map, region_channel, offset, idx, x, z, chunkDec);
+			if (chunkData == null) {
+				return null;
+			}
+			InputStream chunkIs = chunkData.decompress(chunkDec);
+			if (Options.renderEntities && has_entities) {
+				entityDec = DecompressorPool.borrow();
+				Payload entityData = readPayload(region_entity_file, entity_map, entity_channel, entity_offset, idx, x, z, entityDec);
+				return new Chunk(chunkIs, entityData != null ? entityData.decompress(entityDec) : null, is_anvil);
+			} else {
+				return new Chunk(chunkIs,null, is_anvil);
+			}
+		} finally {
+			// the chunk has been fully parsed so the buffers can be reused
+			DecompressorPool.release(entityDec);
+			DecompressorPool.release(chunkDec);
 		}
-		if (region_entity_file.exists()) {
-			return new Chunk(chunkIs, getChunkStream(region_entity_file, entity_offset, idx), is_anvil);
-		} else {
-			return new Chunk(chunkIs,null, is_anvil);
+	}
+	
+	/**
+	 * Reads the compressed data of the given chunk without parsing it.
+	 * Data of mapped files is copied, so that it is read from the disk here
+	 * rather than when the chunk is parsed.
+	 * @param x x coordinate of the chunk
+	 * @param z z coordinate of the chunk
+	 * @return the data, null if the chunk doesn't exist
+	 * @throws IOException if error occurs while reading the chunk
+	 */
+	@CheckForNull
+	public RawChunk readChunk(int x, int z) throws IOException {
+		int idx = Math.floorMod(x, 32) + Math.floorMod(z, 32) * 32;
+		
+		Payload chunkData = readPayload(region_file, region_map, region_channel, offset, idx, x, z, null);
+		if (chunkData == null)
+			return null;
+		Payload entityData = null;
+		if (Options.renderEntities && has_entities) {
+			entityData = readPayload(region_entity_file, entity_map, entity_channel, entity_offset, idx, x, z, null);
+			if (entityData != null)
+				entityData = entityData.copy();
 		}
+		return new RawChunk(chunkData.copy(), entityData, is_anvil);
+	}
+	
+	/**
+	 * Gets the last modification time of the given chunk from the timestamp table.
+	 * @param x x coordinate of the chunk
+	 * @param z z coordinate of the chunk
+	 * @return seconds since the epoch, 0 if the chunk doesn't exist
+	 */
+	public int getTimestamp(int x, int z) {
+		return timestamps.getInt(4 * (Math.floorMod(x, 32) + Math.floorMod(z, 32) * 32));
 	}
 	
+	/**
+	 * Gets the last modification time of the given chunk's entities.
+	 * @param x x coordinate of the chunk
+	 * @param z z coordinate of the chunk
+	 * @return seconds since the epoch, 0 if there is no entity file or the chunk has no entities
+	 */
+	public int getEntityTimestamp(int x, int z) {
+		if (entity_timestamps == null)
+			return 0;
+		return entity_timestamps.getInt(4 * (Math.floorMod(x, 32) + Math.floorMod(z, 32) * 32));
+	}
+	
+	/**
+	 * Finds the compressed data of a chunk. Mapped files aren't copied.
+	 * @param dec decompressor whose input buffer holds the data read from
+	 * the channel, if null a new buffer is allocated
+	 * @return the data, null if the chunk doesn't exist
+	 */
 	@CheckForNull
-	private InputStream getChunkStream(File file, ByteBuffer offset, int idx) throws Exception {
+	private Payload readPayload(File file, @CheckForNull MappedByteBuffer map, @CheckForNull FileChannel channel, ByteBuffer offset, int idx, int x, int z, @CheckForNull Decompressor dec) throws IOException {
+		if (offset == null)
+			return null;
 		int off = offset.getInt(idx*4);
 		int sec = off >> 8;
 		int len = off & 0xff;
@@ -207,23 +511,48 @@ public class Region {
 		if(sec<2)
 			return null;
 
-		RandomAccessFile raf=new RandomAccessFile(file, "r");
-		raf.seek(sec*4096);
-
-		len=raf.readInt();
-		int compression_type=raf.readByte();
-		byte[] buf = new byte[len - 1];
-		raf.read(buf);
-		raf.close();
-		InputStream is;
-		if(compression_type==1) { //GZIP
-			is=new GZIPInputStream(new ByteArrayInputStream(buf));
-		} else if(compression_type==2) {//Inflate
-			is=new InflaterInputStream(new ByteArrayInputStream(buf));
+		ByteBuffer payload;
+		int compression_type;
+		if (map != null) {
+			int pos = sec*4096;
+			if (pos + 5 > map.capacity())
+				throw new IOException("Chunk offset is past the end of " + file.getName());
+			ByteBuffer buf = map.duplicate();
+			len = buf.getInt(pos);
+			compression_type = buf.get(pos + 4) & 0xff;
+			if (len < 1 || pos + 4 + len > map.capacity())
+				throw new IOException("Chunk length is past the end of " + file.getName());
+			buf.position(pos + 5);
+			buf.limit(pos + 4 + len);
+			payload = buf.slice();
 		} else {
-			throw new Exception("Wrong compression type!");
+			long pos = sec*4096L;
+			ByteBuffer head = ByteBuffer.allocate(5);
+			readFully(channel, head, pos);
+	
+			len=head.getInt();
+			compression_type=head.get() & 0xff;
+			if (len < 1)
+				throw new IOException("Invalid chunk length in " + file.getName());
+			byte[] buf = dec != null ? dec.getInputBuffer(len - 1) : new byte[len - 1];
+			payload = ByteBuffer.wrap(buf, 0, len - 1);
+			readFully(channel, payload, pos + 5);
 		}
-		return is;
+		
+		if ((compression_type & DecompressorPool.EXTERNAL_FLAG) != 0) {
+			// oversized chunk, the data is in its own file next to the region
+			compression_type &= ~DecompressorPool.EXTERNAL_FLAG;
+			File external = new File(file.getParentFile(), "c."+x+"."+z+".mcc");
+			if (!external.exists())
+				throw new FileNotFoundException(external.getAbsolutePath());
+			if (map != null) {
+				payload = mapFile(external);
+			} else {
+				payload = ByteBuffer.wrap(Files.readAllBytes(external.toPath()));
+			}
+		}
+		
+		return new Payload(payload, compression_type);
 	}
 
 	/**
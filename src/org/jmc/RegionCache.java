@@ -0,0 +1,132 @@
+package org.jmc;
+
+import java.awt.Point;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.CheckForNull;
+
+import org.jmc.util.Log;
+
+/**
+ * Bounded cache of open region files.
+ * <p>
+ * Opening a region reads or maps its headers and checks for its entities file,
+ * so regions are kept open while chunks are read from them. With the chunks
+ * processed in Hilbert order only the few regions around the chunks being
+ * processed are in use at any time, so the least recently used regions are
+ * closed once more than {@code maxRegions} are open. Regions that don't exist
+ * are remembered so their files aren't looked for again.
+ * <p>
+ * Regions are handed out retained, every region returned by {@link #get(Point)}
+ * must be released with {@link Region#release()}. A region closed while in use
+ * keeps its files open until its last user releases it.
+ */
+public class RegionCache {
+
+	private final int maxRegions;
+	// guarded by this
+	private final LinkedHashMap<Point, Region> regions;
+	private final Set<Point> missing = ConcurrentHashMap.newKeySet();
+
+	// Statistics
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong opened = new AtomicLong();
+	private final AtomicLong closed = new AtomicLong();
+
+	/**
+	 * @param maxRegions maximum number of regions kept open
+	 */
+	public RegionCache(int maxRegions) {
+		this.maxRegions = Math.max(1, maxRegions);
+		this.regions = new LinkedHashMap<>(16, 0.75f, true);
+	}
+
+	/**
+	 * Gets a region, opening it if it isn't open already.
+	 * @param regionCoord coordinate of the region
+	 * @return the region, retained for the caller, or null if it doesn't exist
+	 */
+	@CheckForNull
+	public Region get(Point regionCoord) {
+		if (missing.contains(regionCoord))
+			return null;
+		synchronized (this) {
+			Region region = regions.get(regionCoord);
+			if (region != null && region.retain()) {
+				hits.incrementAndGet();
+				return region;
+			}
+		}
+
+		// opened outside of the lock so other threads can still use the open regions
+		Region region;
+		try {
+			region = Region.findRegion(Options.worldDir, Options.dimension, regionCoord);
+		} catch (FileNotFoundException e) {
+			missing.add(regionCoord);
+			return null;
+		} catch (Exception e) {
+			Log.errorOnce("Error opening region", e, false);
+			missing.add(regionCoord);
+			return null;
+		}
+		opened.incrementAndGet();
+
+		List<Region> evicted = new ArrayList<>();
+		Region result;
+		synchronized (this) {
+			Region other = regions.get(regionCoord);
+			if (other != null && other.retain()) {
+				// opened by another thread in the meantime
+				evicted.add(region);
+				result = other;
+			} else {
+				regions.put(regionCoord, region);
+				region.retain();
+				result = region;
+				Iterator<Region> it = regions.values().iterator();
+				while (regions.size() > maxRegions && it.hasNext()) {
+					evicted.add(it.next());
+					it.remove();
+				}
+			}
+		}
+		for (Region r : evicted) {
+			r.close();
+			closed.incrementAndGet();
+		}
+		return result;
+	}
+
+	/**
+	 * Closes all the regions and forgets the missing ones.
+	 */
+	public void clear() {
+		List<Region> open;
+		synchronized (this) {
+			open = new ArrayList<>(regions.values());
+			regions.clear();
+		}
+		for (Region r : open) {
+			r.close();
+			closed.incrementAndGet();
+		}
+		missing.clear();
+	}
+
+	public synchronized int size() {
+		return regions.size();
+	}
+
+	public String getStatistics() {
+		return String.format("Region Cache Stats - Open: %d/%d, Hits: %d, Opened: %d, Closed: %d, Missing: %d",
+				size(), maxRegions, hits.get(), opened.get(), closed.get(), missing.size());
+	}
+}
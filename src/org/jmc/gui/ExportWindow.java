@@ -439,7 +439,7 @@ public class ExportWindow extends JmcFrame implements ProgressCallback {
 		fl_holderThreads.setVgap(1);
 		holderThreads.setLayout(fl_holderThreads);
 		
-		SpinnerNumberModel threadSpinnerModel = new SpinnerNumberModel(8, 1, 512, 1);
+		SpinnerNumberModel threadSpinnerModel = new SpinnerNumberModel(8, 0, 512, 1);
 		spinnerThreads = new JSpinner(threadSpinnerModel);
 		holderThreads.add(spinnerThreads);
 		
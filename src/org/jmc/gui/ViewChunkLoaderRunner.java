@@ -20,7 +20,9 @@ import org.jmc.gui.PreviewPanel.ChunkImage;
 import org.jmc.models.None;
 import org.jmc.registry.NamespaceID;
 import org.jmc.threading.ThreadInputQueue;
-import org.jmc.util.Hilbert.HilbertComparator;
+import org.jmc.util.ChunkKey;
+import org.jmc.util.Hilbert;
+import org.jmc.util.LongHashSet;
 
 /**
  * Chunk loader that loads only the chunks visible on the screen and
@@ -53,9 +55,9 @@ public class ViewChunkLoaderRunner implements ChunkLoaderRunner {
 	private final int REPAINT_FREQUENCY=100;
 
 	/**
-	 * A collection of loaded chunk IDs.
+	 * A collection of loaded chunk IDs, as {@link ChunkKey}s. Guarded by itself.
 	 */
-	Set<Point> loadedChunks;
+	final LongHashSet loadedChunks;
 	
 	private final ThreadInputQueue chunkQueue;
 	private AtomicInteger chunksToDo;
@@ -83,7 +85,7 @@ public class ViewChunkLoaderRunner implements ChunkLoaderRunner {
 		
 		chunkImages = preview.getChunkImages();
 		
-		loadedChunks = Collections.synchronizedSet(new HashSet<Point>());
+		loadedChunks = new LongHashSet();
 		chunkQueue = new ThreadInputQueue();
 		chunksToDo = new AtomicInteger();
 		
@@ -100,7 +102,9 @@ public class ViewChunkLoaderRunner implements ChunkLoaderRunner {
 
 		Rectangle prevBounds = new Rectangle();
 
-		loadedChunks.clear();
+		synchronized (loadedChunks) {
+			loadedChunks.clear();
+		}
 		
 		int threads = MainWindow.settings.getPreferences().getInt("PREVIEW_THREADS", 8);
 		for (int i = 0; i < threads; i++) {
@@ -146,7 +150,9 @@ public class ViewChunkLoaderRunner implements ChunkLoaderRunner {
 				if (yBoundsChanged)
 				{
 					yBoundsChanged = false;
-					loadedChunks.clear();
+					synchronized (loadedChunks) {
+						loadedChunks.clear();
+					}
 					chunkImages.clear();
 				}
 				
@@ -160,7 +166,9 @@ public class ViewChunkLoaderRunner implements ChunkLoaderRunner {
 						int cz = chunk_image.y;
 						
 						if ((cx<cxs || cx>cxe || cz<czs || cz>cze) && !preview.keepChunks) {
-							loadedChunks.remove(new Point(cx,cz));
+							synchronized (loadedChunks) {
+								loadedChunks.remove(ChunkKey.of(cx, cz));
+							}
 							iter.remove();
 						}
 						
@@ -179,22 +187,26 @@ public class ViewChunkLoaderRunner implements ChunkLoaderRunner {
 				preview.repaint();
 				
 				
-				ArrayList<Point> chunkList = new ArrayList<Point>();
-				for (int cx=cxs; cx<=cxe && !stopIter; cx++)
-				{
-					for (int cz=czs; cz<=cze && !stopIter; cz++)
+				long[] chunkList = new long[(cxe - cxs + 1) * (cze - czs + 1)];
+				int chunkCount = 0;
+				synchronized (loadedChunks) {
+					for (int cx=cxs; cx<=cxe && !stopIter; cx++)
 					{
-						Point p = new Point(cx, cz);
-						
-						if (loadedChunks.contains(p))
-							continue;
-						chunkList.add(p);
+						for (int cz=czs; cz<=cze && !stopIter; cz++)
+						{
+							long p = ChunkKey.of(cx, cz);
+							
+							if (loadedChunks.contains(p))
+								continue;
+							chunkList[chunkCount++] = p;
+						}
 					}
 				}
+				chunkList = Arrays.copyOf(chunkList, chunkCount);
 				
-				chunkList.sort(new HilbertComparator(8));
+				Hilbert.sort(chunkList, 8);
 				
-				for (Point p : chunkList) {
+				for (long p : chunkList) {
 					Rectangle new_bounds=preview.getChunkBounds();
 					if (!bounds.equals(new_bounds) || yBoundsChanged)
 						stopIter = true;
@@ -264,7 +276,7 @@ public class ViewChunkLoaderRunner implements ChunkLoaderRunner {
 		@Override
 		public void run() {
 			while (!Thread.interrupted()) {
-				Point p;
+				long p;
 				AtomicInteger ctd;
 				try {
 					waitIfPaused();
@@ -273,9 +285,11 @@ public class ViewChunkLoaderRunner implements ChunkLoaderRunner {
 				} catch (InterruptedException e) {
 					break;
 				}
-				if (p == null)
+				if (p == ChunkKey.NONE)
 					break;
-				loadedChunks.add(p);
+				synchronized (loadedChunks) {
+					loadedChunks.add(p);
+				}
 				
 				Chunk.Blocks blocks = chunkBuffer.getBlocks(p);
 				
@@ -302,7 +316,7 @@ public class ViewChunkLoaderRunner implements ChunkLoaderRunner {
 					continue;
 				}
 				
-				preview.addImage(blockImage, heightImage, p.x, p.y, topBlocks);
+				preview.addImage(blockImage, heightImage, ChunkKey.x(p), ChunkKey.z(p), topBlocks);
 				ctd.addAndGet(-1);
 			}
 		}
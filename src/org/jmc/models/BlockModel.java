@@ -126,6 +126,18 @@ public abstract class BlockModel {
 		return true;
 	}
 
+	/**
+	 * Checks if this model adds no geometry for a block whose six sides are
+	 * all occluded by neighbouring blocks. Lets {@link ChunkProcessor} skip the
+	 * inside of sections filled with a single block.
+	 * 
+	 * @param data the block
+	 * @return true if nothing is drawn when all sides are occluded
+	 */
+	public boolean isHiddenWhenEnclosed(BlockData data) {
+		return false;
+	}
+
 	/**
 	 * Helper method to check if the side of a cube needs to be drawn, based on
 	 * the occlusion type of the neighbouring block and whether or not the block
@@ -192,15 +204,30 @@ public abstract class BlockModel {
 	protected boolean[] drawSides(ThreadChunkDeligate chunks, int x, int y, int z, BlockData data) {
 		boolean sides[] = new boolean[6];
 		
-		sides[0] = drawSide(Direction.UP, data, chunks.getBlockData(x, y + 1, z));
-		sides[1] = drawSide(Direction.NORTH, data, chunks.getBlockData(x, y, z - 1));
-		sides[2] = drawSide(Direction.SOUTH, data, chunks.getBlockData(x, y, z + 1));
-		sides[3] = drawSide(Direction.WEST, data, chunks.getBlockData(x - 1, y, z));
-		sides[4] = drawSide(Direction.EAST, data, chunks.getBlockData(x + 1, y, z));
-		sides[5] = drawSide(Direction.DOWN, data, chunks.getBlockData(x, y - 1, z));
+		// sides hidden by fully occluding neighbours, the others need the neighbour's block
+		int occluded = useOpacityMasks() ? chunks.getOccludedSides(x, y, z) : 0;
+		
+		sides[0] = (occluded & 1) == 0 && drawSide(Direction.UP, data, chunks.getBlockData(x, y + 1, z));
+		sides[1] = (occluded & 2) == 0 && drawSide(Direction.NORTH, data, chunks.getBlockData(x, y, z - 1));
+		sides[2] = (occluded & 4) == 0 && drawSide(Direction.SOUTH, data, chunks.getBlockData(x, y, z + 1));
+		sides[3] = (occluded & 8) == 0 && drawSide(Direction.WEST, data, chunks.getBlockData(x - 1, y, z));
+		sides[4] = (occluded & 16) == 0 && drawSide(Direction.EAST, data, chunks.getBlockData(x + 1, y, z));
+		sides[5] = (occluded & 32) == 0 && drawSide(Direction.DOWN, data, chunks.getBlockData(x, y - 1, z));
 		
 		return sides;
 	}
+	
+	/**
+	 * @return false if the options can make {@link #drawSide} draw a side
+	 * next to a fully occluding block
+	 */
+	private static boolean useOpacityMasks() {
+		if (Options.objectPerBlock && !Options.objectPerBlockOcclusion)
+			return false;
+		if (Options.objectPerMaterial && !Options.objectPerMaterialOcclusion)
+			return false;
+		return true;
+	}
 
 	/**
 	 * Helper method to add a box to given OBJFile.
@@ -24,4 +24,12 @@ public class Cube extends BlockModel
 				drawSides(chunks, x, y, z, data));
 	}
 
+	/**
+	 * Only draws the sides of the box that aren't occluded.
+	 */
+	@Override
+	public boolean isHiddenWhenEnclosed(BlockData data) {
+		return true;
+	}
+
 }
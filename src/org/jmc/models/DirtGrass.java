@@ -45,4 +45,13 @@ public class DirtGrass extends BlockModel
 				null, 
 				drawSides(chunks, x, y, z, data));
 	}
+
+	/**
+	 * Only draws the sides of the box that aren't occluded.
+	 */
+	@Override
+	public boolean isHiddenWhenEnclosed(BlockData data) {
+		return true;
+	}
+
 }
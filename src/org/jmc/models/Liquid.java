@@ -16,6 +16,11 @@ import org.jmc.util.Log;
  */
 public class Liquid extends BlockModel
 {
+	private static final NamespaceID WATER = new NamespaceID("minecraft", "water");
+	private static final NamespaceID FLOWING_WATER = new NamespaceID("minecraft", "flowing_water");
+	private static final NamespaceID BUBBLE_COLUMN = new NamespaceID("minecraft", "bubble_column");
+	private static final NamespaceID LAVA = new NamespaceID("minecraft", "lava");
+	private static final NamespaceID FLOWING_LAVA = new NamespaceID("minecraft", "flowing_lava");
 	
 	/**
 	 * Gets the block height (from -0.5 to 0.5) corresponding to the fluid level.
@@ -52,12 +57,12 @@ public class Liquid extends BlockModel
 		NamespaceID otherID = otherBlockData.id;
 		if (data.id.equals(otherID) && !data.state.getBool("waterlogged", false))
 			return true;
-		if ((data.id.equals(new NamespaceID("minecraft", "flowing_water")) || data.id.equals(new NamespaceID("minecraft", "water"))) && 
-				otherID.equals(new NamespaceID("minecraft", "flowing_water")) || otherID.equals(new NamespaceID("minecraft", "water")) ||
-				otherID.equals(new NamespaceID("minecraft", "bubble_column")) || otherBlockData.state.getBool("waterlogged", false))
+		if ((data.id.equals(FLOWING_WATER) || data.id.equals(WATER)) && 
+				otherID.equals(FLOWING_WATER) || otherID.equals(WATER) ||
+				otherID.equals(BUBBLE_COLUMN) || otherBlockData.state.getBool("waterlogged", false))
 			return true;
-		if ((data.id.equals(new NamespaceID("minecraft", "flowing_lava")) || data.id.equals(new NamespaceID("minecraft", "lava"))) && 
-				(otherID.equals(new NamespaceID("minecraft", "flowing_lava")) || otherID.equals(new NamespaceID("minecraft", "lava"))))
+		if ((data.id.equals(FLOWING_LAVA) || data.id.equals(LAVA)) && 
+				(otherID.equals(FLOWING_LAVA) || otherID.equals(LAVA)))
 			return true;
 		return false;
 	}
@@ -16,6 +16,7 @@ import org.jmc.threading.ThreadChunkDeligate;
  */
 public class Pane extends BlockModel
 {
+	private static final NamespaceID IRON_BARS = new NamespaceID("minecraft", "iron_bars");
 	
 	/** Checks whether the pane should connect to another block */
 	private boolean checkConnect(BlockData other)
@@ -23,7 +24,7 @@ public class Pane extends BlockModel
 		// connects to other panes, glass, and any solid blocks
 		if (other.id.path.endsWith("air"))
 			return false;
-		if (other.id.equals(new NamespaceID("minecraft", "iron_bars")) || other.id.path.endsWith("glass_pane") || other.id.path.endsWith("glass"))
+		if (other.id.equals(IRON_BARS) || other.id.path.endsWith("glass_pane") || other.id.path.endsWith("glass"))
 			return true;
 		return other.getInfo().getOcclusion() == BlockInfo.Occlusion.FULL;
 	}
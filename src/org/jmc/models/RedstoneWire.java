@@ -15,6 +15,9 @@ import javax.annotation.CheckForNull;
  */
 public class RedstoneWire extends BlockModel
 {
+	private static final NamespaceID REDSTONE_TORCH = new NamespaceID("minecraft", "redstone_torch");
+	private static final NamespaceID REDSTONE_WALL_TORCH = new NamespaceID("minecraft", "redstone_wall_torch");
+	
 	private boolean isConnectable(@CheckForNull BlockData otherBlock, boolean sameLevel)
 	{
 		if (otherBlock == null)
@@ -22,7 +25,7 @@ public class RedstoneWire extends BlockModel
 		NamespaceID otherBlockId = otherBlock.id;
 		if (blockId.equals(otherBlockId))
 			return true;
-		if (sameLevel && (otherBlockId.toString().equals("minecraft:redstone_torch") || otherBlockId.toString().equals("minecraft:redstone_wall_torch")))
+		if (sameLevel && (otherBlockId.equals(REDSTONE_TORCH) || otherBlockId.equals(REDSTONE_WALL_TORCH)))
 			return true;
 		return false;
 	}
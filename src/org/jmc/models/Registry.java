@@ -6,6 +6,7 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
@@ -32,6 +33,66 @@ import org.jmc.util.Log;
 @ParametersAreNonnullByDefault
 public class Registry extends BlockModel {
 
+	/** Results of {@link #isHiddenWhenEnclosed(BlockData)} by state id */
+	private final Map<Integer, Boolean> hiddenWhenEnclosed = new ConcurrentHashMap<>();
+
+	/**
+	 * Every face of the block's models has to be culled by one of the sides.
+	 */
+	@Override
+	public boolean isHiddenWhenEnclosed(BlockData data) {
+		int stateId = data.getStateId();
+		if (stateId < 0) {
+			return allFacesCulled(data);
+		}
+		return hiddenWhenEnclosed.computeIfAbsent(stateId, k -> allFacesCulled(data));
+	}
+
+	private boolean allFacesCulled(BlockData data) {
+		BlockstateEntry bsEntry = Registries.getBlockstate(data.id);
+		if (bsEntry == null) {
+			return true;// nothing is exported
+		}
+		for (ModelListWeighted modelList : bsEntry.getModelsFor(data.state)) {
+			for (ModelInfo modelInfo : modelList.getModels()) {
+				ModelEntry modelEntry = Registries.getModel(modelInfo.id);
+				if (modelEntry == null) {
+					continue;
+				}
+				RegistryModel model = modelEntry.generateModel();
+				if (model.elements == null) {
+					continue;
+				}
+				for (ModelElement element : model.elements) {
+					if (element == null || element.faces == null) {
+						continue;
+					}
+					for (ElementFace face : element.faces.values()) {
+						if (face.cullface == null || !isCullFace(face.cullface)) {
+							return false;
+						}
+					}
+				}
+			}
+		}
+		return true;
+	}
+
+	private static boolean isCullFace(String cullFace) {
+		switch (cullFace) {
+		case "up":
+		case "north":
+		case "south":
+		case "west":
+		case "east":
+		case "down":
+		case "bottom":
+			return true;
+		default:
+			return false;
+		}
+	}
+
 	@Override
 	public void addModel(ChunkProcessor obj, ThreadChunkDeligate chunks, int x, int y, int z, BlockData data, NamespaceID biome) {
 		BlockPos pos = new BlockPos(x, y, z);
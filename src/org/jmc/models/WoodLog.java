@@ -78,4 +78,12 @@ public class WoodLog extends BlockModel
 				drawSides(chunks, x, y, z, data));
 	}
 
+	/**
+	 * Only draws the sides of the box that aren't occluded.
+	 */
+	@Override
+	public boolean isHiddenWhenEnclosed(BlockData data) {
+		return true;
+	}
+
 }
@@ -73,6 +73,13 @@ public abstract class BlockstateEntry extends RegistryEntry {
 			models.add(model);
 		}
 		
+		/**
+		 * @return all the weighted variants, must not be modified
+		 */
+		public List<ModelInfo> getModels() {
+			return models;
+		}
+		
 		public ModelInfo getRandomModel(BlockPos pos) {
 			if (!Options.randBlockVariations) {
 				return models.get(0);
@@ -29,6 +29,9 @@ public class NamespaceID implements Comparable<NamespaceID> {
 	public final static NamespaceID UNKNOWN = new NamespaceID("jmc2obj", "unknown");
 	@Nonnull
 	public final static NamespaceID EXPORTEDGE = new NamespaceID("jmc2obj", "export_edge");
+	/** Default biome of chunks without biome data */
+	@Nonnull
+	public final static NamespaceID PLAINS = new NamespaceID("minecraft", "plains");
 
 	public final String namespace;
 	public final String path;
@@ -23,7 +23,11 @@ public class RegistryBlockMaterial extends BlockMaterial {
 	@Override
 	public NamespaceID[] get(Blockstate state, NamespaceID biomeValue) {
 		if (isEmpty()) {
-			NamespaceID[] mats = new NamespaceID[1];
+			NamespaceID[] mats = getCached(state);
+			if (mats != null) {
+				return mats;
+			}
+			mats = new NamespaceID[1];
 			HashMap<String, Integer> textureCount = new HashMap<>();
 			int highestUses = 0;
 			BlockstateEntry bse = Registries.getBlockstate(id);
@@ -51,6 +55,7 @@ public class RegistryBlockMaterial extends BlockMaterial {
 				Log.debugOnce(String.format("Found no material for registry block %s and state %s", id.toString(), state.toString()));
 				mats[0] = NamespaceID.UNKNOWN;
 			}
+			cache(state, mats);
 			return mats;
 		} else {
 			return super.get(state, biomeValue);
@@ -1,17 +1,24 @@
 package org.jmc.test;
 
-import java.awt.Point;
 import java.lang.management.ManagementFactory;
 import java.lang.management.MemoryMXBean;
 import java.lang.management.MemoryUsage;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
 
+import org.jmc.BlockData;
 import org.jmc.Chunk;
+import org.jmc.registry.NamespaceID;
 import org.jmc.util.ChunkDataPool;
+import org.jmc.util.ChunkKey;
 import org.jmc.util.Log;
+import org.jmc.util.PackedLongArray;
 import org.jmc.util.SmartChunkCache;
+import org.jmc.util.WeightedChunkCache;
 
 /**
  * Performance test suite for the improved memory management components.
@@ -28,6 +35,8 @@ public class PerformanceTest {
             testChunkDataPool();
             testMemoryUsageUnderPressure();
             testCacheEvictionBehavior();
+            testPackedLongArray();
+            testWeightedChunkCache();
             
             Log.info("All performance tests completed successfully!");
             
@@ -43,14 +52,14 @@ public class PerformanceTest {
         Log.info("Testing SmartChunkCache performance...");
         
         SmartChunkCache cache = new SmartChunkCache(100);
-        List<Point> testPoints = generateTestPoints(500);
+        long[] testPoints = generateTestPoints(500);
         
         long startTime = System.nanoTime();
         MemoryUsage startMemory = memoryBean.getHeapMemoryUsage();
         
         // Simulate chunk loading with cache hits and misses
         for (int i = 0; i < 1000; i++) {
-            Point p = testPoints.get(i % testPoints.size());
+            long p = testPoints[i % testPoints.length];
             
             Chunk.Blocks blocks = cache.get(p);
             if (blocks == null) {
@@ -139,7 +148,7 @@ public class PerformanceTest {
             
             // Now test cache behavior under pressure
             for (int i = 0; i < 100; i++) {
-                Point p = new Point(i, i);
+                long p = ChunkKey.of(i, i);
                 Chunk.Blocks blocks = createMockChunkBlocks();
                 cache.put(p, blocks);
                 
@@ -172,7 +181,7 @@ public class PerformanceTest {
         
         // Fill cache beyond capacity
         for (int i = 0; i < 50; i++) {
-            Point p = new Point(i, i);
+            long p = ChunkKey.of(i, i);
             Chunk.Blocks blocks = createMockChunkBlocks();
             cache.put(p, blocks);
         }
@@ -185,12 +194,12 @@ public class PerformanceTest {
         }
         
         // Test access pattern (should keep recently accessed items)
-        Point recentPoint = new Point(45, 45);
+        long recentPoint = ChunkKey.of(45, 45);
         Chunk.Blocks recentBlocks = cache.get(recentPoint);
         
         // Add more items
         for (int i = 100; i < 120; i++) {
-            Point p = new Point(i, i);
+            long p = ChunkKey.of(i, i);
             cache.put(p, createMockChunkBlocks());
         }
         
@@ -205,6 +214,212 @@ public class PerformanceTest {
         cache.logStatistics();
     }
     
+    /**
+     * Compare the section palette index decoding with PackedLongArray against
+     * the per block decoding it replaced, for both long array layouts.
+     */
+    public static void testPackedLongArray() {
+        Log.info("Testing PackedLongArray performance...");
+        
+        final int sections = 2000;
+        Random random = new Random(42);
+        short[] expected = new short[4096];
+        short[] decoded = new short[4096];
+        
+        for (int bits : new int[] {4, 5, 8, 12}) {
+            for (boolean spanning : new boolean[] {false, true}) {
+                for (int i = 0; i < expected.length; i++) {
+                    expected[i] = (short) random.nextInt(1 << bits);
+                }
+                long[] data = spanning ? packSpanning(expected, bits) : packPadded(expected, bits);
+                
+                // warm up both paths and check they agree
+                for (int i = 0; i < 500; i++) {
+                    decodePerBlock(data, bits, spanning, decoded);
+                    PackedLongArray.unpack(data, bits, spanning, decoded, 4096);
+                }
+                if (!Arrays.equals(expected, decoded)) {
+                    Log.error(String.format("PackedLongArray decoded wrong values for %d bits, spanning=%b", bits, spanning), null, false);
+                    continue;
+                }
+                
+                // the per block spanning path copies the whole array for every block, so it gets fewer runs
+                int oldRuns = spanning ? sections / 20 : sections;
+                long startTime = System.nanoTime();
+                for (int i = 0; i < oldRuns; i++) {
+                    decodePerBlock(data, bits, spanning, decoded);
+                }
+                double oldTime = (System.nanoTime() - startTime) / (double) oldRuns;
+                
+                startTime = System.nanoTime();
+                for (int i = 0; i < sections; i++) {
+                    PackedLongArray.unpack(data, bits, spanning, decoded, 4096);
+                }
+                double newTime = (System.nanoTime() - startTime) / (double) sections;
+                
+                Log.info(String.format("%2d bits %s: per block %.1f us/section, unpack %.1f us/section, %.1fx faster",
+                         bits, spanning ? "spanning" : "padded  ", oldTime / 1000, newTime / 1000, oldTime / newTime));
+            }
+        }
+    }
+    
+    /**
+     * Per block decoding used before PackedLongArray.
+     */
+    private static void decodePerBlock(long[] data, int bits, boolean spanning, short[] out) {
+        for (int i = 0; i < out.length; i++) {
+            long value;
+            if (!spanning) {
+                int perLong = 64 / bits;
+                value = (data[i / perLong] >>> ((i % perLong) * bits)) & (-1L >>> (64 - bits));
+            } else {
+                BitSet bitArr = BitSet.valueOf(data).get(i * bits, (i + 1) * bits);
+                value = bitArr.isEmpty() ? 0 : bitArr.toLongArray()[0];
+            }
+            out[i] = (short) value;
+        }
+    }
+    
+    private static long[] packPadded(short[] values, int bits) {
+        int perLong = 64 / bits;
+        long[] data = new long[(values.length + perLong - 1) / perLong];
+        for (int i = 0; i < values.length; i++) {
+            data[i / perLong] |= (long) values[i] << ((i % perLong) * bits);
+        }
+        return data;
+    }
+    
+    private static long[] packSpanning(short[] values, int bits) {
+        long[] data = new long[(values.length * bits + 63) / 64];
+        for (int i = 0; i < values.length; i++) {
+            int bitPos = i * bits;
+            data[bitPos / 64] |= (long) values[i] << (bitPos % 64);
+            if (bitPos % 64 + bits > 64) {
+                data[bitPos / 64 + 1] |= (long) values[i] >>> (64 - bitPos % 64);
+            }
+        }
+        return data;
+    }
+    
+    /**
+     * Compare WeightedChunkCache against SmartChunkCache: hit ratio when a
+     * scan passes through a hot set of chunks, and read throughput with many
+     * threads hitting the cache at once.
+     */
+    public static void testWeightedChunkCache() throws InterruptedException {
+        Log.info("Testing WeightedChunkCache performance...");
+        
+        final int capacity = 400;
+        final long chunkWeight = new FixedSizeBlocks(32 * 1024).estimateSize();
+        final SmartChunkCache smart = new SmartChunkCache(capacity);
+        final WeightedChunkCache weighted = new WeightedChunkCache(capacity * chunkWeight);
+        
+        // hot chunks read again and again while a scan reads each chunk once
+        long[] hot = generateTestPoints(capacity * 3 / 4);
+        long smartHits = 0, weightedHits = 0, reads = 0;
+        int scan = 100000;
+        for (int i = 0; i < 20000; i++) {
+            long p = i % 2 == 0 ? hot[i / 2 % hot.length] : ChunkKey.of(scan++, -1);
+            reads++;
+            if (smart.get(p) != null) {
+                smartHits++;
+            } else {
+                smart.put(p, new FixedSizeBlocks(32 * 1024));
+            }
+            if (weighted.get(p) != null) {
+                weightedHits++;
+            } else {
+                weighted.put(p, new FixedSizeBlocks(32 * 1024));
+            }
+        }
+        Log.info(String.format("Scan over a hot set: SmartChunkCache hit ratio %.1f%%, WeightedChunkCache hit ratio %.1f%%",
+                 100.0 * smartHits / reads, 100.0 * weightedHits / reads));
+        if (weighted.weightedSize() > capacity * chunkWeight) {
+            Log.error("WeightedChunkCache is over its weight: " + weighted.weightedSize(), null, false);
+        }
+        
+        // concurrent reads of cached chunks
+        final long[] cached = generateTestPoints(capacity / 2);
+        smart.clear();
+        weighted.clear();
+        for (long p : cached) {
+            smart.put(p, new FixedSizeBlocks(32 * 1024));
+            weighted.put(p, new FixedSizeBlocks(32 * 1024));
+        }
+        final int threads = 16;
+        final int readsPerThread = 200000;
+        for (int run = 0; run < 2; run++) {
+            long smartTime = timeConcurrentReads(threads, readsPerThread, cached, p -> smart.get(p));
+            long weightedTime = timeConcurrentReads(threads, readsPerThread, cached, p -> weighted.get(p));
+            if (run == 1) {
+                Log.info(String.format("%d threads, %d reads each: SmartChunkCache %.1f ms, WeightedChunkCache %.1f ms, %.1fx faster",
+                         threads, readsPerThread, smartTime / 1e6, weightedTime / 1e6, (double) smartTime / weightedTime));
+            }
+        }
+        weighted.logStatistics();
+    }
+    
+    private static long timeConcurrentReads(int threads, final int reads, final long[] points,
+            final java.util.function.LongFunction<Chunk.Blocks> get) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final int seed = t;
+            new Thread(() -> {
+                try {
+                    start.await();
+                    for (int i = 0; i < reads; i++) {
+                        get.apply(points[(i * 31 + seed) % points.length]);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        long startTime = System.nanoTime();
+        start.countDown();
+        done.await();
+        return System.nanoTime() - startTime;
+    }
+    
+    /**
+     * Empty chunk that reports a fixed decoded size.
+     */
+    private static class FixedSizeBlocks extends Chunk.Blocks {
+        private final long size;
+        
+        FixedSizeBlocks(long size) {
+            this.size = size;
+        }
+        
+        @Override
+        public BlockData getBlockData(int x, int y, int z) {
+            return null;
+        }
+        
+        @Override
+        public NamespaceID getBiome(int x, int y, int z) {
+            return NamespaceID.NULL;
+        }
+        
+        @Override
+        public int getYMin() {
+            return 0;
+        }
+        
+        @Override
+        public int getYMax() {
+            return 0;
+        }
+        
+        @Override
+        public long estimateSize() {
+            return size;
+        }
+    }
+    
     /**
      * Create mock chunk blocks for testing.
      */
@@ -216,16 +431,16 @@ public class PerformanceTest {
     }
     
     /**
-     * Generate random test points.
+     * Generate random test points, as {@link ChunkKey}s.
      */
-    private static List<Point> generateTestPoints(int count) {
-        List<Point> points = new ArrayList<>();
+    private static long[] generateTestPoints(int count) {
+        long[] points = new long[count];
         Random random = new Random(42); // Fixed seed for reproducible tests
         
         for (int i = 0; i < count; i++) {
-            points.add(new Point(random.nextInt(1000), random.nextInt(1000)));
+            points[i] = ChunkKey.of(random.nextInt(1000), random.nextInt(1000));
         }
         
         return points;
     }
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -29,6 +29,13 @@ import org.jmc.util.Log;
  */
 public class ChunkProcessor
 {
+	/** Section has blocks that need to be visited one by one */
+	private static final byte SECTION_MIXED = 0;
+	/** Section has nothing to export */
+	private static final byte SECTION_EMPTY = 1;
+	/** Section is filled with a single block that hides its inside */
+	private static final byte SECTION_SOLID = 2;
+	
 	private int chunk_idx_count=-1;
 	
 	private final ArrayList<Face> optimisedFaces = new ArrayList<Face>();
@@ -184,38 +191,52 @@ public class ChunkProcessor
 		if(zs<zmin) zs=zmin;
 		if(ze>zmax) ze=zmax;
 
+		int minSection = Math.floorDiv(ymin, 16);
+		byte[] sectionKinds = getSectionKinds(chunk, chunk_x, chunk_z, minSection, Math.floorDiv(ymax - 1, 16));
+
 		for(int z = zs; z < ze; z++)
 		{
 			for(int x = xs; x < xe; x++)
 			{
-				for(int y = ymin; y < ymax; y++)
+				// columns whose neighbours are all in the same section and in the export bounds
+				boolean innerColumn = (x & 15) != 0 && (x & 15) != 15 && (z & 15) != 0 && (z & 15) != 15
+						&& x > xmin && x < xmax - 1 && z > zmin && z < zmax - 1;
+				// nothing but air above the heightmap
+				int yEnd = Options.useHeightmaps ? Math.min(ymax, chunk.getColumnTop(x, z)) : ymax;
+				for(int y = ymin; y < yEnd; y++)
 				{
-					BlockData block=chunk.getBlockData(x, y, z);
-					NamespaceID blockBiome=chunk.getBlockBiome(x, y, z);
-					
-					if(block == null || block.id == NamespaceID.NULL)
+					int sectionY = y >> 4;
+					byte sectionKind = sectionKinds[sectionY - minSection];
+					if (sectionKind == SECTION_EMPTY) {
+						y = sectionY * 16 + 15;
 						continue;
+					}
+					if (sectionKind == SECTION_SOLID && innerColumn) {
+						// only the top and bottom of the column can have visible sides
+						int innerMin = Math.max(sectionY * 16 + 1, ymin + 1);
+						int innerMax = Math.min(sectionY * 16 + 14, ymax - 2);
+						if (y >= innerMin && y <= innerMax) {
+							y = innerMax;
+							continue;
+						}
+					}
 					
-					if(Options.isBlockExcluded(block.id))
-						continue;
+					// excluded blocks and ores were resolved once for the section's palette
+					BlockRenderInfo render=chunk.getRenderInfo(x, y, z);
 					
-					BlockInfo blockInfo = block.getInfo();
+					if(render == null)
+						continue;
 					
-					if(Options.convertOres) {
-						NamespaceID oreBase = blockInfo.getOreBase();
-						if (oreBase != null) {
-							block.id = oreBase;
-							blockInfo = block.getInfo();
-						}
-					}
+					BlockData block=render.block;
+					NamespaceID blockBiome=chunk.getBlockBiome(x, y, z);
 					
 					if(Options.objectPerBlock)
 						chunk_idx_count++;
 					
 					try {
-						blockInfo.getModel().addModel(this, chunk, x, y, z, block, blockBiome);
-						if (Boolean.parseBoolean(block.state.get("waterlogged"))) {
-							new BlockData(new NamespaceID("minecraft", "water")).getInfo().getModel().addModel(this, chunk, x, y, z, block, blockBiome);
+						render.model.addModel(this, chunk, x, y, z, block, blockBiome);
+						if (render.waterModel != null) {
+							render.waterModel.addModel(this, chunk, x, y, z, block, blockBiome);
 						}
 					} catch (Exception ex) {
 						Log.errorOnce(String.format("Error rendering block '%s', skipping.", block.id), ex, true);
@@ -304,6 +325,38 @@ public class ChunkProcessor
 		return faces;
 	}
 	
+	/**
+	 * Classifies the sections of a chunk from the render info of their palettes.
+	 * @return the kind of each section from minSection to maxSection
+	 */
+	private static byte[] getSectionKinds(ThreadChunkDeligate chunk, int chunk_x, int chunk_z, int minSection, int maxSection) {
+		byte[] kinds = new byte[maxSection - minSection + 1];
+		// every block is numbered and may be drawn regardless of its neighbours
+		if (Options.objectPerBlock)
+			return kinds;
+		
+		for (int s = minSection; s <= maxSection; s++) {
+			BlockRenderInfo[] infos = chunk.getSectionRenderInfos(chunk_x, chunk_z, s);
+			if (infos == null)
+				continue;
+			
+			boolean empty = true;
+			for (BlockRenderInfo info : infos) {
+				empty &= info == null || info.isInvisible();
+			}
+			if (empty) {
+				kinds[s - minSection] = SECTION_EMPTY;
+			} else if (infos.length == 1) {
+				BlockRenderInfo info = infos[0];
+				if (info.occlusion == BlockInfo.Occlusion.FULL && info.waterModel == null
+						&& info.model.isHiddenWhenEnclosed(info.block)) {
+					kinds[s - minSection] = SECTION_SOLID;
+				}
+			}
+		}
+		return kinds;
+	}
+	
 	/**
 	 * Attempts to join all faces in faces along axis
 	 * @param faceList The faces to combine
@@ -0,0 +1,278 @@
+package org.jmc.threading;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+import javax.annotation.CheckForNull;
+
+import org.jmc.util.ChunkKey;
+import org.jmc.util.Log;
+
+/**
+ * Runs the chunks of an export on a work-stealing {@link ForkJoinPool}.
+ * <p>
+ * The chunks, sorted along the Hilbert curve, are cut into tiles of up to
+ * {@link #TILE_SIDE} by {@link #TILE_SIDE} chunks. The curve goes through
+ * every aligned square of the world before leaving it, so the chunks of a
+ * square are consecutive in the list and a tile is a run of them. A tile is
+ * processed by one worker, which keeps the chunks it reads until the next
+ * tile instead of looking up the neighbours of every chunk again, see
+ * {@link ReaderRunnable#startTile()}.
+ * <p>
+ * The range of tiles is split in halves recursively: each worker goes through
+ * its own range in curve order, and an idle worker steals the largest range
+ * left pending, the one next to what its owner is processing. So every worker
+ * keeps reading chunks next to the ones it has just read, and there is no
+ * shared queue to lock for every chunk.
+ * <p>
+ * The output is written in the order of the chunk list, so the tiles are
+ * submitted in batches of {@link #TILES_PER_THREAD} per thread, with the next
+ * batch queued while the current one completes. The output of a chunk is then
+ * never more than two batches ahead of the writer, see {@link #outputWindow(int)}.
+ * <p>
+ * With {@link #AUTO_THREADS} the number of threads is picked while exporting
+ * by a {@link ThreadCountTuner}. A new pool is started for each count tried,
+ * taking over from the next batch.
+ * <p>
+ * Progress is reported by the {@link WriterRunnable} as the output is written.
+ * The export is cancelled by interrupting the thread calling {@link #run()}.
+ */
+public class ExportScheduler {
+
+	/** Side of the squares of chunks processed by a task, a power of 2 */
+	public static final int TILE_SIDE = 4;
+
+	/** Most chunks in a tile */
+	public static final int TILE_SIZE = TILE_SIDE * TILE_SIDE;
+
+	/** Number of tiles per thread in a batch */
+	public static final int TILES_PER_THREAD = 2;
+
+	/** Thread count that lets the scheduler pick the number of threads */
+	public static final int AUTO_THREADS = 0;
+
+	/** Interval at which the output queue is sampled while tuning, in milliseconds */
+	private static final long SAMPLE_INTERVAL = 20;
+
+	private final long[] chunks;
+	/** Index of the first chunk of each tile, followed by the number of chunks */
+	private final int[] tileStarts;
+	private final ThreadLocal<ReaderRunnable> readers;
+	@CheckForNull
+	private final ThreadOutputQueue outputQueue;
+	@CheckForNull
+	private final ThreadCountTuner tuner;
+	private int threads;
+	/** Chunks of the batches completed so far */
+	private long completed = 0;
+	private volatile boolean cancelled = false;
+
+	/**
+	 * @param chunks {@link ChunkKey}s of the chunks to export, sorted along the Hilbert curve
+	 * @param threads number of worker threads
+	 * @param readerFactory creates the reader of each worker thread
+	 */
+	public ExportScheduler(long[] chunks, int threads, Supplier<ReaderRunnable> readerFactory) {
+		this(chunks, threads, readerFactory, null);
+	}
+
+	/**
+	 * @param chunks {@link ChunkKey}s of the chunks to export, sorted along the Hilbert curve
+	 * @param threads number of worker threads, or {@link #AUTO_THREADS}
+	 * @param readerFactory creates the reader of each worker thread
+	 * @param outputQueue queue the readers put their output in, its progress is measured when picking the number of threads
+	 */
+	public ExportScheduler(long[] chunks, int threads, Supplier<ReaderRunnable> readerFactory,
+			@CheckForNull ThreadOutputQueue outputQueue) {
+		this.chunks = chunks;
+		this.tileStarts = tileStarts(chunks);
+		this.readers = ThreadLocal.withInitial(readerFactory);
+		this.outputQueue = outputQueue;
+		if (threads == AUTO_THREADS) {
+			tuner = new ThreadCountTuner();
+			this.threads = tuner.getThreads();
+		} else {
+			tuner = null;
+			this.threads = Math.max(1, threads);
+		}
+	}
+
+	/**
+	 * Cuts the chunks into runs in the same aligned square of the world.
+	 * Runs are only cut short if the chunks of a square aren't consecutive.
+	 */
+	private static int[] tileStarts(long[] chunks) {
+		int shift = Integer.numberOfTrailingZeros(TILE_SIDE);
+		int[] starts = new int[chunks.length + 1];
+		int tiles = 0;
+		long tile = 0;
+		for (int i = 0; i < chunks.length; i++) {
+			long t = ChunkKey.of(ChunkKey.x(chunks[i]) >> shift, ChunkKey.z(chunks[i]) >> shift);
+			if (i == 0 || t != tile || i - starts[tiles - 1] == TILE_SIZE) {
+				starts[tiles++] = i;
+				tile = t;
+			}
+		}
+		starts[tiles++] = chunks.length;
+		return Arrays.copyOf(starts, tiles);
+	}
+
+	/**
+	 * @param threads number of worker threads, or {@link #AUTO_THREADS}
+	 * @return the most threads used at once
+	 */
+	public static int maxThreads(int threads) {
+		return threads == AUTO_THREADS ? ThreadCountTuner.maxThreads() : Math.max(1, threads);
+	}
+
+	/**
+	 * @param threads number of worker threads, or {@link #AUTO_THREADS}
+	 * @return the largest number of chunks in a batch
+	 */
+	public static int batchSize(int threads) {
+		return maxThreads(threads) * TILES_PER_THREAD * TILE_SIZE;
+	}
+
+	/**
+	 * @param threads number of worker threads, or {@link #AUTO_THREADS}
+	 * @return the size of the {@link ThreadOutputQueue} window needed so that
+	 * readers only wait for the writer when it falls behind
+	 */
+	public static int outputWindow(int threads) {
+		return 3 * batchSize(threads);
+	}
+
+	/**
+	 * Processes all the chunks, returning once they have all been queued
+	 * for writing.
+	 * @throws InterruptedException if the calling thread was interrupted,
+	 * the remaining chunks are skipped
+	 * @throws ExecutionException if a worker failed
+	 */
+	public void run() throws InterruptedException, ExecutionException {
+		List<ForkJoinPool> pools = new ArrayList<>();
+		ForkJoinPool pool = createPool(threads);
+		pools.add(pool);
+		try {
+			int tiles = tileStarts.length - 1;
+			ForkJoinTask<?> previous = null;
+			int previousThreads = 0;
+			int previousEnd = 0;
+			for (int from = 0; from < tiles && !cancelled; ) {
+				int to = Math.min(tiles, from + threads * TILES_PER_THREAD);
+				int nextThreads = threads;
+				ForkJoinTask<?> next = pool.submit(new TileRange(from, to));
+				if (previous != null) {
+					await(previous);
+					completed = previousEnd;
+					if (tuner != null && tuner.batchDone(previousThreads, getProgress(), getOccupancy())) {
+						// the batch already queued finishes on the old pool
+						pool.shutdown();
+						threads = tuner.getThreads();
+						pool = createPool(threads);
+						pools.add(pool);
+					}
+				}
+				previous = next;
+				previousThreads = nextThreads;
+				previousEnd = tileStarts[to];
+				from = to;
+			}
+			if (previous != null)
+				previous.get();
+		} catch (InterruptedException e) {
+			cancelled = true;
+			throw e;
+		} finally {
+			// interrupts workers blocked on the output queue
+			for (ForkJoinPool p : pools)
+				p.shutdownNow();
+			if (tuner != null)
+				Log.info(tuner.getSummary());
+		}
+	}
+
+	private static ForkJoinPool createPool(int threads) {
+		return new ForkJoinPool(threads, p -> {
+			ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+			thread.setName("ReadThread-" + thread.getPoolIndex());
+			thread.setPriority(Thread.NORM_PRIORITY - 1);
+			return thread;
+		}, null, false);
+	}
+
+	/**
+	 * Waits for a batch, sampling the output queue while the thread count is being picked.
+	 */
+	private void await(ForkJoinTask<?> task) throws InterruptedException, ExecutionException {
+		while (tuner != null && !tuner.isDone()) {
+			try {
+				task.get(SAMPLE_INTERVAL, TimeUnit.MILLISECONDS);
+				return;
+			} catch (TimeoutException e) {
+				tuner.sampleOccupancy(getOccupancy());
+			}
+		}
+		task.get();
+	}
+
+	/**
+	 * @return the number of chunks written, or processed if there is no output queue
+	 */
+	private long getProgress() {
+		return outputQueue != null ? outputQueue.getTaken() : completed;
+	}
+
+	private double getOccupancy() {
+		return outputQueue != null ? outputQueue.getOccupancy() : 0;
+	}
+
+	private class TileRange extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final int from;
+		private final int to;
+
+		TileRange(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (cancelled)
+				return;
+			if (to - from > 1) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new TileRange(from, mid), new TileRange(mid, to));
+				return;
+			}
+
+			ReaderRunnable reader = readers.get();
+			reader.startTile();
+			for (int i = tileStarts[from]; i < tileStarts[to]; i++) {
+				if (cancelled || Thread.currentThread().isInterrupted())
+					return;
+				try {
+					reader.processChunk(i, chunks[i]);
+				} catch (InterruptedException e) {
+					cancelled = true;
+					return;
+				} catch (RuntimeException e) {
+					// skip the chunk rather than failing the whole export
+					Log.debug("Error exporting chunk " + ChunkKey.toString(chunks[i]));
+					Log.errorOnce("Error exporting chunk", e, false);
+				}
+			}
+		}
+	}
+}
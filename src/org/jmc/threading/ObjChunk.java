@@ -0,0 +1,73 @@
+package org.jmc.threading;
+
+import org.jmc.geom.UV;
+import org.jmc.geom.Vertex;
+
+/**
+ * OBJ output of a chunk, formatted by a reader thread with
+ * {@link ObjChunkSerializer} and written by the {@link WriterRunnable}.
+ * <p>
+ * The text holds the chunk's vertex lines and its faces, but the indices
+ * used by the faces depend on everything written before the chunk. So they
+ * are left out of the text and kept as references: the position in the text
+ * where the index goes, and a chunk-local index along with its kind. The
+ * writer adds the number of vertices and objects written so far to the local
+ * ones, and maps texture coordinates, normals and shared vertices to the ones
+ * already in the file, as those are written once for all chunks.
+ */
+public class ObjChunk {
+
+	/** Index of a vertex line in the text */
+	static final int VERTEX = 0;
+	/** Index in {@link #sharedVertices} */
+	static final int SHARED_VERTEX = 1;
+	/** Index in {@link #uvs} */
+	static final int UV = 2;
+	/** Index in {@link #normals} */
+	static final int NORMAL = 3;
+	/** Chunk-local object number, may be -1 for the last object of the previous chunk */
+	static final int OBJECT = 4;
+
+	static final int KIND_BITS = 3;
+	static final int KIND_MASK = (1 << KIND_BITS) - 1;
+
+	/** Vertex lines, then faces, without their indices */
+	final byte[] text;
+	/** Positions in the text where an index is inserted, in increasing order */
+	final int[] refPositions;
+	/** Local index shifted by {@link #KIND_BITS}, or'ed with its kind */
+	final int[] refValues;
+
+	/** Number of vertex lines in the text */
+	final int vertexCount;
+	/** Number of objects started by the chunk */
+	final int objectCount;
+
+	/** Vertices on the chunk's edges, merged with the ones of the neighbouring chunks */
+	final Vertex[] sharedVertices;
+	final UV[] uvs;
+	final Vertex[] normals;
+
+	ObjChunk(byte[] text, int[] refPositions, int[] refValues, int vertexCount, int objectCount,
+			Vertex[] sharedVertices, UV[] uvs, Vertex[] normals) {
+		this.text = text;
+		this.refPositions = refPositions;
+		this.refValues = refValues;
+		this.vertexCount = vertexCount;
+		this.objectCount = objectCount;
+		this.sharedVertices = sharedVertices;
+		this.uvs = uvs;
+		this.normals = normals;
+	}
+
+	static int ref(int kind, int index) {
+		return index << KIND_BITS | kind;
+	}
+
+	/**
+	 * @return size of the formatted text in bytes
+	 */
+	public int getTextSize() {
+		return text.length;
+	}
+}
@@ -0,0 +1,222 @@
+package org.jmc.threading;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jmc.Options;
+import org.jmc.geom.FaceUtils.Face;
+import org.jmc.geom.FaceUtils.OBJFace;
+import org.jmc.geom.UV;
+import org.jmc.geom.Vertex;
+import org.jmc.registry.NamespaceID;
+import org.jmc.registry.Registries;
+import org.jmc.registry.TextureEntry;
+import org.jmc.util.ChunkKey;
+
+/**
+ * Formats the faces of a chunk into an {@link ObjChunk}, with chunk-local
+ * indices. Each reader thread has its own serializer, so the OBJ text of
+ * the chunks is formatted in parallel and the writer only has to fill in
+ * the indices.
+ * <p>
+ * Created by {@link WriterRunnable#createSerializer()} with the writer's
+ * offset and scale. Not thread safe.
+ */
+public class ObjChunkSerializer {
+
+	private final double x_offset, y_offset, z_offset;
+	private final float file_scale;
+	private final boolean print_usemtl;
+	private final boolean shareEdges;
+
+	/**
+	 * Maps of the chunk's vertices, texture coordinates and normals to
+	 * their local indexes.
+	 */
+	private final Map<Vertex, Integer> vertexMap = new HashMap<Vertex, Integer>();
+	private final Map<Vertex, Integer> sharedVertexMap = new HashMap<Vertex, Integer>();
+	private final Map<UV, Integer> texCoordMap = new HashMap<UV, Integer>();
+	private final Map<Vertex, Integer> normalsMap = new HashMap<Vertex, Integer>();
+
+	private final List<Vertex> exportVertices = new ArrayList<Vertex>();
+	private final List<Vertex> sharedVertices = new ArrayList<Vertex>();
+	private final List<UV> exportTexCoords = new ArrayList<UV>();
+	private final List<Vertex> exportNormals = new ArrayList<Vertex>();
+	private final List<OBJFace> exportFaces = new ArrayList<OBJFace>();
+
+	private final ObjTextBuffer text = new ObjTextBuffer(1 << 16);
+	private int[] refPositions = new int[1024];
+	private int[] refValues = new int[1024];
+	private int refCount;
+	private int objectCount;
+
+	ObjChunkSerializer(double x_offset, double y_offset, double z_offset, float file_scale, boolean print_usemtl) {
+		this.x_offset = x_offset;
+		this.y_offset = y_offset;
+		this.z_offset = z_offset;
+		this.file_scale = file_scale;
+		this.print_usemtl = print_usemtl;
+		this.shareEdges = Options.removeDuplicates;
+	}
+
+	/**
+	 * @param chunk {@link ChunkKey} of the chunk, {@link ChunkKey#NONE} for output that isn't from a chunk
+	 * @param chunkFaces faces of the chunk
+	 */
+	public ObjChunk serialize(long chunk, List<Face> chunkFaces) {
+		try {
+			addOBJFaces(chunkFaces);
+
+			appendVertices();
+			if (Options.objectPerChunk && !Options.objectPerBlock && chunk != ChunkKey.NONE)
+				text.append(Options.getObjObject()).append(" chunk_").append(ChunkKey.x(chunk))
+						.append('_').append(ChunkKey.z(chunk)).newLine();
+			appendFaces();
+
+			return new ObjChunk(text.toByteArray(),
+					Arrays.copyOf(refPositions, refCount), Arrays.copyOf(refValues, refCount),
+					exportVertices.size(), objectCount,
+					sharedVertices.toArray(new Vertex[0]),
+					exportTexCoords.toArray(new UV[0]),
+					exportNormals.toArray(new Vertex[0]));
+		} finally {
+			clearData();
+		}
+	}
+
+	/**
+	 * Records that an index goes at the current end of the text.
+	 */
+	private void appendRef(int kind, int index) {
+		if (refCount == refPositions.length) {
+			refPositions = Arrays.copyOf(refPositions, refCount * 2);
+			refValues = Arrays.copyOf(refValues, refCount * 2);
+		}
+		refPositions[refCount] = text.length();
+		refValues[refCount] = ObjChunk.ref(kind, index);
+		refCount++;
+	}
+
+	private void appendVertices() {
+		for (Vertex vertex : exportVertices) {
+			double x = (vertex.x + x_offset) * file_scale;
+			double y = (vertex.y + y_offset) * file_scale;
+			double z = (vertex.z + z_offset) * file_scale;
+			text.append("v ").append(x, 3).append(' ').append(y, 3).append(' ').append(z, 3).newLine();
+		}
+	}
+
+	private void appendFaces() {
+		Collections.sort(exportFaces);
+		NamespaceID last_mtl = null;
+		Long last_obj_idx = Long.valueOf(-1);
+		for (OBJFace f : exportFaces) {
+			if (!f.tex.equals(last_mtl) && print_usemtl) {
+				TextureEntry te = Registries.getTexture(f.tex);
+				Registries.objTextures.add(te);
+				text.newLine();
+				text.append("usemtl ").append(te.getMatName()).newLine();
+				last_mtl = f.tex;
+			}
+
+			if (!f.obj_idx.equals(last_obj_idx)) {
+				text.append(Options.getObjObject()).append(" o");
+				appendRef(ObjChunk.OBJECT, f.obj_idx.intValue());
+				text.newLine();
+				last_obj_idx = f.obj_idx;
+			}
+
+			text.append('f');
+			for (int i = 0; i < f.vertices.length; i++) {
+				text.append(' ');
+				appendRef(f.vertices[i] & ObjChunk.KIND_MASK, f.vertices[i] >> ObjChunk.KIND_BITS);
+				if (f.uv != null) {
+					text.append('/');
+					appendRef(ObjChunk.UV, f.uv[i]);
+				}
+				if (f.normals != null) {
+					text.append(f.uv != null ? "/" : "//");
+					appendRef(ObjChunk.NORMAL, f.normals[i]);
+				}
+			}
+			text.newLine();
+		}
+	}
+
+	/**
+	 * Vertices on the edges of chunks are merged across chunks by the writer
+	 * when duplicates are removed.
+	 */
+	private static boolean isEdge(Vertex v) {
+		return (v.x-0.5)%16==0 || (v.z-0.5)%16==0 || (v.x+0.5)%16==0 || (v.z+0.5)%16==0;
+	}
+
+	private void addOBJFaces(List<Face> chunkFaces) {
+		int last_chunk_idx = -1;
+		int obj_idx = -1;
+		for (Face f : chunkFaces) {
+			Vertex[] verts = f.vertices;
+			Vertex[] norms = f.norms;
+			UV[] uv = f.uvs;
+
+			if (f.chunk_idx != last_chunk_idx) {
+				obj_idx++;
+				last_chunk_idx = f.chunk_idx;
+			}
+
+			OBJFace face = new OBJFace(verts.length);
+			face.obj_idx = Long.valueOf(obj_idx);
+			face.tex = f.texture;
+			if (norms == null) face.normals = null;
+			if (uv == null) face.uv = null;
+
+			for (int i = 0; i < verts.length; i++) {
+				// vertices are stored as references, they may be shared
+				Vertex vert = verts[i];
+				if (shareEdges && isEdge(vert)) {
+					face.vertices[i] = ObjChunk.ref(ObjChunk.SHARED_VERTEX, localIndex(sharedVertexMap, sharedVertices, vert));
+				} else {
+					face.vertices[i] = ObjChunk.ref(ObjChunk.VERTEX, localIndex(vertexMap, exportVertices, vert));
+				}
+
+				if (norms != null)
+					face.normals[i] = localIndex(normalsMap, exportNormals, norms[i]);
+
+				if (uv != null)
+					face.uv[i] = localIndex(texCoordMap, exportTexCoords, uv[i]);
+			}
+
+			exportFaces.add(face);
+		}
+		objectCount = obj_idx + 1;
+	}
+
+	private static <T> int localIndex(Map<T, Integer> map, List<T> list, T value) {
+		Integer id = map.get(value);
+		if (id == null) {
+			id = list.size();
+			list.add(value);
+			map.put(value, id);
+		}
+		return id;
+	}
+
+	private void clearData() {
+		vertexMap.clear();
+		sharedVertexMap.clear();
+		texCoordMap.clear();
+		normalsMap.clear();
+		exportVertices.clear();
+		sharedVertices.clear();
+		exportTexCoords.clear();
+		exportNormals.clear();
+		exportFaces.clear();
+		text.clear();
+		refCount = 0;
+		objectCount = 0;
+	}
+}
@@ -0,0 +1,115 @@
+package org.jmc.threading;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Growable buffer of ASCII text, used to format OBJ lines without building
+ * a string for every number.
+ * <p>
+ * Not thread safe.
+ */
+class ObjTextBuffer {
+
+	private static final byte[] NEWLINE = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+
+	private static final int[] POW10 = {1, 10, 100, 1000, 10000, 100000, 1000000, 10000000, 100000000, 1000000000};
+
+	private byte[] data;
+	private int length = 0;
+
+	ObjTextBuffer(int capacity) {
+		data = new byte[capacity];
+	}
+
+	private void ensure(int extra) {
+		if (length + extra > data.length)
+			data = Arrays.copyOf(data, Math.max(data.length * 2, length + extra));
+	}
+
+	ObjTextBuffer append(char c) {
+		ensure(1);
+		data[length++] = (byte) c;
+		return this;
+	}
+
+	/**
+	 * @param s text, only ASCII characters are written correctly
+	 */
+	ObjTextBuffer append(String s) {
+		int n = s.length();
+		ensure(n);
+		for (int i = 0; i < n; i++)
+			data[length++] = (byte) s.charAt(i);
+		return this;
+	}
+
+	ObjTextBuffer append(long val) {
+		if (val < 0) {
+			if (val == Long.MIN_VALUE)
+				return append(Long.toString(val));
+			append('-');
+			val = -val;
+		}
+		int digits = 1;
+		for (long v = val / 10; v != 0; v /= 10)
+			digits++;
+		ensure(digits);
+		for (int i = length + digits - 1; i >= length; i--) {
+			data[i] = (byte) ('0' + val % 10);
+			val /= 10;
+		}
+		length += digits;
+		return this;
+	}
+
+	/**
+	 * Same output as {@link WriterRunnable#formatDouble(double, int)}.
+	 */
+	ObjTextBuffer append(double val, int precision) {
+		if (val < 0) {
+			append('-');
+			val = -val;
+		}
+		int exp = POW10[precision];
+		long lval = (long)(val * exp + 0.5);
+		append(lval / exp).append('.');
+		long fval = lval % exp;
+		for (int p = precision - 1; p > 0 && fval < POW10[p]; p--) {
+			append('0');
+		}
+		return append(fval);
+	}
+
+	ObjTextBuffer append(byte[] text, int offset, int len) {
+		ensure(len);
+		System.arraycopy(text, offset, data, length, len);
+		length += len;
+		return this;
+	}
+
+	ObjTextBuffer newLine() {
+		ensure(NEWLINE.length);
+		for (byte b : NEWLINE)
+			data[length++] = b;
+		return this;
+	}
+
+	int length() {
+		return length;
+	}
+
+	void clear() {
+		length = 0;
+	}
+
+	byte[] toByteArray() {
+		return Arrays.copyOf(data, length);
+	}
+
+	void writeTo(OutputStream out) throws IOException {
+		out.write(data, 0, length);
+	}
+}
@@ -1,62 +1,89 @@
 package org.jmc.threading;
 
-import java.awt.Point;
 import java.util.ArrayList;
 
+import javax.annotation.CheckForNull;
+
 import org.jmc.ChunkDataBuffer;
+import org.jmc.ExportManifest;
 import org.jmc.geom.FaceUtils.Face;
 import org.jmc.threading.ThreadOutputQueue.ChunkOutput;
-import org.jmc.util.Log;
+import org.jmc.util.ChunkKey;
 
-public class ReaderRunnable implements Runnable {
+/**
+ * Exports the chunks given by the {@link ExportScheduler} on a worker thread,
+ * and serializes their output for the {@link WriterRunnable}.
+ */
+public class ReaderRunnable {
+	private final ChunkDataBuffer chunkBuffer;
 	private final ThreadChunkDeligate chunkDeligate;
-	private final ThreadInputQueue inputQueue;
 	private final ThreadOutputQueue outputQueue;
+	private final ObjChunkSerializer serializer;
+	@CheckForNull
+	private final ExportManifest manifest;
 	
-	public ReaderRunnable(ChunkDataBuffer chunk_buffer, ThreadInputQueue inQueue, ThreadOutputQueue outQueue) {
+	/**
+	 * @param serializer formats the output, see {@link WriterRunnable#createSerializer()}
+	 * @param manifest if not null, unchanged chunks are taken from the manifest
+	 * and processed chunks are recorded in it
+	 */
+	public ReaderRunnable(ChunkDataBuffer chunk_buffer, ThreadOutputQueue outQueue, ObjChunkSerializer serializer, @CheckForNull ExportManifest manifest) {
 		super();
+		this.chunkBuffer = chunk_buffer;
 		this.chunkDeligate = new ThreadChunkDeligate(chunk_buffer);
-		this.inputQueue = inQueue;
 		this.outputQueue = outQueue;
+		this.serializer = serializer;
+		this.manifest = manifest;
 	}
-
-	@Override
-	public void run() {
-		Point chunkCoord;
-		while (!Thread.interrupted()) {
-			try {
-				chunkCoord = inputQueue.getNext();
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-				break;
-			}
-			if (chunkCoord == null) {
-				break;
-			}
-			ChunkOutput output = exportChunk(chunkCoord);
-			if (output == null){
-				continue;
-			}
-			try {
-				outputQueue.put(output);
-			} catch (InterruptedException e) {
-				Log.debug(String.format("Reader %s interrupted!", Thread.currentThread().getName()));
-				break;
-			}
+	
+	/**
+	 * Starts a tile of chunks processed one after the other, see
+	 * {@link ThreadChunkDeligate#startTile()}.
+	 */
+	public void startTile() {
+		chunkDeligate.startTile();
+	}
+	
+	/**
+	 * Exports a chunk and queues its output for writing.
+	 * The output is queued even if the export fails, empty, so the writer
+	 * doesn't wait for it.
+	 * @param index index of the chunk in the chunk list
+	 * @param chunk {@link ChunkKey} of the chunk
+	 * @throws InterruptedException if interrupted while waiting for room in the output queue
+	 */
+	public void processChunk(int index, long chunk) throws InterruptedException {
+		ChunkOutput output = null;
+		try {
+			ArrayList<Face> faces = exportChunk(chunk).getFaces();
+			output = new ChunkOutput(chunk, serializer.serialize(chunk, faces));
+		} finally {
+			chunkBuffer.chunkProcessed(chunk);
+			if (output == null)
+				output = new ChunkOutput(chunk, new ArrayList<Face>());
+			outputQueue.put(index, output);
 		}
 	}
 	
-	private ChunkOutput exportChunk(Point chunkCoord){
-		int chunkX = chunkCoord.x;
-		int chunkZ = chunkCoord.y;
+	private ChunkOutput exportChunk(long chunk){
+		int chunkX = ChunkKey.x(chunk);
+		int chunkZ = ChunkKey.z(chunk);
+		
+		if (manifest != null) {
+			ChunkOutput reused = manifest.reuse(chunk);
+			if (reused != null)
+				return reused;
+		}
 		
-		chunkDeligate.setCurrentChunk(chunkCoord);
+		chunkDeligate.setCurrentChunk(chunk);
 
 		// export the chunk to the OBJ
 		ChunkProcessor proc = new ChunkProcessor();
 		ArrayList<Face> faces = proc.process(chunkDeligate, chunkX, chunkZ);
 		
-		ChunkOutput output = new ChunkOutput(chunkCoord, faces);
+		ChunkOutput output = new ChunkOutput(chunk, faces);
+		if (manifest != null)
+			manifest.record(output);
 		return output;
 	}
 }
@@ -1,39 +1,69 @@
 package org.jmc.threading;
 
-import java.awt.Point;
 import java.awt.Rectangle;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 
 import javax.annotation.CheckForNull;
 
 import org.jmc.BlockData;
-import org.jmc.Chunk;
+import org.jmc.BlockRenderInfo;
+import org.jmc.BlockStateRegistry;
 import org.jmc.Chunk.Blocks;
 import org.jmc.ChunkDataBuffer;
 import org.jmc.NBT.NBT_Tag;
 import org.jmc.NBT.TAG_Compound;
 import org.jmc.NBT.TAG_Int;
 import org.jmc.registry.NamespaceID;
+import org.jmc.util.ChunkKey;
 import org.jmc.util.EmptyList;
+import org.jmc.util.LongHashSet;
+import org.jmc.util.LongObjectMap;
 
 public class ThreadChunkDeligate {
 
+	/** Returned for positions outside the export bounds, shared and not modifiable */
+	private static final BlockData EXPORTEDGE = BlockStateRegistry.intern(new BlockData(NamespaceID.EXPORTEDGE));
+	
+	/** Most chunks kept for a tile, in case tiles aren't started */
+	private static final int MAX_TILE_CHUNKS = 256;
+	
 	private final ChunkDataBuffer chunkBuffer;
 	
-	private Point currChunkPoint;
+	private boolean hasCurrChunk = false;
+	private int currChunkX;
+	private int currChunkZ;
 	private Blocks currChunkBlocks;
+	/**
+	 * The current chunk and its 8 neighbours, indexed by
+	 * {@code (cx - currChunkX + 1) + (cz - currChunkZ + 1) * 3}
+	 */
+	private final Blocks[] neighbourChunks = new Blocks[9];
+	private final boolean[] neighbourLoaded = new boolean[9];
 	private final Rectangle xzBoundaries;
 	private final Rectangle xyBoundaries;
-	private final Map<Point,Blocks> auxChunks;
+	/** Chunks read since the start of the tile, see {@link #startTile()} */
+	private final LongObjectMap<Blocks> tileChunks;
+	/** Chunks found missing since the start of the tile */
+	private final LongHashSet tileMissing;
+	
+	/** Lowest section with blocks in the export bounds */
+	private final int minMaskSection;
+	/** Opacity masks of the current chunk's sections, from minMaskSection up */
+	@CheckForNull
+	private final long[][] currChunkMasks;
 	
 	public ThreadChunkDeligate(ChunkDataBuffer chunkBuffer) {
 		super();
 		this.chunkBuffer = chunkBuffer;
 		xzBoundaries = chunkBuffer.getXZBoundaries();
 		xyBoundaries = chunkBuffer.getXYBoundaries();
-		auxChunks = new HashMap<Point, Blocks>();
+		tileChunks = new LongObjectMap<>();
+		tileMissing = new LongHashSet();
+		
+		minMaskSection = Math.floorDiv(xyBoundaries.y, 16);
+		long maskSections = Math.floorDiv((long)xyBoundaries.y + xyBoundaries.height - 1, 16) - minMaskSection + 1;
+		currChunkMasks = maskSections > 0 && maskSections <= 1024 ? new long[(int)maskSections][] : null;
 	}
 	
 	public Rectangle getXZBoundaries()
@@ -59,51 +89,172 @@ public class ThreadChunkDeligate {
 	}
 
 	@CheckForNull
-	private Blocks getBlocks(Point p) {
-		if (!p.equals(currChunkPoint)) {
-			Blocks blocks = auxChunks.get(p);
-			if (blocks == null) {
-				blocks = chunkBuffer.getBlocks(p);
-				auxChunks.put(p, blocks);
+	private Blocks getBlocks(int cx, int cz) {
+		if (hasCurrChunk) {
+			int dx = cx - currChunkX + 1;
+			int dz = cz - currChunkZ + 1;
+			if (dx >= 0 && dx < 3 && dz >= 0 && dz < 3) {
+				int i = dx + dz * 3;
+				if (!neighbourLoaded[i]) {
+					neighbourChunks[i] = getTileBlocks(ChunkKey.of(cx, cz));
+					neighbourLoaded[i] = true;
+				}
+				return neighbourChunks[i];
 			}
-			return blocks;
 		}
-		return currChunkBlocks;
+		return getTileBlocks(ChunkKey.of(cx, cz));
+	}
+	
+	/**
+	 * Gets the blocks of a chunk from the ones read for the tile, reading
+	 * them from the buffer the first time.
+	 */
+	@CheckForNull
+	private Blocks getTileBlocks(long key) {
+		Blocks blocks = tileChunks.get(key);
+		if (blocks == null && !tileMissing.contains(key)) {
+			blocks = chunkBuffer.getBlocks(key);
+			if (blocks != null)
+				tileChunks.put(key, blocks);
+			else
+				tileMissing.add(key);
+		}
+		return blocks;
 	}
 	
 	@CheckForNull
 	public BlockData getBlockData(int x, int y, int z)
 	{
 		if (!isInBounds(x, y, z)) {
-			return new BlockData(NamespaceID.EXPORTEDGE);
+			return EXPORTEDGE;
 		}
-		Point chunk_p=Chunk.getChunkPos(x, z);
-		Blocks blocks=getBlocks(chunk_p);
+		Blocks blocks=getBlocks(x >> 4, z >> 4);
 		
 		if(blocks==null) return null;
 		
-		int rx=x-(chunk_p.x*16);
-		int rz=z-(chunk_p.y*16);
+		return blocks.getBlockData(x & 15, y, z & 15);
+	}
+	
+	/**
+	 * See {@link Blocks#getRenderInfo(int, int, int)}.
+	 * Doesn't check the export bounds.
+	 */
+	@CheckForNull
+	public BlockRenderInfo getRenderInfo(int x, int y, int z)
+	{
+		Blocks blocks=getBlocks(x >> 4, z >> 4);
+		
+		if(blocks==null) return null;
 		
-		return blocks.getBlockData(rx, y, rz);
+		return blocks.getRenderInfo(x & 15, y, z & 15);
+	}
+	
+	/**
+	 * Finds the sides of a block whose neighbour hides them whatever the
+	 * block is, using the {@link Blocks#getOpacityMask(int) opacity masks} of
+	 * the sections instead of looking up the neighbours.
+	 * @return bit i set if side i is hidden, in order UP, NORTH, SOUTH,
+	 * WEST, EAST, DOWN. A cleared bit means the side must be checked with
+	 * the neighbouring block.
+	 */
+	public int getOccludedSides(int x, int y, int z)
+	{
+		int sides = 0;
+		if (isOccluding(x, y + 1, z)) sides |= 1;
+		if (isOccluding(x, y, z - 1)) sides |= 2;
+		if (isOccluding(x, y, z + 1)) sides |= 4;
+		if (isOccluding(x - 1, y, z)) sides |= 8;
+		if (isOccluding(x + 1, y, z)) sides |= 16;
+		if (isOccluding(x, y - 1, z)) sides |= 32;
+		return sides;
+	}
+	
+	private boolean isOccluding(int x, int y, int z)
+	{
+		if (!isInBounds(x, y, z))
+			return false;
+		long[] mask = getOpacityMask(x >> 4, z >> 4, y >> 4);
+		if (mask == null)
+			return false;
+		int index = (x & 15) | (z & 15) << 4 | (y & 15) << 8;
+		return (mask[index >> 6] & 1L << index) != 0;
+	}
+	
+	@CheckForNull
+	private long[] getOpacityMask(int cx, int cz, int sectionY)
+	{
+		boolean current = hasCurrChunk && cx == currChunkX && cz == currChunkZ;
+		int i = sectionY - minMaskSection;
+		if (current && currChunkMasks != null && i >= 0 && i < currChunkMasks.length) {
+			long[] mask = currChunkMasks[i];
+			if (mask == null && currChunkBlocks != null) {
+				mask = currChunkBlocks.getOpacityMask(sectionY);
+				currChunkMasks[i] = mask;
+			}
+			return mask;
+		}
+		Blocks blocks = getBlocks(cx, cz);
+		return blocks == null ? null : blocks.getOpacityMask(sectionY);
+	}
+	
+	/**
+	 * See {@link Blocks#getSectionPalette(int)}.
+	 * @param cx chunk x
+	 * @param cz chunk z
+	 * @param sectionY section index, i.e. y / 16
+	 */
+	@CheckForNull
+	public BlockData[] getSectionPalette(int cx, int cz, int sectionY)
+	{
+		Blocks blocks=getBlocks(cx, cz);
+		
+		if(blocks==null) return Blocks.EMPTY_PALETTE;
+		
+		return blocks.getSectionPalette(sectionY);
+	}
+	
+	/**
+	 * See {@link Blocks#getSectionRenderInfos(int)}.
+	 * @param cx chunk x
+	 * @param cz chunk z
+	 * @param sectionY section index, i.e. y / 16
+	 */
+	@CheckForNull
+	public BlockRenderInfo[] getSectionRenderInfos(int cx, int cz, int sectionY)
+	{
+		Blocks blocks=getBlocks(cx, cz);
+		
+		if(blocks==null) return Blocks.EMPTY_RENDER_INFOS;
+		
+		return blocks.getSectionRenderInfos(sectionY);
+	}
+	
+	/**
+	 * See {@link Blocks#getColumnTop(int, int)}.
+	 * @return the y above the highest block of the column that isn't air,
+	 * or Integer.MAX_VALUE if it isn't known
+	 */
+	public int getColumnTop(int x, int z)
+	{
+		Blocks blocks=getBlocks(x >> 4, z >> 4);
+		
+		if(blocks==null) return Integer.MAX_VALUE;
+		
+		return blocks.getColumnTop(x & 15, z & 15);
 	}
 	
 	public NamespaceID getBlockBiome(int x, int y, int z)
 	{
-		Point chunk_p=Chunk.getChunkPos(x, z);
-		Blocks blocks=getBlocks(chunk_p);
+		Blocks blocks=getBlocks(x >> 4, z >> 4);
 		
 		if(blocks==null) return NamespaceID.NULL;
 		
-		int rx=x-(chunk_p.x*16);
-		int rz=z-(chunk_p.y*16);
-		
-		return blocks.getBiome(rx, y, rz);
+		return blocks.getBiome(x & 15, y, z & 15);
 	}
 	
 	public List<TAG_Compound> getEntities(int cx, int cz)
 	{
-		Blocks blocks=getBlocks(new Point(cx, cz));
+		Blocks blocks=getBlocks(cx, cz);
 
 		if(blocks==null)
 			return new EmptyList<TAG_Compound>();
@@ -113,7 +264,7 @@ public class ThreadChunkDeligate {
 	
 	public List<TAG_Compound> getTileEntities(int cx, int cz)
 	{
-		Blocks blocks=getBlocks(new Point(cx, cz));
+		Blocks blocks=getBlocks(cx, cz);
 		
 		if(blocks==null)
 			return new EmptyList<TAG_Compound>();
@@ -123,29 +274,45 @@ public class ThreadChunkDeligate {
 
 	public TAG_Compound getTileEntity(int x, int y, int z)
 	{
-		Point chunk_p=Chunk.getChunkPos(x, z);
-		
-		for (TAG_Compound tag : getTileEntities(chunk_p.x, chunk_p.y))
+		for (TAG_Compound tag : getTileEntities(x >> 4, z >> 4))
 		{
-			int entx = Integer.MAX_VALUE;
-			int enty = Integer.MAX_VALUE;
-			int entz = Integer.MAX_VALUE;
-			for (NBT_Tag subtag : tag.elements)
-			{
-				if (subtag.getName().equals("x")) entx = ((TAG_Int)subtag).value;
-				if (subtag.getName().equals("y")) enty = ((TAG_Int)subtag).value;
-				if (subtag.getName().equals("z")) entz = ((TAG_Int)subtag).value;
-			}
-			if (entx == x && enty == y && entz == z)
+			if (isTagInt(tag.getElement("x"), x) && isTagInt(tag.getElement("y"), y) && isTagInt(tag.getElement("z"), z))
 				return tag;
 		}
 		
 		return null;
 	}
 	
-	public void setCurrentChunk(Point p) {
-		currChunkPoint = p;
-		currChunkBlocks = chunkBuffer.getBlocks(p);
-		auxChunks.clear();
+	private static boolean isTagInt(NBT_Tag tag, int value) {
+		return tag instanceof TAG_Int && ((TAG_Int)tag).value == value;
+	}
+	
+	/**
+	 * @param chunk {@link ChunkKey} of the chunk being processed
+	 */
+	public void setCurrentChunk(long chunk) {
+		hasCurrChunk = true;
+		currChunkX = ChunkKey.x(chunk);
+		currChunkZ = ChunkKey.z(chunk);
+		if (tileChunks.size() > MAX_TILE_CHUNKS)
+			startTile();
+		currChunkBlocks = getTileBlocks(chunk);
+		Arrays.fill(neighbourChunks, null);
+		Arrays.fill(neighbourLoaded, false);
+		neighbourChunks[4] = currChunkBlocks;
+		neighbourLoaded[4] = true;
+		if (currChunkMasks != null)
+			Arrays.fill(currChunkMasks, null);
+	}
+	
+	/**
+	 * Forgets the chunks read for the previous tile. The chunks of a tile
+	 * and their neighbours are kept until the next one starts, so that the
+	 * neighbours shared by the chunks of the tile are only looked up in the
+	 * buffer once.
+	 */
+	public void startTile() {
+		tileChunks.clear();
+		tileMissing.clear();
 	}
 }
@@ -0,0 +1,190 @@
+package org.jmc.threading;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.CheckForNull;
+
+/**
+ * Picks the number of export threads while exporting, for
+ * {@link ExportScheduler#AUTO_THREADS}.
+ * <p>
+ * Starts with one thread per core and measures the chunks per second taken
+ * by the writer over at least {@link #SAMPLE_CHUNKS} chunks, along with how
+ * full the output queue is, so that output piling up in the queue doesn't
+ * count as throughput. The count is then doubled as long as that raises the
+ * throughput by more than {@link #MIN_GAIN}. If it doesn't, or the writer is
+ * already the bottleneck, the count is halved as long as the throughput stays
+ * within {@link #MIN_GAIN} of the fastest count measured. The smallest count
+ * that does is kept for the rest of the export.
+ * <p>
+ * Only used by the thread running the scheduler.
+ */
+class ThreadCountTuner {
+
+	/** Minimum number of chunks measured for a thread count */
+	static final int SAMPLE_CHUNKS = 256;
+
+	/** Relative change in throughput that counts as a change */
+	private static final double MIN_GAIN = 0.1;
+
+	/** Output queue occupancy above which the readers are waiting for the writer */
+	private static final double WRITER_BOUND = 0.9;
+
+	private static class Measurement {
+		private final int threads;
+		private final double chunksPerSecond;
+		private final double occupancy;
+
+		private Measurement(int threads, double chunksPerSecond, double occupancy) {
+			this.threads = threads;
+			this.chunksPerSecond = chunksPerSecond;
+			this.occupancy = occupancy;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d threads: %.1f chunks/s, output queue %.0f%% full", threads, chunksPerSecond, occupancy * 100);
+		}
+	}
+
+	private final int maxThreads;
+	private final List<Measurement> measurements = new ArrayList<>();
+	private int threads;
+	/** Measurement of the count to use */
+	@CheckForNull
+	private Measurement best;
+	/** Fastest measurement, the counts tried when shrinking are compared to it */
+	@CheckForNull
+	private Measurement peak;
+	private boolean growing = true;
+	private boolean done = false;
+
+	// current measurement
+	private boolean warmedUp = false;
+	private long startTime;
+	private long startProgress;
+	private double occupancySum;
+	private int occupancySamples;
+
+	ThreadCountTuner() {
+		int cores = Runtime.getRuntime().availableProcessors();
+		maxThreads = maxThreads();
+		threads = Math.min(cores, maxThreads);
+	}
+
+	/**
+	 * @return the most threads the tuner uses
+	 */
+	static int maxThreads() {
+		return Math.max(2, 2 * Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @return the thread count to use
+	 */
+	int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * @return true once the thread count is settled
+	 */
+	boolean isDone() {
+		return done;
+	}
+
+	/**
+	 * Records how full the output queue is.
+	 * @param occupancy share of the output queue window in use
+	 */
+	void sampleOccupancy(double occupancy) {
+		if (warmedUp) {
+			occupancySum += occupancy;
+			occupancySamples++;
+		}
+	}
+
+	/**
+	 * Records a batch of chunks that completed.
+	 * @param batchThreads thread count the batch was run with
+	 * @param progress number of chunks written so far
+	 * @param occupancy share of the output queue window in use
+	 * @return true if the thread count changed
+	 */
+	boolean batchDone(int batchThreads, long progress, double occupancy) {
+		long now = System.nanoTime();
+		if (done || batchThreads != threads)
+			return false;
+		if (!warmedUp) {
+			// the first batch ran alongside the last one of the previous count
+			warmedUp = true;
+			startTime = now;
+			startProgress = progress;
+			return false;
+		}
+		sampleOccupancy(occupancy);
+		long chunks = progress - startProgress;
+		if (chunks < SAMPLE_CHUNKS)
+			return false;
+
+		Measurement m = new Measurement(threads, chunks * 1e9 / Math.max(1, now - startTime), occupancySum / occupancySamples);
+		measurements.add(m);
+		if (peak == null || m.chunksPerSecond > peak.chunksPerSecond)
+			peak = m;
+		int next;
+		if (best == null) {
+			best = m;
+			growing = m.occupancy < WRITER_BOUND;
+			next = growing ? threads * 2 : threads / 2;
+		} else if (growing) {
+			if (m.chunksPerSecond > best.chunksPerSecond * (1 + MIN_GAIN)) {
+				best = m;
+				next = threads * 2;
+			} else if (measurements.size() == 2) {
+				// adding threads didn't help from the start, try removing some
+				growing = false;
+				next = best.threads / 2;
+			} else {
+				next = 0;
+			}
+		} else {
+			if (m.chunksPerSecond >= peak.chunksPerSecond * (1 - MIN_GAIN)) {
+				best = m;
+				next = threads / 2;
+			} else {
+				next = 0;
+			}
+		}
+
+		if (next < 1 || next > maxThreads || next == best.threads) {
+			done = true;
+			next = best.threads;
+		}
+		return setThreads(next);
+	}
+
+	private boolean setThreads(int next) {
+		warmedUp = false;
+		occupancySum = 0;
+		occupancySamples = 0;
+		if (next == threads)
+			return false;
+		threads = next;
+		return true;
+	}
+
+	/**
+	 * @return the thread count and the measurements it was picked from
+	 */
+	String getSummary() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("Export threads: ").append(threads);
+		if (!done)
+			sb.append(" (the export ended before the count settled)");
+		sb.append(", pin it with -t ").append(threads);
+		for (Measurement m : measurements)
+			sb.append(String.format("%n  ")).append(m);
+		return sb.toString();
+	}
+}
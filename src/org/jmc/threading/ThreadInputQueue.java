@@ -1,37 +1,56 @@
 package org.jmc.threading;
 
-import java.awt.Point;
-import java.util.LinkedList;
-import java.util.Queue;
+import org.jmc.util.ChunkKey;
 
+/**
+ * Queue of {@link ChunkKey chunks} to process, kept in a growing ring of longs.
+ */
 public class ThreadInputQueue {
-	private Queue<Point> inputQueue = new LinkedList<Point>();
+	private long[] inputQueue = new long[64];
+	private int head = 0;
+	private int size = 0;
 	private boolean finished = false;
-	
-	public synchronized void add(Point p){
-		inputQueue.add(p);
+
+	public synchronized void add(long chunk){
+		if (size == inputQueue.length) {
+			long[] grown = new long[inputQueue.length * 2];
+			for (int i = 0; i < size; i++) {
+				grown[i] = inputQueue[(head + i) % inputQueue.length];
+			}
+			inputQueue = grown;
+			head = 0;
+		}
+		inputQueue[(head + size) % inputQueue.length] = chunk;
+		size++;
 		notify();
 	}
 
-	public synchronized Point getNext() throws InterruptedException {
+	/**
+	 * @return the next chunk, or {@link ChunkKey#NONE} once the queue is finished and empty
+	 */
+	public synchronized long getNext() throws InterruptedException {
 		while (true) {
-			if (!inputQueue.isEmpty()) {
-				return inputQueue.remove();
+			if (size > 0) {
+				long chunk = inputQueue[head];
+				head = (head + 1) % inputQueue.length;
+				size--;
+				return chunk;
 			} else if (finished) {
-				return null;
+				return ChunkKey.NONE;
 			}
 			wait();
 		}
 	}
-	
+
 	public synchronized void clear() {
-		inputQueue.clear();
+		head = 0;
+		size = 0;
 	}
-	
+
 	public synchronized int size() {
-		return inputQueue.size();
+		return size;
 	}
-	
+
 	public synchronized void finish(){
 		finished = true;
 		notifyAll();
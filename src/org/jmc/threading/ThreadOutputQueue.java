@@ -1,65 +1,155 @@
 package org.jmc.threading;
 
-import java.awt.Point;
 import java.util.ArrayList;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+
+import javax.annotation.CheckForNull;
 
 import org.jmc.geom.FaceUtils.Face;
+import org.jmc.util.ChunkKey;
 
+/**
+ * Queue of the output of the readers, taken by the {@link WriterRunnable} in
+ * the order of the chunk list, so that the file is the same whichever thread
+ * processed which chunk.
+ * <p>
+ * Each output is put with its index in the chunk list. It is held until all
+ * the ones before it have been taken, in a window of limited size: readers
+ * putting output too far ahead of the writer wait for it to catch up.
+ */
 public class ThreadOutputQueue{
-	private final BlockingQueue<ChunkOutput> outputQueue;
+	private final ChunkOutput[] window;
+	/** Index of the next output to take */
+	private int nextTake = 0;
+	/** Index given to output put without one */
+	private int nextPut = 0;
+	private int size = 0;
 	
 	public static class ChunkOutput {
-		private Point chunkCoord;
-		private ArrayList<Face> faces;
+		private final long chunk;
+		@CheckForNull
+		private final ArrayList<Face> faces;
+		@CheckForNull
+		private final ObjChunk obj;
 		
-		public ChunkOutput(Point chunkCoord, ArrayList<Face> faces) {
-			this.chunkCoord = chunkCoord;
+		/**
+		 * @param chunk {@link ChunkKey} of the chunk, {@link ChunkKey#NONE} for output that isn't from a chunk
+		 */
+		public ChunkOutput(long chunk, ArrayList<Face> faces) {
+			this.chunk = chunk;
 			this.faces = faces;
+			this.obj = null;
+		}
+		
+		/**
+		 * Output already serialized by the reader.
+		 * @param chunk {@link ChunkKey} of the chunk
+		 */
+		public ChunkOutput(long chunk, ObjChunk obj) {
+			this.chunk = chunk;
+			this.faces = null;
+			this.obj = obj;
 		}
 		
-		public Point getChunkCoord() {
-			return chunkCoord;
+		/**
+		 * @return {@link ChunkKey} of the chunk
+		 */
+		public long getChunk() {
+			return chunk;
 		}
 
+		/**
+		 * @return the faces, null if the output was serialized
+		 */
+		@CheckForNull
 		public ArrayList<Face> getFaces() {
 			return faces;
 		}
+		
+		/**
+		 * @return the serialized output, null if it wasn't serialized
+		 */
+		@CheckForNull
+		public ObjChunk getObj() {
+			return obj;
+		}
 	}
 	
-	public ThreadOutputQueue(int queueSize) {
-		outputQueue = new LinkedBlockingQueue<ChunkOutput>(queueSize);
+	/**
+	 * @param windowSize how far ahead of the next output to take output can be put
+	 */
+	public ThreadOutputQueue(int windowSize) {
+		window = new ChunkOutput[Math.max(1, windowSize)];
 	}
 	
 	/**
-	 * Calls {@link BlockingQueue#put()}
+	 * Puts an output, waiting until it is in the window.
+	 * Every index from 0 must be put once, the writer waits for missing ones.
+	 * @param index index of the output in the chunk list
 	 * @param outChunk the {@link ChunkOutput chunk} to put in the queue
 	 * @throws InterruptedException
 	 */
-	public void put(ChunkOutput outChunk) throws InterruptedException {
-		outputQueue.put(outChunk);
+	public synchronized void put(int index, ChunkOutput outChunk) throws InterruptedException {
+		while (index - nextTake >= window.length) {
+			wait();
+		}
+		window[index % window.length] = outChunk;
+		size++;
+		notifyAll();
 	}
 	
 	/**
-	 * Calls {@link BlockingQueue#take()} and notifies {@link #waitUntilEmpty()}
+	 * Puts an output after the last one put by this method, for a single
+	 * producer. Can't be mixed with {@link #put(int, ChunkOutput)}.
+	 * @param outChunk the {@link ChunkOutput chunk} to put in the queue
 	 * @throws InterruptedException
 	 */
-	public ChunkOutput take() throws InterruptedException {
-		ChunkOutput outChunk = outputQueue.take();
+	public void put(ChunkOutput outChunk) throws InterruptedException {
+		int index;
 		synchronized (this) {
-			notifyAll();
+			index = nextPut++;
 		}
+		put(index, outChunk);
+	}
+	
+	/**
+	 * Takes the next output in order, waiting until it is put,
+	 * and notifies {@link #waitUntilEmpty()}
+	 * @throws InterruptedException
+	 */
+	public synchronized ChunkOutput take() throws InterruptedException {
+		int slot = nextTake % window.length;
+		while (window[slot] == null) {
+			wait();
+		}
+		ChunkOutput outChunk = window[slot];
+		window[slot] = null;
+		nextTake++;
+		size--;
+		notifyAll();
 		return outChunk;
 	}
 	
 	
+	/**
+	 * @return the number of outputs taken so far
+	 */
+	public synchronized int getTaken() {
+		return nextTake;
+	}
+	
+	/**
+	 * @return the share of the window holding output not taken yet
+	 */
+	public synchronized double getOccupancy() {
+		return (double) size / window.length;
+	}
+	
 	/**
 	 * Waits on this until take is called and queue is emptied
 	 * @throws InterruptedException
 	 */
 	public synchronized void waitUntilEmpty() throws InterruptedException {
-		while (!outputQueue.isEmpty()) {
+		while (size > 0) {
 			wait();
 		}
 	}
@@ -1,60 +1,25 @@
 package org.jmc.threading;
 
-import java.awt.Point;
-import java.io.PrintWriter;
-import java.text.DecimalFormat;
-import java.util.ArrayList;
-import java.util.Collections;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 
-import org.jmc.geom.FaceUtils.Face;
-import org.jmc.geom.FaceUtils.OBJFace;
-import org.jmc.Options;
 import org.jmc.ProgressCallback;
-import org.jmc.UVRecalculate;
 import org.jmc.geom.UV;
 import org.jmc.geom.Vertex;
-import org.jmc.registry.NamespaceID;
-import org.jmc.registry.Registries;
-import org.jmc.registry.TextureEntry;
 import org.jmc.threading.ThreadOutputQueue.ChunkOutput;
 import org.jmc.util.Log;
 
 public class WriterRunnable implements Runnable {
 
 	/**
-	 * List of vertices currently being exported.
-	 */
-	private List<Vertex> exportVertices;
-	/**
-	 * List of texture coordinates in the file
-	 */
-	private List<UV> exportTexCoords;
-	/**
-	 * List of normals
-	 */
-	private List<Vertex> exportNormals;
-	/**
-	 * List of faces
-	 */
-	private List<OBJFace> exportFaces;
-	
-	/**
-	 * Map of vertices to their respective IDs used in the faces of the mesh.
-	 */
-	private Map<Vertex, Integer> vertexMap;
-
-	/**
-	 * Map of texture coordinates to their respective indexes in the OBJ file.
+	 * Maps of texture coordinates, normals and vertices shared between chunks
+	 * to their respective indexes in the OBJ file.
 	 */
 	private Map<UV, Integer> texCoordMap;
-
-	/**
-	 * Map of normals to their respective indexes in the OBJ file.
-	 */
 	private Map<Vertex, Integer> normalsMap;
+	private Map<Vertex, Integer> sharedVertexMap;
 
 	private int vertex_counter, tex_counter, norm_counter;
 	
@@ -74,16 +39,29 @@ public class WriterRunnable implements Runnable {
 	
 	private ThreadOutputQueue outputQueue;
 	
-	private PrintWriter obj_writer;
+	private OutputStream obj_stream;
+	
+	/**
+	 * Serializes the output that wasn't serialized by a reader.
+	 */
+	private ObjChunkSerializer serializer;
+	
+	private final ObjTextBuffer buffer = new ObjTextBuffer(1 << 16);
+	
+	private boolean failed = false;
 	
 	private ProgressCallback progress;
 	private int chunksToDo;
 	
-	public WriterRunnable(ThreadOutputQueue queue, PrintWriter writer, ProgressCallback progress, int chunksToDo) {
+	/**
+	 * @param stream stream of the OBJ file, anything written to it must be
+	 * flushed before the writer is started
+	 */
+	public WriterRunnable(ThreadOutputQueue queue, OutputStream stream, ProgressCallback progress, int chunksToDo) {
 		super();
 		
 		outputQueue = queue;
-		obj_writer = writer;
+		obj_stream = stream;
 		this.progress = progress;
 		this.chunksToDo = chunksToDo;
 		
@@ -93,18 +71,13 @@ public class WriterRunnable implements Runnable {
 		file_scale = 1.0f;
 		print_usemtl=true;
 		
-		obj_idx_count = -1;
-		vertexMap = new HashMap<Vertex, Integer>();
+		obj_idx_count = 0;
 		vertex_counter = 1;
 		texCoordMap = new HashMap<UV, Integer>();
 		tex_counter = 1;
 		normalsMap = new HashMap<Vertex, Integer>();
 		norm_counter = 1;
-		
-		exportVertices = new ArrayList<Vertex>();
-		exportTexCoords = new ArrayList<UV>();
-		exportNormals = new ArrayList<Vertex>();
-		exportFaces = new ArrayList<OBJFace>();
+		sharedVertexMap = new HashMap<Vertex, Integer>();
 	}
 
 	@Override
@@ -120,19 +93,22 @@ public class WriterRunnable implements Runnable {
 				break;
 			}
 			
-			Point chunkCoord = chunkOut.getChunkCoord();
-			ArrayList<Face> chunkFaces = chunkOut.getFaces();
-			
-			addOBJFaces(chunkFaces);
+			ObjChunk obj = chunkOut.getObj();
+			if (obj == null) {
+				if (serializer == null)
+					serializer = createSerializer();
+				obj = serializer.serialize(chunkOut.getChunk(), chunkOut.getFaces());
+			}
 			
-			// export the chunk to the OBJ
-			appendTextures(obj_writer);
-			appendNormals(obj_writer);
-			appendVertices(obj_writer);
-			if (Options.objectPerChunk && !Options.objectPerBlock && chunkCoord != null)
-				obj_writer.println(Options.getObjObject() + " chunk_" + chunkCoord.x + "_" + chunkCoord.y);
-			appendFaces(obj_writer);
-			clearData();
+			// keep taking the output after an error, so that the readers don't wait for room
+			if (!failed) {
+				try {
+					appendChunk(obj);
+				} catch (IOException e) {
+					Log.error("Error writing the OBJ file", e, true);
+					failed = true;
+				}
+			}
 			
 			chunksDone++;
 			if (progress != null) {
@@ -140,6 +116,12 @@ public class WriterRunnable implements Runnable {
 				progress.setProgress(progValue);
 			}
 		}
+		try {
+			obj_stream.flush();
+		} catch (IOException e) {
+			if (!failed)
+				Log.error("Error writing the OBJ file", e, true);
+		}
 	}
 
 	/**
@@ -175,180 +157,89 @@ public class WriterRunnable implements Runnable {
 	}
 	
 	/**
-	 * Write texture coordinates. These will be shared by all chunks.
-	 * @param out writer of the OBJ file
-	 */
-	private void appendTextures(PrintWriter out) {
-		for (UV uv : exportTexCoords) {
-			out.println("vt " + formatDouble(uv.u, 9) + " " + formatDouble(uv.v, 9));
-		}
-	}
-
-	/**
-	 * Write normals. These will be shared by all chunks.
-	 * @param out writer of the OBJ file
-	 */
-	private void appendNormals(PrintWriter out) {
-		for (Vertex norm : exportNormals) {
-			out.println("vn " + formatDouble(norm.x, 3) + " " + formatDouble(norm.y, 3) + " " + formatDouble(norm.z, 3));
-		}
-	}
-
-	/**
-	 * Appends vertices to the file.
-	 * @param out
+	 * Creates a serializer for the reader threads, with the current offset,
+	 * scale and usemtl switch of the writer.
 	 */
-	private void appendVertices(PrintWriter out) {
-		for (Vertex vertex : exportVertices) {
-			double x = (vertex.x + x_offset) * file_scale;
-			double y = (vertex.y + y_offset) * file_scale;
-			double z = (vertex.z + z_offset) * file_scale;
-			out.println("v " + formatDouble(x, 3) + " " + formatDouble(y, 3) + " " + formatDouble(z, 3));
-		}
+	public ObjChunkSerializer createSerializer() {
+		return new ObjChunkSerializer(x_offset, y_offset, z_offset, file_scale, print_usemtl);
 	}
-
+	
 	/**
-	 * This method prints faces from the current buffer to an OBJ format.
-	 * 
-	 * @param out file to append the data
+	 * Writes a chunk to the file.
+	 * Texture coordinates, normals and the vertices shared with other chunks
+	 * are written the first time they are used, then the chunk's own text,
+	 * with its local indices offset by what was written before it.
+	 * @param obj the chunk
 	 */
-	private void appendFaces(PrintWriter out)
-	{		
-		Collections.sort(exportFaces);
-		NamespaceID last_mtl=null;	
-		Long last_obj_idx=Long.valueOf(-1);
-		for(OBJFace f:exportFaces)
-		{
-			if(!f.tex.equals(last_mtl) && print_usemtl)
-			{
-				TextureEntry te = Registries.getTexture(f.tex);
-				Registries.objTextures.add(te);
-				out.println();
-				out.println("usemtl "+te.getMatName());
-				last_mtl=f.tex;
-			}
-			
-			if(!f.obj_idx.equals(last_obj_idx))
-			{
-				out.println(Options.getObjObject() + " o"+f.obj_idx);
-				last_obj_idx=f.obj_idx;
+	private void appendChunk(ObjChunk obj) throws IOException {
+		int[] uvIds = new int[obj.uvs.length];
+		for (int i = 0; i < uvIds.length; i++) {
+			UV uv = obj.uvs[i];
+			Integer uvId = texCoordMap.get(uv);
+			if (uvId == null) {
+				buffer.append("vt ").append(uv.u, 9).append(' ').append(uv.v, 9).newLine();
+				uvId = tex_counter++;
+				texCoordMap.put(uv, uvId);
 			}
-
-			out.print("f");
-			for (int i = 0; i < f.vertices.length; i++)
-			{
-				
-				if (f.normals != null && f.uv != null)
-					out.print(" " + f.vertices[i] + "/" + f.uv[i] + "/" + f.normals[i]);
-					//out.format((Locale)null, " %d/%d/%d", f.vertices[i], f.uv[i], f.normals[i]);
-				else if (f.normals == null && f.uv != null)
-					out.print(" " + f.vertices[i] + "/" + f.uv[i]);
-					//out.format((Locale)null, " %d/%d", f.vertices[i], f.uv[i]);
-				else if (f.normals != null && f.uv == null)
-					out.print(" " + f.vertices[i] + "//" + f.normals[i]);
-					//out.format((Locale)null, " %d//%d", f.vertices[i], f.normals[i]);
-				else
-					out.print(" " + f.vertices[i]);
-					//out.format((Locale)null, " %d", f.vertices[i]);
-			}
-			out.println();
+			uvIds[i] = uvId;
 		}
-	}
-	
-	private void addOBJFaces(ArrayList<Face> chunkFaces)
-	{
-		int last_chunk_idx=-1;
-		for (Face f : chunkFaces) {
-			Vertex[] verts = f.vertices;
-			Vertex[] norms = f.norms;
-			UV[] uv = f.uvs;
-			NamespaceID tex = f.texture;
-			
-			if(f.chunk_idx != last_chunk_idx)
-			{
-				obj_idx_count++;
-				last_chunk_idx=f.chunk_idx;
-			}
-			
-			OBJFace face = new OBJFace(verts.length);
-			face.obj_idx=Long.valueOf(obj_idx_count);
-			face.tex = tex;
-			if (norms == null) face.normals = null;
-			if (uv == null) 
-			{
-				face.uv = null;
-			}
-			else if(Options.textureMerge)
-			{
-				//uv=UVRecalculate.recalculate(uv, tex); TODO fix single tex export
+		
+		int[] normIds = new int[obj.normals.length];
+		for (int i = 0; i < normIds.length; i++) {
+			Vertex norm = obj.normals[i];
+			Integer normId = normalsMap.get(norm);
+			if (normId == null) {
+				buffer.append("vn ").append(norm.x, 3).append(' ').append(norm.y, 3).append(' ').append(norm.z, 3).newLine();
+				normId = norm_counter++;
+				normalsMap.put(norm, normId);
 			}
+			normIds[i] = normId;
+		}
 		
-			for (int i = 0; i < verts.length; i++)
-			{
-				// add vertices
-				Vertex vert;
-				vert = verts[i];
-				
-				Integer vertId = vertexMap.get(vert); 
-				if (vertId != null) {
-					face.vertices[i] = vertId;
-				} else  {
-					exportVertices.add(vert);
-					vertexMap.put(vert, vertex_counter);
-					face.vertices[i] = vertex_counter;
-					vertex_counter++;
-				}
+		int[] sharedIds = new int[obj.sharedVertices.length];
+		for (int i = 0; i < sharedIds.length; i++) {
+			Vertex vertex = obj.sharedVertices[i];
+			Integer vertId = sharedVertexMap.get(vertex);
+			if (vertId == null) {
+				appendVertex(vertex);
+				vertId = vertex_counter++;
+				sharedVertexMap.put(vertex, vertId);
+			}
+			sharedIds[i] = vertId;
+		}
 		
-				// add normals
-				if (norms != null) {
-					Vertex norm;
-					norm = norms[i];
-					
-					Integer normId = normalsMap.get(norm);
-					if (normId != null) {
-						face.normals[i] = normId;
-					} else {
-						exportNormals.add(norm);
-						normalsMap.put(norm, norm_counter);
-						face.normals[i] = norm_counter;
-						norm_counter++;
-					}
-				}
+		int vertexBase = vertex_counter;
+		vertex_counter += obj.vertexCount;
+		long objBase = obj_idx_count;
+		obj_idx_count += obj.objectCount;
 		
-				// add texture coords
-				if (uv != null) {
-					Integer uvId = texCoordMap.get(uv[i]);
-					if (uvId != null)	 {
-						face.uv[i] = uvId;
-					} else {
-						exportTexCoords.add(uv[i]);
-						texCoordMap.put(uv[i], tex_counter);
-						face.uv[i] = tex_counter;
-						tex_counter++;
-					}
-				}
+		int pos = 0;
+		for (int r = 0; r < obj.refPositions.length; r++) {
+			buffer.append(obj.text, pos, obj.refPositions[r] - pos);
+			pos = obj.refPositions[r];
+			int index = obj.refValues[r] >> ObjChunk.KIND_BITS;
+			switch (obj.refValues[r] & ObjChunk.KIND_MASK) {
+			case ObjChunk.VERTEX: buffer.append(vertexBase + index); break;
+			case ObjChunk.SHARED_VERTEX: buffer.append(sharedIds[index]); break;
+			case ObjChunk.UV: buffer.append(uvIds[index]); break;
+			case ObjChunk.NORMAL: buffer.append(normIds[index]); break;
+			case ObjChunk.OBJECT: buffer.append(objBase + index); break;
 			}
+		}
+		buffer.append(obj.text, pos, obj.text.length - pos);
 		
-			exportFaces.add(face);
+		try {
+			buffer.writeTo(obj_stream);
+		} finally {
+			buffer.clear();
 		}
 	}
 	
-	private void clearData() {
-		if(Options.removeDuplicates)
-		{
-			//keep edge vertices
-			for(Vertex v:exportVertices)
-				if((v.x-0.5)%16!=0 && (v.z-0.5)%16!=0 && (v.x+0.5)%16!=0 && (v.z+0.5)%16!=0)
-					vertexMap.remove(v);
-		}
-		else
-		{
-			vertexMap.clear();
-		}
-		exportVertices.clear();
-		exportTexCoords.clear();
-		exportNormals.clear();
-		exportFaces.clear();
+	private void appendVertex(Vertex vertex) {
+		double x = (vertex.x + x_offset) * file_scale;
+		double y = (vertex.y + y_offset) * file_scale;
+		double z = (vertex.z + z_offset) * file_scale;
+		buffer.append("v ").append(x, 3).append(' ').append(y, 3).append(' ').append(z, 3).newLine();
 	}
 	
 	// fast double format from https://stackoverflow.com/a/10554128/5233018
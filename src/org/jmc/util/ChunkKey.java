@@ -0,0 +1,60 @@
+package org.jmc.util;
+
+import java.awt.Point;
+
+/**
+ * Chunk coordinates packed in a long, x in the high 32 bits and z in the
+ * low ones.
+ * <p>
+ * Used instead of {@link Point} to pass chunks around and as map keys: keys
+ * are immutable, take no allocation and hash cheaply, see {@link LongObjectMap}.
+ */
+public final class ChunkKey {
+
+	/**
+	 * Key that isn't any chunk, its x coordinate is far outside of any world.
+	 */
+	public static final long NONE = Long.MIN_VALUE;
+
+	private ChunkKey() {
+	}
+
+	public static long of(int x, int z) {
+		return (long) x << 32 | (z & 0xffffffffL);
+	}
+
+	public static long of(Point chunk) {
+		return of(chunk.x, chunk.y);
+	}
+
+	public static int x(long key) {
+		return (int) (key >> 32);
+	}
+
+	public static int z(long key) {
+		return (int) key;
+	}
+
+	/**
+	 * @return the key of the chunk dx, dz chunks away
+	 */
+	public static long offset(long key, int dx, int dz) {
+		return of(x(key) + dx, z(key) + dz);
+	}
+
+	public static Point toPoint(long key) {
+		return new Point(x(key), z(key));
+	}
+
+	/**
+	 * Mixes the bits of a key so that neighbouring chunks spread over a hash table.
+	 */
+	public static int hash(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ h >>> 32);
+	}
+
+	public static String toString(long key) {
+		return x(key) + "," + z(key);
+	}
+}
@@ -0,0 +1,321 @@
+package org.jmc.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Per-thread pool of chunk payload decompressors.
+ * <p>
+ * Each {@link Decompressor} keeps its native {@link Inflater}s and its input and
+ * output buffers between chunks, so decompressing a chunk doesn't allocate or
+ * finalize anything once the thread has warmed up. Decompressors are borrowed
+ * and released by the same thread, so the pool itself needs no locking.
+ * <p>
+ * Supports all the Anvil compression types: 1 (GZip), 2 (Zlib),
+ * 3 (uncompressed) and 4 (LZ4).
+ */
+public class DecompressorPool {
+
+	public static final int COMPRESSION_GZIP = 1;
+	public static final int COMPRESSION_ZLIB = 2;
+	public static final int COMPRESSION_NONE = 3;
+	public static final int COMPRESSION_LZ4 = 4;
+	/** Set on the compression type when the chunk is stored in an external .mcc file */
+	public static final int EXTERNAL_FLAG = 128;
+
+	/** Max decompressors kept per thread, a chunk and its entities need 2 */
+	private static final int MAX_POOLED = 4;
+
+	private static final ThreadLocal<ArrayDeque<Decompressor>> pools = new ThreadLocal<ArrayDeque<Decompressor>>() {
+		@Override
+		protected ArrayDeque<Decompressor> initialValue() {
+			return new ArrayDeque<>(MAX_POOLED);
+		}
+	};
+
+	/**
+	 * Borrows a decompressor for the current thread, it must be
+	 * {@link #release(Decompressor) released} by the same thread once the
+	 * stream it returned has been read.
+	 */
+	public static Decompressor borrow() {
+		Decompressor dec = pools.get().pollFirst();
+		return dec != null ? dec : new Decompressor();
+	}
+
+	/**
+	 * Returns the decompressor to the current thread's pool.
+	 * Any stream previously returned by it must not be used after this.
+	 */
+	public static void release(Decompressor dec) {
+		if (dec == null) {
+			return;
+		}
+		dec.trim();
+		ArrayDeque<Decompressor> pool = pools.get();
+		if (pool.size() < MAX_POOLED) {
+			pool.addFirst(dec);
+		} else {
+			dec.end();
+		}
+	}
+
+	/**
+	 * Reusable decompression engine.
+	 */
+	public static class Decompressor {
+		private static final int DEFAULT_INPUT_SIZE = 64 * 1024;
+		private static final int DEFAULT_OUTPUT_SIZE = 256 * 1024;
+		/** Buffers bigger than this are dropped on release so one huge chunk doesn't pin memory */
+		private static final int MAX_RETAINED_SIZE = 4 * 1024 * 1024;
+
+		private final Inflater zlibInflater = new Inflater();
+		private final Inflater rawInflater = new Inflater(true);
+		private byte[] input = new byte[DEFAULT_INPUT_SIZE];
+		private byte[] output = new byte[DEFAULT_OUTPUT_SIZE];
+
+		private Decompressor() {
+		}
+
+		/**
+		 * Gets the reusable input buffer, large enough to hold {@code size} bytes.
+		 * Used to read compressed payloads that aren't already in memory.
+		 */
+		public byte[] getInputBuffer(int size) {
+			if (input.length < size) {
+				input = new byte[Math.max(size, input.length * 2)];
+			}
+			return input;
+		}
+
+		/**
+		 * Decompresses a chunk payload.
+		 * @param payload compressed data, from its position to its limit
+		 * @param compressionType Anvil compression type, without the {@link #EXTERNAL_FLAG}
+		 * @return stream of the decompressed data, valid until this decompressor is released
+		 * @throws IOException if the data is corrupt or the compression type is unknown
+		 */
+		public InputStream decompress(ByteBuffer payload, int compressionType) throws IOException {
+			if (compressionType == COMPRESSION_NONE) {
+				return new ByteBufferInputStream(payload);
+			}
+
+			byte[] in;
+			int inOff;
+			int inLen = payload.remaining();
+			if (payload.hasArray()) {
+				in = payload.array();
+				inOff = payload.arrayOffset() + payload.position();
+			} else {
+				in = getInputBuffer(inLen);
+				inOff = 0;
+				payload.duplicate().get(in, 0, inLen);
+			}
+
+			int outLen;
+			switch (compressionType) {
+			case COMPRESSION_GZIP:
+				int headerLen = gzipHeaderLength(in, inOff, inLen);
+				outLen = inflate(rawInflater, in, inOff + headerLen, inLen - headerLen);
+				break;
+			case COMPRESSION_ZLIB:
+				outLen = inflate(zlibInflater, in, inOff, inLen);
+				break;
+			case COMPRESSION_LZ4:
+				outLen = lz4Block(in, inOff, inLen);
+				break;
+			default:
+				throw new IOException("Wrong compression type! " + compressionType);
+			}
+			return new ByteBufferInputStream(ByteBuffer.wrap(output, 0, outLen));
+		}
+
+		private int inflate(Inflater inflater, byte[] in, int off, int len) throws IOException {
+			inflater.reset();
+			inflater.setInput(in, off, len);
+			int total = 0;
+			try {
+				while (!inflater.finished()) {
+					if (total == output.length) {
+						growOutput(total + 1);
+					}
+					int n = inflater.inflate(output, total, output.length - total);
+					if (n == 0 && !inflater.finished()) {
+						if (inflater.needsInput()) {
+							throw new IOException("Unexpected end of compressed chunk data");
+						}
+						if (inflater.needsDictionary()) {
+							throw new IOException("Compressed chunk data needs a dictionary");
+						}
+					}
+					total += n;
+				}
+			} catch (DataFormatException e) {
+				throw new IOException("Corrupt compressed chunk data", e);
+			}
+			return total;
+		}
+
+		/**
+		 * @return the length of the GZip member header, the deflate stream starts after it
+		 */
+		private static int gzipHeaderLength(byte[] in, int off, int len) throws IOException {
+			final int FHCRC = 2, FEXTRA = 4, FNAME = 8, FCOMMENT = 16;
+			if (len < 10 || (in[off] & 0xff) != 0x1f || (in[off + 1] & 0xff) != 0x8b || in[off + 2] != 8) {
+				throw new IOException("Not in GZip format");
+			}
+			int flags = in[off + 3] & 0xff;
+			int pos = 10;
+			try {
+				if ((flags & FEXTRA) != 0) {
+					pos += 2 + ((in[off + pos] & 0xff) | (in[off + pos + 1] & 0xff) << 8);
+				}
+				if ((flags & FNAME) != 0) {
+					while (in[off + pos++] != 0);
+				}
+				if ((flags & FCOMMENT) != 0) {
+					while (in[off + pos++] != 0);
+				}
+			} catch (ArrayIndexOutOfBoundsException e) {
+				throw new IOException("Corrupt GZip header");
+			}
+			if ((flags & FHCRC) != 0) {
+				pos += 2;
+			}
+			if (pos > len) {
+				throw new IOException("Corrupt GZip header");
+			}
+			return pos;
+		}
+
+		/**
+		 * Decodes the LZ4 block stream format written by lz4-java's
+		 * LZ4BlockOutputStream, which is what Minecraft uses for type 4.
+		 */
+		private int lz4Block(byte[] in, int off, int len) throws IOException {
+			final int HEADER_LENGTH = 21;// magic + token + compressed len + original len + checksum
+			final int METHOD_RAW = 0x10;
+			final int METHOD_LZ4 = 0x20;
+
+			int pos = off;
+			int end = off + len;
+			int total = 0;
+			while (pos + HEADER_LENGTH <= end) {
+				if (in[pos] != 'L' || in[pos + 1] != 'Z' || in[pos + 2] != '4' || in[pos + 3] != 'B'
+						|| in[pos + 4] != 'l' || in[pos + 5] != 'o' || in[pos + 6] != 'c' || in[pos + 7] != 'k') {
+					throw new IOException("Corrupt LZ4 block header");
+				}
+				int method = in[pos + 8] & 0xf0;
+				int compressedLen = readIntLE(in, pos + 9);
+				int originalLen = readIntLE(in, pos + 13);
+				pos += HEADER_LENGTH;
+				if (originalLen == 0 && compressedLen == 0) {
+					break;// end mark
+				}
+				if (compressedLen < 0 || originalLen < 0 || pos + compressedLen > end) {
+					throw new IOException("Corrupt LZ4 block header");
+				}
+				growOutput(total + originalLen);
+				if (method == METHOD_RAW) {
+					System.arraycopy(in, pos, output, total, compressedLen);
+				} else if (method == METHOD_LZ4) {
+					int n = lz4Decode(in, pos, compressedLen, output, total);
+					if (n != originalLen) {
+						throw new IOException("Corrupt LZ4 data");
+					}
+				} else {
+					throw new IOException("Unknown LZ4 block compression method " + method);
+				}
+				pos += compressedLen;
+				total += originalLen;
+			}
+			return total;
+		}
+
+		/**
+		 * Decodes a single raw LZ4 block.
+		 * @return number of bytes written to {@code out}
+		 */
+		private static int lz4Decode(byte[] in, int off, int len, byte[] out, int outOff) throws IOException {
+			int s = off;
+			int sEnd = off + len;
+			int d = outOff;
+			try {
+				while (true) {
+					int token = in[s++] & 0xff;
+					int literals = token >>> 4;
+					if (literals == 15) {
+						int b;
+						do {
+							b = in[s++] & 0xff;
+							literals += b;
+						} while (b == 255);
+					}
+					System.arraycopy(in, s, out, d, literals);
+					s += literals;
+					d += literals;
+					if (s >= sEnd) {
+						break;// the last sequence only has literals
+					}
+
+					int matchOff = (in[s] & 0xff) | (in[s + 1] & 0xff) << 8;
+					s += 2;
+					int match = d - matchOff;
+					if (matchOff == 0 || match < outOff) {
+						throw new IOException("Corrupt LZ4 data");
+					}
+					int matchLen = token & 0xf;
+					if (matchLen == 15) {
+						int b;
+						do {
+							b = in[s++] & 0xff;
+							matchLen += b;
+						} while (b == 255);
+					}
+					matchLen += 4;
+					if (matchOff >= matchLen) {
+						System.arraycopy(out, match, out, d, matchLen);
+						d += matchLen;
+					} else {// overlapping copy, repeats the last matchOff bytes
+						for (int i = 0; i < matchLen; i++) {
+							out[d++] = out[match + i];
+						}
+					}
+				}
+			} catch (ArrayIndexOutOfBoundsException e) {
+				throw new IOException("Corrupt LZ4 data");
+			}
+			return d - outOff;
+		}
+
+		private static int readIntLE(byte[] b, int i) {
+			return (b[i] & 0xff) | (b[i + 1] & 0xff) << 8 | (b[i + 2] & 0xff) << 16 | (b[i + 3] & 0xff) << 24;
+		}
+
+		private void growOutput(int size) {
+			if (output.length < size) {
+				byte[] newOutput = new byte[Math.max(size, output.length * 2)];
+				System.arraycopy(output, 0, newOutput, 0, output.length);
+				output = newOutput;
+			}
+		}
+
+		private void trim() {
+			if (input.length > MAX_RETAINED_SIZE) {
+				input = new byte[DEFAULT_INPUT_SIZE];
+			}
+			if (output.length > MAX_RETAINED_SIZE) {
+				output = new byte[DEFAULT_OUTPUT_SIZE];
+			}
+		}
+
+		private void end() {
+			zlibInflater.end();
+			rawInflater.end();
+		}
+	}
+}
@@ -0,0 +1,22 @@
+package org.jmc.util;
+
+/**
+ * Hashes used to key persistent data, stable across runs and JVMs.
+ */
+public class Hash {
+
+	private Hash() {
+	}
+
+	/**
+	 * 64-bit FNV-1a of the characters of a string.
+	 */
+	public static long fnv1a64(CharSequence str) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < str.length(); i++) {
+			hash ^= str.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+}
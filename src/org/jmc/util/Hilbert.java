@@ -8,18 +8,75 @@ public class Hilbert {
 	// Adapted from https://en.wikipedia.org/wiki/Hilbert_curve#Applications_and_mapping_algorithms
 	//convert (x,y) to d
 	public static long pointToIndex (int size, Point pt) {
-		Point p = new Point(pt);// copy to not destroy the passed point
+		return pointToIndex(size, pt.x, pt.y);
+	}
+
+	public static long pointToIndex (int size, int x, int y) {
 	    int rx, ry, level;
 		long index = 0;
 	    for (level=size/2; level>0; level/=2) {
-	        rx = (p.x & level) > 0 ?1:0;
-	        ry = (p.y & level) > 0 ?1:0;
-	        index += level * level * ((3 * rx) ^ ry);
-	        rot(size, p, rx, ry);
+	        rx = (x & level) > 0 ?1:0;
+	        ry = (y & level) > 0 ?1:0;
+	        index += (long) level * level * ((3 * rx) ^ ry);
+	        //rotate/flip the quadrant, see rot()
+	        if (ry == 0) {
+	            if (rx == 1) {
+	                x = size-1 - x;
+	                y = size-1 - y;
+	            }
+	            int t = x;
+	            x = y;
+	            y = t;
+	        }
 	    }
 	    return index;
 	}
 
+	/**
+	 * Sorts {@link ChunkKey}s along the Hilbert curve, computing the index of
+	 * each chunk once. The sort is stable, same as {@link HilbertComparator}.
+	 * @param keys chunks to sort
+	 * @param size side of the area covered by the chunks
+	 */
+	public static void sort(long[] keys, int size) {
+		size = curveSize(size);
+		long[] indices = new long[keys.length];
+		for (int i = 0; i < keys.length; i++) {
+			indices[i] = pointToIndex(size, ChunkKey.x(keys[i]), ChunkKey.z(keys[i]));
+		}
+		mergeSort(indices, keys, indices.clone(), keys.clone(), 0, keys.length);
+	}
+
+	/**
+	 * Sorts the given range of indices, and keys along with them, using the
+	 * copies as scratch space. The copies must hold the same values.
+	 */
+	private static void mergeSort(long[] indices, long[] keys, long[] indicesCopy, long[] keysCopy, int from, int to) {
+		if (to - from < 2)
+			return;
+		int mid = (from + to) >>> 1;
+		// sort the halves of the copy then merge them back
+		mergeSort(indicesCopy, keysCopy, indices, keys, from, mid);
+		mergeSort(indicesCopy, keysCopy, indices, keys, mid, to);
+		int a = from, b = mid;
+		for (int i = from; i < to; i++) {
+			if (b >= to || (a < mid && indicesCopy[a] <= indicesCopy[b])) {
+				indices[i] = indicesCopy[a];
+				keys[i] = keysCopy[a++];
+			} else {
+				indices[i] = indicesCopy[b];
+				keys[i] = keysCopy[b++];
+			}
+		}
+	}
+
+	/**
+	 * @return the smallest power of 2 not smaller than size
+	 */
+	private static int curveSize(int size) {
+		return (int) Math.pow(2, Math.ceil(Math.log(size)/Math.log(2)));
+	}
+
 	//convert d to (x,y)
 	public static Point indexToPoint(int size, int index) {
 		Point p = new Point();
@@ -54,12 +111,12 @@ public class Hilbert {
 		private int size = 8;
 		
 		public HilbertComparator(int size) {
-			this.size = (int) Math.pow(2, Math.ceil(Math.log(size)/Math.log(2)));
+			this.size = curveSize(size);
 		}
 		
 		@Override
 		public int compare(Point a, Point b) {
-			int hil = Long.compare(Hilbert.pointToIndex(size, a), Hilbert.pointToIndex(size, b));
+			int hil = Long.compare(Hilbert.pointToIndex(size, a.x, a.y), Hilbert.pointToIndex(size, b.x, b.y));
 			return hil;
 		}
 
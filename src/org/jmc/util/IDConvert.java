@@ -5,6 +5,7 @@ import com.google.gson.annotations.Expose;
 import com.google.gson.annotations.JsonAdapter;
 import com.google.gson.reflect.TypeToken;
 import org.jmc.BlockData;
+import org.jmc.BlockStateRegistry;
 import org.jmc.Blockstate;
 import org.jmc.registry.NamespaceID;
 
@@ -68,7 +69,7 @@ public class IDConvert {
         } else {
 			Log.debugOnce(String.format("unknown block id: %d:%d", id, Byte.toUnsignedInt(data)));
 		}
-		return block;
+		return BlockStateRegistry.intern(block);
 	}
 	
 	public static NamespaceID convertBiome(int id) {
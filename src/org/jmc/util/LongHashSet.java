@@ -0,0 +1,61 @@
+package org.jmc.util;
+
+/**
+ * Set of primitive longs, usually {@link ChunkKey}s, backed by a {@link LongObjectMap}.
+ * <p>
+ * Not thread safe.
+ */
+public class LongHashSet {
+
+	private static final Object PRESENT = new Object();
+
+	private final LongObjectMap<Object> map;
+
+	public LongHashSet() {
+		map = new LongObjectMap<>();
+	}
+
+	/**
+	 * @param expectedSize number of values the set can hold without growing
+	 */
+	public LongHashSet(int expectedSize) {
+		map = new LongObjectMap<>(expectedSize);
+	}
+
+	/**
+	 * @return true if the value wasn't in the set
+	 */
+	public boolean add(long value) {
+		return map.put(value, PRESENT) == null;
+	}
+
+	public boolean contains(long value) {
+		return map.containsKey(value);
+	}
+
+	/**
+	 * @return true if the value was in the set
+	 */
+	public boolean remove(long value) {
+		return map.remove(value) != null;
+	}
+
+	public int size() {
+		return map.size();
+	}
+
+	public boolean isEmpty() {
+		return map.isEmpty();
+	}
+
+	public void clear() {
+		map.clear();
+	}
+
+	/**
+	 * @return the values of the set, in no particular order
+	 */
+	public long[] toArray() {
+		return map.keys();
+	}
+}
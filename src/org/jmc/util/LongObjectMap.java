@@ -0,0 +1,187 @@
+package org.jmc.util;
+
+import java.util.Arrays;
+import java.util.function.LongFunction;
+
+import javax.annotation.CheckForNull;
+
+/**
+ * Hash map from primitive long keys, usually {@link ChunkKey}s, to objects.
+ * <p>
+ * Open addressing with linear probing in two flat arrays, so lookups don't
+ * box the key or follow entry objects. A slot is empty when its value is
+ * null, null values can't be stored. Removals shift the following entries
+ * back instead of leaving tombstones.
+ * <p>
+ * Not thread safe.
+ */
+public class LongObjectMap<V> {
+
+	private static final float LOAD_FACTOR = 0.5f;
+
+	public interface Consumer<V> {
+		void accept(long key, V value);
+	}
+
+	private long[] keys;
+	private Object[] values;
+	private int mask;
+	private int size = 0;
+	private int resizeAt;
+
+	public LongObjectMap() {
+		this(16);
+	}
+
+	/**
+	 * @param expectedSize number of entries the map can hold without growing
+	 */
+	public LongObjectMap(int expectedSize) {
+		allocate(tableSize(expectedSize));
+	}
+
+	private static int tableSize(int expectedSize) {
+		int size = 8;
+		while (size * LOAD_FACTOR < expectedSize && size < 1 << 30)
+			size <<= 1;
+		return size;
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		values = new Object[capacity];
+		mask = capacity - 1;
+		resizeAt = (int) (capacity * LOAD_FACTOR);
+	}
+
+	private int slot(long key) {
+		int i = ChunkKey.hash(key) & mask;
+		while (values[i] != null && keys[i] != key)
+			i = (i + 1) & mask;
+		return i;
+	}
+
+	@CheckForNull
+	@SuppressWarnings("unchecked")
+	public V get(long key) {
+		return (V) values[slot(key)];
+	}
+
+	public boolean containsKey(long key) {
+		return values[slot(key)] != null;
+	}
+
+	/**
+	 * @param value the value, not null
+	 * @return the previous value of the key or null
+	 */
+	@CheckForNull
+	@SuppressWarnings("unchecked")
+	public V put(long key, V value) {
+		if (value == null)
+			throw new NullPointerException("Null values can't be stored");
+		int i = slot(key);
+		V old = (V) values[i];
+		keys[i] = key;
+		values[i] = value;
+		if (old == null && ++size > resizeAt)
+			grow();
+		return old;
+	}
+
+	/**
+	 * Gets the value of a key, creating it if the key isn't mapped.
+	 * @param make creates the value, must not return null
+	 */
+	@SuppressWarnings("unchecked")
+	public V computeIfAbsent(long key, LongFunction<? extends V> make) {
+		int i = slot(key);
+		V value = (V) values[i];
+		if (value == null) {
+			value = make.apply(key);
+			put(key, value);
+		}
+		return value;
+	}
+
+	/**
+	 * @return the removed value or null if the key wasn't mapped
+	 */
+	@CheckForNull
+	@SuppressWarnings("unchecked")
+	public V remove(long key) {
+		int i = slot(key);
+		V old = (V) values[i];
+		if (old == null)
+			return null;
+		size--;
+		// shift back the entries that probed past the removed one
+		int gap = i;
+		int j = i;
+		while (true) {
+			j = (j + 1) & mask;
+			if (values[j] == null)
+				break;
+			int home = ChunkKey.hash(keys[j]) & mask;
+			// move the entry if its home slot isn't between the gap and it
+			if (((j - home) & mask) >= ((j - gap) & mask)) {
+				keys[gap] = keys[j];
+				values[gap] = values[j];
+				gap = j;
+			}
+		}
+		values[gap] = null;
+		return old;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public void clear() {
+		Arrays.fill(values, null);
+		size = 0;
+	}
+
+	/**
+	 * @return the keys of the map, in no particular order
+	 */
+	public long[] keys() {
+		long[] result = new long[size];
+		int n = 0;
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] != null)
+				result[n++] = keys[i];
+		}
+		return result;
+	}
+
+	/**
+	 * Calls the consumer for every entry of the map, in no particular order.
+	 * The map must not be modified meanwhile.
+	 */
+	@SuppressWarnings("unchecked")
+	public void forEach(Consumer<? super V> consumer) {
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] != null)
+				consumer.accept(keys[i], (V) values[i]);
+		}
+	}
+
+	private void grow() {
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+		allocate(oldKeys.length * 2);
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldValues[i] != null) {
+				int j = slot(oldKeys[i]);
+				keys[j] = oldKeys[i];
+				values[j] = oldValues[i];
+			}
+		}
+	}
+}
@@ -0,0 +1,143 @@
+package org.jmc.util;
+
+import java.util.Arrays;
+
+/**
+ * Unpacks the palette indices stored in the long arrays of chunk sections.
+ * <p>
+ * Two layouts are used by Minecraft:
+ * <ul>
+ * <li><b>spanning</b>, before 20w17a: the values are packed back to back and
+ * a value can be split between two longs</li>
+ * <li><b>padded</b>, since 20w17a: each long holds {@code 64 / bits} values,
+ * the remaining high bits are unused</li>
+ * </ul>
+ * Both are the same when the bit count divides 64. A whole array is decoded
+ * in one loop, with dedicated loops for the common 4 and 8 bit widths.
+ */
+public class PackedLongArray {
+
+	/**
+	 * Unpacks values from a packed long array.
+	 * @param data packed values
+	 * @param bits bits per value, 1 to 16
+	 * @param spanning true for the pre 20w17a layout where values can span two longs
+	 * @param out array to put the values in
+	 * @param count number of values to unpack
+	 * @return the largest value unpacked, to check it against the palette size
+	 * @throws ArrayIndexOutOfBoundsException if a padded array is too short.
+	 * Missing bits of a spanning array are read as 0.
+	 */
+	public static int unpack(long[] data, int bits, boolean spanning, short[] out, int count) {
+		if (bits < 1 || bits > 16)
+			throw new IllegalArgumentException("Invalid bits per value: " + bits);
+		if (count > out.length)
+			throw new IllegalArgumentException("Output array is too small");
+
+		if (64 % bits == 0 || !spanning) {
+			int perLong = 64 / bits;
+			int longs = (count + perLong - 1) / perLong;
+			if (data.length < longs)
+				throw new ArrayIndexOutOfBoundsException("Packed array too short: " + data.length + " < " + longs);
+			switch (bits) {
+			case 4:
+				return unpack4(data, out, count);
+			case 8:
+				return unpack8(data, out, count);
+			default:
+				return unpackPadded(data, bits, out, count);
+			}
+		}
+
+		int longs = (int) (((long) count * bits + 63) >>> 6);
+		if (data.length < longs)
+			data = Arrays.copyOf(data, longs);
+		return unpackSpanning(data, bits, out, count);
+	}
+
+	private static int unpack4(long[] data, short[] out, int count) {
+		int max = 0;
+		int full = count >>> 4;
+		int i = 0;
+		for (int l = 0; l < full; l++) {
+			long v = data[l];
+			for (int j = 0; j < 16; j++) {
+				int value = (int) (v & 0xF);
+				out[i++] = (short) value;
+				max = Math.max(max, value);
+				v >>>= 4;
+			}
+		}
+		if (i < count) {
+			long v = data[full];
+			while (i < count) {
+				int value = (int) (v & 0xF);
+				out[i++] = (short) value;
+				max = Math.max(max, value);
+				v >>>= 4;
+			}
+		}
+		return max;
+	}
+
+	private static int unpack8(long[] data, short[] out, int count) {
+		int max = 0;
+		int full = count >>> 3;
+		int i = 0;
+		for (int l = 0; l < full; l++) {
+			long v = data[l];
+			for (int j = 0; j < 8; j++) {
+				int value = (int) (v & 0xFF);
+				out[i++] = (short) value;
+				max = Math.max(max, value);
+				v >>>= 8;
+			}
+		}
+		if (i < count) {
+			long v = data[full];
+			while (i < count) {
+				int value = (int) (v & 0xFF);
+				out[i++] = (short) value;
+				max = Math.max(max, value);
+				v >>>= 8;
+			}
+		}
+		return max;
+	}
+
+	private static int unpackPadded(long[] data, int bits, short[] out, int count) {
+		int perLong = 64 / bits;
+		long mask = -1L >>> (64 - bits);
+		int max = 0;
+		int i = 0;
+		for (int l = 0; i < count; l++) {
+			long v = data[l];
+			int end = Math.min(i + perLong, count);
+			while (i < end) {
+				int value = (int) (v & mask);
+				out[i++] = (short) value;
+				max = Math.max(max, value);
+				v >>>= bits;
+			}
+		}
+		return max;
+	}
+
+	private static int unpackSpanning(long[] data, int bits, short[] out, int count) {
+		long mask = -1L >>> (64 - bits);
+		int max = 0;
+		long bitPos = 0;
+		for (int i = 0; i < count; i++) {
+			int l = (int) (bitPos >>> 6);
+			int offset = (int) (bitPos & 63);
+			long v = data[l] >>> offset;
+			if (offset + bits > 64)
+				v |= data[l + 1] << (64 - offset);
+			int value = (int) (v & mask);
+			out[i] = (short) value;
+			max = Math.max(max, value);
+			bitPos += bits;
+		}
+		return max;
+	}
+}
@@ -1,6 +1,5 @@
 package org.jmc.util;
 
-import java.awt.Point;
 import java.lang.management.ManagementFactory;
 import java.lang.management.MemoryMXBean;
 import java.lang.management.MemoryUsage;
@@ -22,6 +21,8 @@ import org.jmc.Chunk;
  * - LRU-based eviction policy
  * - Thread-safe operations
  * - Memory usage statistics
+ * 
+ * Chunks are keyed by {@link ChunkKey}.
  */
 public class SmartChunkCache {
     
@@ -34,12 +35,12 @@ public class SmartChunkCache {
     private final int lowWaterMark; // Size to reduce to when cleaning
     
     // Thread-safe LRU cache
-    private final Map<Point, Chunk.Blocks> cache = new ConcurrentHashMap<>();
-    private final LinkedHashMap<Point, Long> accessOrder = new LinkedHashMap<Point, Long>(16, 0.75f, true) {
+    private final Map<Long, Chunk.Blocks> cache = new ConcurrentHashMap<>();
+    private final LinkedHashMap<Long, Long> accessOrder = new LinkedHashMap<Long, Long>(16, 0.75f, true) {
         @Override
-        protected boolean removeEldestEntry(Map.Entry<Point, Long> eldest) {
+        protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
             if (size() > maxCacheSize) {
-                Point key = eldest.getKey();
+                Long key = eldest.getKey();
                 cache.remove(key);
                 cacheEvictions.incrementAndGet();
                 return true;
@@ -66,7 +67,7 @@ public class SmartChunkCache {
      * Gets a chunk from cache, returns null if not found.
      */
     @CheckForNull
-    public Chunk.Blocks get(Point coord) {
+    public Chunk.Blocks get(long coord) {
         Chunk.Blocks blocks = cache.get(coord);
         
         if (blocks != null) {
@@ -85,7 +86,7 @@ public class SmartChunkCache {
     /**
      * Puts a chunk into cache with memory pressure checking.
      */
-    public void put(Point coord, Chunk.Blocks blocks) {
+    public void put(long coord, Chunk.Blocks blocks) {
         if (blocks == null) {
             return;
         }
@@ -104,7 +105,7 @@ public class SmartChunkCache {
     /**
      * Removes a specific entry from cache.
      */
-    public void remove(Point coord) {
+    public void remove(long coord) {
         cache.remove(coord);
         synchronized (accessOrder) {
             accessOrder.remove(coord);
@@ -155,7 +156,7 @@ public class SmartChunkCache {
         // Remove oldest entries until we reach target size
         synchronized (accessOrder) {
             while (cache.size() > targetSize && !accessOrder.isEmpty()) {
-                Point oldestKey = accessOrder.keySet().iterator().next();
+                Long oldestKey = accessOrder.keySet().iterator().next();
                 cache.remove(oldestKey);
                 accessOrder.remove(oldestKey);
                 cacheEvictions.incrementAndGet();
@@ -212,4 +213,4 @@ public class SmartChunkCache {
     public void logStatistics() {
         Log.info(getStatistics());
     }
-}
\ No newline at end of file
+}
\ No newline at end of file
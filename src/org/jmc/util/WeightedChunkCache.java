@@ -0,0 +1,527 @@
+package org.jmc.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.CheckForNull;
+
+import org.jmc.Chunk;
+
+/**
+ * Concurrent chunk cache bounded by the estimated memory of its entries,
+ * see {@link Chunk.Blocks#estimateSize()}.
+ * <p>
+ * Reads don't take any lock. Hits are recorded in striped, lossy buffers and
+ * replayed on the eviction policy in batches by whichever thread holds the
+ * policy lock. Writes, which follow a chunk load that costs far more, take
+ * the lock directly.
+ * <p>
+ * The eviction policy is W-TinyLFU:
+ * <ul>
+ * <li>new entries go to a small LRU window, 1% of the capacity</li>
+ * <li>the rest is a segmented LRU: entries leaving the window are put on
+ * probation and promoted to the protected segment when they are hit again</li>
+ * <li>an entry leaving the window only replaces the probation victim if it
+ * was used more often, according to a count-min sketch of recent accesses</li>
+ * </ul>
+ * So chunks that are read once, like the ones passed by a scan, don't flush
+ * the chunks that are read repeatedly.
+ * <p>
+ * Evicted and rejected chunks can be passed to a listener, to keep them in a
+ * slower tier.
+ * <p>
+ * Chunks are keyed by {@link ChunkKey}. The keys are boxed for the concurrent
+ * map, but unlike {@link java.awt.Point}s they are immutable and hash cheaply.
+ */
+public class WeightedChunkCache {
+
+    /** Share of the capacity used by the window */
+    private static final double WINDOW_RATIO = 0.01;
+    /** Share of the main space used by the protected segment */
+    private static final double PROTECTED_RATIO = 0.8;
+    /** Estimated average chunk weight, to size the frequency sketch */
+    private static final long EXPECTED_WEIGHT = 32 * 1024;
+
+    private static final byte NONE = 0;
+    private static final byte WINDOW = 1;
+    private static final byte PROBATION = 2;
+    private static final byte PROTECTED = 3;
+
+    /**
+     * Receives the chunks evicted or rejected by the cache.
+     */
+    public interface EvictionListener {
+        void evicted(long chunk, Chunk.Blocks blocks);
+    }
+
+    private static final class Node {
+        final long key;
+        final Chunk.Blocks blocks;
+        final long weight;
+        final int hash;
+        // guarded by the eviction lock
+        byte queue = NONE;
+        @CheckForNull
+        Node prev, next;
+
+        Node(long key, Chunk.Blocks blocks, long weight) {
+            this.key = key;
+            this.blocks = blocks;
+            this.weight = weight;
+            this.hash = ChunkKey.hash(key);
+        }
+    }
+
+    /** Access ordered list of nodes, least recently used first */
+    private static final class AccessQueue {
+        @CheckForNull
+        Node head, tail;
+        long weight;
+
+        void add(Node node) {
+            node.prev = tail;
+            node.next = null;
+            if (tail == null)
+                head = node;
+            else
+                tail.next = node;
+            tail = node;
+            weight += node.weight;
+        }
+
+        void remove(Node node) {
+            if (node.prev == null)
+                head = node.next;
+            else
+                node.prev.next = node.next;
+            if (node.next == null)
+                tail = node.prev;
+            else
+                node.next.prev = node.prev;
+            node.prev = null;
+            node.next = null;
+            weight -= node.weight;
+        }
+
+        void moveToTail(Node node) {
+            if (node != tail) {
+                remove(node);
+                add(node);
+            }
+        }
+
+        void clear() {
+            head = null;
+            tail = null;
+            weight = 0;
+        }
+    }
+
+    /**
+     * Ring buffer of nodes that were read, dropping reads when it's full or
+     * contended. Written by any thread, drained under the eviction lock.
+     */
+    private static final class ReadBuffer {
+        static final int SIZE = 64;
+        static final int MASK = SIZE - 1;
+
+        final AtomicReferenceArray<Node> slots = new AtomicReferenceArray<>(SIZE);
+        final AtomicLong writes = new AtomicLong();
+        volatile long reads;
+
+        /** @return false if the buffer is full and should be drained */
+        boolean offer(Node node) {
+            long w = writes.get();
+            if (w - reads >= SIZE)
+                return false;
+            if (writes.compareAndSet(w, w + 1))
+                slots.lazySet((int) (w & MASK), node);
+            return true;
+        }
+
+        void drainTo(WeightedChunkCache cache) {
+            long r = reads;
+            long w = writes.get();
+            for (; r < w; r++) {
+                int i = (int) (r & MASK);
+                Node node = slots.get(i);
+                if (node == null)
+                    break;// claimed but not written yet
+                slots.lazySet(i, null);
+                cache.onAccess(node);
+            }
+            reads = r;
+        }
+    }
+
+    /**
+     * Count-min sketch with 4 bit counters, halved periodically so that old
+     * accesses are forgotten.
+     */
+    private static final class FrequencySketch {
+        private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+
+        private final long[] table;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(long expectedEntries) {
+            int size = Integer.highestOneBit((int) Math.max(16, Math.min(expectedEntries, 1 << 22)) * 2 - 1);
+            table = new long[size];
+            mask = size - 1;
+            sampleSize = 10 * size;
+        }
+
+        private static int indexOf(int hash, int i) {
+            long h = (hash + SEEDS[i]) * SEEDS[i];
+            h += h >>> 32;
+            return (int) h;
+        }
+
+        int frequency(int hash) {
+            int freq = 15;
+            for (int i = 0; i < 4; i++) {
+                int h = indexOf(hash, i);
+                int shift = ((h >>> 24) & 15) << 2;
+                freq = Math.min(freq, (int) ((table[h & mask] >>> shift) & 15));
+            }
+            return freq;
+        }
+
+        void increment(int hash) {
+            boolean added = false;
+            for (int i = 0; i < 4; i++) {
+                int h = indexOf(hash, i);
+                int shift = ((h >>> 24) & 15) << 2;
+                int index = h & mask;
+                if (((table[index] >>> shift) & 15) != 15) {
+                    table[index] += 1L << shift;
+                    added = true;
+                }
+            }
+            if (added && ++additions == sampleSize) {
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+                }
+                additions >>>= 1;
+            }
+        }
+
+        void clear() {
+            Arrays.fill(table, 0);
+            additions = 0;
+        }
+    }
+
+    private final ConcurrentHashMap<Long, Node> data = new ConcurrentHashMap<>();
+    private final ReadBuffer[] readBuffers;
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    // guarded by the eviction lock
+    private final AccessQueue window = new AccessQueue();
+    private final AccessQueue probation = new AccessQueue();
+    private final AccessQueue protectedQueue = new AccessQueue();
+    private final FrequencySketch sketch;
+    /** Nodes evicted by the current write, passed to the listener after unlocking */
+    private List<Node> evicted = new ArrayList<>();
+    @CheckForNull
+    private final EvictionListener evictionListener;
+
+    private final long maxWeight;
+    private final long maxWindow;
+    private final long maxProtected;
+    private volatile long weightedSize;
+
+    // Statistics
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+    private final LongAdder cacheEvictions = new LongAdder();
+    private final LongAdder cacheRejections = new LongAdder();
+
+    /**
+     * @param maxWeight maximum total weight of the entries, in bytes
+     */
+    public WeightedChunkCache(long maxWeight) {
+        this(maxWeight, null);
+    }
+
+    /**
+     * @param maxWeight maximum total weight of the entries, in bytes
+     * @param evictionListener called with the chunks evicted or rejected by the
+     * policy, outside of any lock. Not called for {@link #remove(long)} and
+     * {@link #clear()}.
+     */
+    public WeightedChunkCache(long maxWeight, @CheckForNull EvictionListener evictionListener) {
+        this.evictionListener = evictionListener;
+        if (maxWeight <= 0)
+            throw new IllegalArgumentException("Cache weight must be positive");
+        this.maxWeight = maxWeight;
+        this.maxWindow = (long) (maxWeight * WINDOW_RATIO);
+        this.maxProtected = (long) ((maxWeight - maxWindow) * PROTECTED_RATIO);
+        this.sketch = new FrequencySketch(maxWeight / EXPECTED_WEIGHT);
+
+        int stripes = Integer.highestOneBit(Math.min(64, Runtime.getRuntime().availableProcessors() * 2) * 2 - 1);
+        readBuffers = new ReadBuffer[stripes];
+        for (int i = 0; i < stripes; i++) {
+            readBuffers[i] = new ReadBuffer();
+        }
+    }
+
+    private static int spread(int hash) {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Gets a chunk from cache, returns null if not found.
+     */
+    @CheckForNull
+    public Chunk.Blocks get(long chunk) {
+        Node node = data.get(chunk);
+        if (node == null) {
+            cacheMisses.increment();
+            return null;
+        }
+        cacheHits.increment();
+
+        int stripe = spread((int) Thread.currentThread().getId()) & (readBuffers.length - 1);
+        if (!readBuffers[stripe].offer(node) && evictionLock.tryLock()) {
+            try {
+                drainReadBuffers();
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+        return node.blocks;
+    }
+
+    /**
+     * Puts a chunk into the cache. It may be evicted straight away if it's
+     * used less than the chunks it would replace.
+     */
+    public void put(long chunk, Chunk.Blocks blocks) {
+        if (blocks == null) {
+            return;
+        }
+        long weight = Math.max(1, blocks.estimateSize());
+        if (weight > maxWeight) {
+            cacheRejections.increment();
+            if (evictionListener != null)
+                evictionListener.evicted(chunk, blocks);
+            return;
+        }
+
+        Node node = new Node(chunk, blocks, weight);
+        List<Node> removed = null;
+        evictionLock.lock();
+        try {
+            drainReadBuffers();
+            Node old = data.put(chunk, node);
+            if (old != null) {
+                unlink(old);
+            }
+            sketch.increment(node.hash);
+            node.queue = WINDOW;
+            window.add(node);
+            evict();
+            updateWeight();
+            if (!evicted.isEmpty()) {
+                removed = evicted;
+                evicted = new ArrayList<>();
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+        if (removed != null && evictionListener != null) {
+            for (Node n : removed) {
+                evictionListener.evicted(n.key, n.blocks);
+            }
+        }
+    }
+
+    /**
+     * Removes a specific entry from cache.
+     */
+    public void remove(long chunk) {
+        evictionLock.lock();
+        try {
+            Node node = data.remove(chunk);
+            if (node != null) {
+                unlink(node);
+                updateWeight();
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Clears all cache entries.
+     */
+    public void clear() {
+        evictionLock.lock();
+        try {
+            drainReadBuffers();
+            data.clear();
+            window.clear();
+            probation.clear();
+            protectedQueue.clear();
+            sketch.clear();
+            updateWeight();
+        } finally {
+            evictionLock.unlock();
+        }
+        Log.debug("Cache cleared manually");
+    }
+
+    private void drainReadBuffers() {
+        for (ReadBuffer buffer : readBuffers) {
+            buffer.drainTo(this);
+        }
+    }
+
+    /** Replays a read on the policy, called under the eviction lock */
+    private void onAccess(Node node) {
+        switch (node.queue) {
+        case WINDOW:
+            sketch.increment(node.hash);
+            window.moveToTail(node);
+            break;
+        case PROBATION:
+            sketch.increment(node.hash);
+            probation.remove(node);
+            node.queue = PROTECTED;
+            protectedQueue.add(node);
+            // demote the least recently used protected entries
+            while (protectedQueue.weight > maxProtected && protectedQueue.head != node) {
+                Node demoted = protectedQueue.head;
+                protectedQueue.remove(demoted);
+                demoted.queue = PROBATION;
+                probation.add(demoted);
+            }
+            break;
+        case PROTECTED:
+            sketch.increment(node.hash);
+            protectedQueue.moveToTail(node);
+            break;
+        default:
+            break;// evicted or replaced since it was read
+        }
+    }
+
+    /**
+     * Moves the entries overflowing the window to the main space if they are
+     * used more than its victims, then evicts until under the max weight.
+     */
+    private void evict() {
+        long maxMain = maxWeight - maxWindow;
+        while (window.weight > maxWindow && window.head != null) {
+            Node candidate = window.head;
+            window.remove(candidate);
+
+            if (probation.weight + protectedQueue.weight + candidate.weight > maxMain) {
+                Node victim = probation.head != null ? probation.head : protectedQueue.head;
+                if (candidate.weight > maxMain || (victim != null && !admit(candidate, victim))) {
+                    candidate.queue = NONE;
+                    data.remove(candidate.key, candidate);
+                    cacheRejections.increment();
+                    evicted.add(candidate);
+                    continue;
+                }
+                while (probation.weight + protectedQueue.weight + candidate.weight > maxMain) {
+                    victim = probation.head != null ? probation.head : protectedQueue.head;
+                    if (victim == null)
+                        break;
+                    unlink(victim);
+                    evictNode(victim);
+                }
+            }
+            candidate.queue = PROBATION;
+            probation.add(candidate);
+        }
+    }
+
+    private boolean admit(Node candidate, Node victim) {
+        return sketch.frequency(candidate.hash) > sketch.frequency(victim.hash);
+    }
+
+    private void unlink(Node node) {
+        switch (node.queue) {
+        case WINDOW:
+            window.remove(node);
+            break;
+        case PROBATION:
+            probation.remove(node);
+            break;
+        case PROTECTED:
+            protectedQueue.remove(node);
+            break;
+        default:
+            break;
+        }
+        node.queue = NONE;
+    }
+
+    private void evictNode(Node node) {
+        node.queue = NONE;
+        data.remove(node.key, node);
+        cacheEvictions.increment();
+        evicted.add(node);
+    }
+
+    private void updateWeight() {
+        weightedSize = window.weight + probation.weight + protectedQueue.weight;
+    }
+
+    /**
+     * Returns current cache size.
+     */
+    public int size() {
+        return data.size();
+    }
+
+    /**
+     * Returns the total weight of the entries, in bytes.
+     */
+    public long weightedSize() {
+        return weightedSize;
+    }
+
+    /**
+     * Returns cache hit ratio.
+     */
+    public double getHitRatio() {
+        long hits = cacheHits.sum();
+        long misses = cacheMisses.sum();
+        long total = hits + misses;
+
+        return total == 0 ? 0.0 : (double) hits / total;
+    }
+
+    /**
+     * Returns cache statistics as formatted string.
+     */
+    public String getStatistics() {
+        return String.format(
+            "Cache Stats - Size: %d, Weight: %.1f/%.1f MB, Hits: %d, Misses: %d, Hit Ratio: %.2f%%, " +
+            "Evictions: %d, Rejected: %d",
+            data.size(), weightedSize / 1024.0 / 1024.0, maxWeight / 1024.0 / 1024.0,
+            cacheHits.sum(), cacheMisses.sum(), getHitRatio() * 100,
+            cacheEvictions.sum(), cacheRejections.sum()
+        );
+    }
+
+    /**
+     * Logs current cache statistics.
+     */
+    public void logStatistics() {
+        Log.info(getStatistics());
+    }
+}